@@ -0,0 +1,530 @@
+/* class CompactMesh
+ * Compact (struct-of-arrays) storage for a polygon mesh
+ *
+ * Vertex positions and normals are kept in flat arrays (x,y,z for each
+ * vertex) and the polygons as an index buffer plus offsets: polygon i
+ * uses the vertices index[offset[i]] ... index[offset[i+1]-1].
+ *
+ * No objects are kept per vertex or polygon; Vertex and Polygon objects
+ * are only created on demand, as lightweight views of an index (see
+ * MeshStorage).
+ */
+
+import javax.vecmath.*;
+
+import java.util.Arrays;
+
+public class CompactMesh extends MeshStorage
+{
+    // Vertices: positions and normals
+    double[] points;
+    double[] normals;
+
+    // Polygons: index buffer, offsets into it, and normals
+    int[] offset;
+    int[] index;
+    double[] polyNormals;
+
+    // Vertex -> polygon adjacency (built when first needed)
+    private MeshAdjacency adjacency;
+
+    // Meshes smaller than this are not worth computing in parallel
+    static final int PARALLEL_MIN = 20000;
+
+    // Constructor: mesh with the given vertices and polygons (the
+    // arrays are used directly, not copied); normals are all zero
+    public CompactMesh(int nv, double[] pointArray,
+                       int np, int[] offsetArray, int[] indexArray)
+    {
+        numVertices = nv;
+        points = pointArray;
+        normals = new double[3 * nv];
+
+        numPolygons = np;
+        offset = offsetArray;
+        index = indexArray;
+        polyNormals = new double[3 * np];
+    }
+
+    // Constructor: mesh read by an ObjParser
+    public CompactMesh(ObjParser.Result obj)
+    {
+        this(obj.numVertices, obj.points,
+             obj.numPolygons, obj.offset, obj.index);
+    }
+
+    // Copy of the mesh of a shape that keeps Vertex/Polygon objects
+    // (vertices are told apart by identity, so shared vertices stay
+    // shared)
+    public static CompactMesh fromShape(Shape s)
+    {
+        int nv = s.numVertices(), np = s.numPolygons();
+
+        java.util.IdentityHashMap<Vertex,Integer> ids =
+            new java.util.IdentityHashMap<Vertex,Integer>(2 * nv);
+        double[] points = new double[3 * nv];
+        for (int i = 0; i < nv; i++) {
+            Vertex v = s.getVertex(i);
+            ids.put(v, i);
+            Point3d p = v.getPoint();
+            points[3*i] = p.x;
+            points[3*i+1] = p.y;
+            points[3*i+2] = p.z;
+        }
+
+        int[] offset = new int[np + 1];
+        for (int i = 0; i < np; i++) {
+            offset[i+1] = offset[i] + s.getPolygon(i).size();
+        }
+        int[] index = new int[offset[np]];
+
+        CompactMesh m = new CompactMesh(nv, points, np, offset, index);
+        for (int i = 0; i < nv; i++) {
+            Vector3d n = s.getVertex(i).getNormal();
+            m.normals[3*i] = n.x;
+            m.normals[3*i+1] = n.y;
+            m.normals[3*i+2] = n.z;
+        }
+        for (int i = 0; i < np; i++) {
+            Polygon poly = s.getPolygon(i);
+            for (int k = 0; k < poly.size(); k++) {
+                index[offset[i] + k] = ids.get(poly.getVertex(k));
+            }
+            Vector3d n = poly.getNormal();
+            m.polyNormals[3*i] = n.x;
+            m.polyNormals[3*i+1] = n.y;
+            m.polyNormals[3*i+2] = n.z;
+        }
+        return m;
+    }
+
+    // ---------------------------------------------------------------------
+    // Access to the arrays (for the views in MeshStorage)
+
+    double coord(int v, int k)
+    {
+        return points[3*v+k];
+    }
+    void vertexNormal(int v, double[] n, int off)
+    {
+        System.arraycopy(normals, 3*v, n, off, 3);
+    }
+    void setVertexNormal(int v, double[] n, int off)
+    {
+        System.arraycopy(n, off, normals, 3*v, 3);
+    }
+    void polygonNormal(int p, double[] n, int off)
+    {
+        System.arraycopy(polyNormals, 3*p, n, off, 3);
+    }
+    void setPolygonNormal(int p, double[] n, int off)
+    {
+        System.arraycopy(n, off, polyNormals, 3*p, 3);
+    }
+    public int polygonSize(int p)
+    {
+        return offset[p+1] - offset[p];
+    }
+    public int corner(int p, int i)
+    {
+        return index[offset[p] + i];
+    }
+    void setCorner(int p, int i, int v)
+    {
+        index[offset[p] + i] = v;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Compute unnormalized normal of polygon p using Newell's method
+    public void computePolygonNormal(int p)
+    {
+        computePolygonNormal(p, polyNormals, 3*p);
+    }
+
+    // Same, storing the result at position off of array n (on the
+    // arrays, for speed)
+    public void computePolygonNormal(int p, double[] n, int off)
+    {
+        double nx = 0, ny = 0, nz = 0;
+        int start = offset[p], size = offset[p+1] - start;
+
+        for (int i = 0; i < size; i++) {
+            // Vertex i and i+1 (modulo size)
+            int a = 3 * index[start + i];
+            int b = 3 * index[start + (i+1) % size];
+
+            nx += (points[a+1] - points[b+1]) * (points[a+2] + points[b+2]);
+            ny += (points[a+2] - points[b+2]) * (points[a] + points[b]);
+            nz += (points[a] - points[b]) * (points[a+1] + points[b+1]);
+        }
+
+        n[off] = nx;
+        n[off+1] = ny;
+        n[off+2] = nz;
+    }
+
+    // Vertex -> polygon adjacency
+    public synchronized MeshAdjacency getAdjacency()
+    {
+        if (adjacency == null) {
+            adjacency = new MeshAdjacency(numVertices, numPolygons,
+                                          offset, index);
+        }
+        return adjacency;
+    }
+
+    // Forget the adjacency (after the polygons have changed)
+    synchronized void clearAdjacency()
+    {
+        adjacency = null;
+    }
+
+    // Compute all polygon and vertex normal vectors (vertex normals
+    // are area weighted averages of the polygon normals)
+    public void computeNormals()
+    {
+        computeNormals(Parallel.threads() > 1 && numPolygons >= PARALLEL_MIN);
+    }
+
+    // Compute all normals, either sequentially (scattering polygon
+    // normals to their vertices) or in parallel (gathering them over the
+    // adjacency); both give bit-identical results
+    public void computeNormals(boolean parallel)
+    {
+        if (parallel) {
+            computeNormalsParallel();
+            return;
+        }
+
+        for (int p = 0; p < numPolygons; p++) {
+            computePolygonNormal(p);
+        }
+
+        java.util.Arrays.fill(normals, 0);
+
+        for (int p = 0; p < numPolygons; p++) {
+            for (int i = offset[p]; i < offset[p+1]; i++) {
+                int v = 3 * index[i];
+                normals[v] += polyNormals[3*p];
+                normals[v+1] += polyNormals[3*p+1];
+                normals[v+2] += polyNormals[3*p+2];
+            }
+        }
+
+        for (int v = 0; v < numVertices; v++) {
+            normalize(normals, 3*v);
+        }
+        for (int p = 0; p < numPolygons; p++) {
+            normalize(polyNormals, 3*p);
+        }
+    }
+
+    private void computeNormalsParallel()
+    {
+        final MeshAdjacency adj = getAdjacency();
+
+        // Polygon normals (unnormalized, for area weighting)
+        Parallel.forRange(numPolygons, 4096, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int p = start; p < end; p++) {
+                        computePolygonNormal(p);
+                    }
+                }
+            });
+
+        // Vertex normals: sum over adjacent polygons, in polygon order
+        Parallel.forRange(numVertices, 4096, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int v = start; v < end; v++) {
+                        double nx = 0, ny = 0, nz = 0;
+                        for (int i = adj.start[v]; i < adj.start[v+1]; i++) {
+                            int p = 3 * adj.polys[i];
+                            nx += polyNormals[p];
+                            ny += polyNormals[p+1];
+                            nz += polyNormals[p+2];
+                        }
+                        normals[3*v] = nx;
+                        normals[3*v+1] = ny;
+                        normals[3*v+2] = nz;
+                        normalize(normals, 3*v);
+                    }
+                }
+            });
+
+        Parallel.forRange(numPolygons, 4096, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int p = start; p < end; p++) {
+                        normalize(polyNormals, 3*p);
+                    }
+                }
+            });
+    }
+
+    // Sorted list of the distinct values in the first n entries of a
+    static int[] unique(int[] a, int n)
+    {
+        a = java.util.Arrays.copyOf(a, n);
+        java.util.Arrays.sort(a);
+
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (k == 0 || a[i] != a[k-1])
+              a[k++] = a[i];
+        }
+        return java.util.Arrays.copyOf(a, k);
+    }
+
+    // Polygons using any of the given vertices (sorted, no duplicates)
+    static int[] polygonsOf(MeshAdjacency adj, int[] verts)
+    {
+        int n = 0;
+        for (int v : verts) {
+            n += adj.degree(v);
+        }
+        int[] polys = new int[n];
+        n = 0;
+        for (int v : verts) {
+            for (int i = adj.start[v]; i < adj.start[v+1]; i++) {
+                polys[n++] = adj.polys[i];
+            }
+        }
+        return unique(polys, n);
+    }
+
+    // Vertices of the given polygons (sorted, no duplicates)
+    int[] verticesOf(int[] polys)
+    {
+        int n = 0;
+        for (int p : polys) {
+            n += offset[p+1] - offset[p];
+        }
+        int[] verts = new int[n];
+        n = 0;
+        for (int p : polys) {
+            for (int i = offset[p]; i < offset[p+1]; i++) {
+                verts[n++] = index[i];
+            }
+        }
+        return unique(verts, n);
+    }
+
+    // Update the normals after the vertices in dirty have moved: only
+    // the polygons using them, and the vertices of those polygons, are
+    // recomputed (with the same result as computeNormals())
+    public void updateNormals(int[] dirty)
+    {
+        // Large edits are faster to do all at once
+        if (dirty.length > numVertices / 16) {
+            computeNormals();
+            return;
+        }
+
+        MeshAdjacency adj = getAdjacency();
+
+        // Polygons that changed shape (unnormalized normals, for now)
+        int[] changed = polygonsOf(adj, unique(dirty, dirty.length));
+        for (int p : changed) {
+            computePolygonNormal(p);
+        }
+
+        // Their vertices: add up the unnormalized normals of all their
+        // polygons (the unchanged ones have only been stored normalized,
+        // so recompute those)
+        double[] raw = new double[3];
+        for (int v : verticesOf(changed)) {
+            double nx = 0, ny = 0, nz = 0;
+            for (int i = adj.start[v]; i < adj.start[v+1]; i++) {
+                int p = adj.polys[i];
+                if (java.util.Arrays.binarySearch(changed, p) >= 0) {
+                    nx += polyNormals[3*p];
+                    ny += polyNormals[3*p+1];
+                    nz += polyNormals[3*p+2];
+                } else {
+                    computePolygonNormal(p, raw, 0);
+                    nx += raw[0];
+                    ny += raw[1];
+                    nz += raw[2];
+                }
+            }
+            normals[3*v] = nx;
+            normals[3*v+1] = ny;
+            normals[3*v+2] = nz;
+            normalize(normals, 3*v);
+        }
+
+        for (int p : changed) {
+            normalize(polyNormals, 3*p);
+        }
+    }
+
+    // Move vertex v to p (call updateNormals() afterwards)
+    public void setPoint(int v, Point3d p)
+    {
+        points[3*v] = p.x;
+        points[3*v+1] = p.y;
+        points[3*v+2] = p.z;
+    }
+
+    // Rescale mesh so it fits in viewpoint: center the bounding box at
+    // the origin, and scale it to fit (with some slack)
+    public void rescale()
+    {
+        if (numVertices == 0)
+          return;
+
+        // Find the 3D bounding box
+        double[] bbmin = { points[0], points[1], points[2] };
+        double[] bbmax = { points[0], points[1], points[2] };
+        for (int i = 1; i < numVertices; i++) {
+            for (int k = 0; k < 3; k++) {
+                bbmin[k] = Math.min(bbmin[k], points[3*i+k]);
+                bbmax[k] = Math.max(bbmax[k], points[3*i+k]);
+            }
+        }
+
+        // Center and maximum dimension of the bounding box
+        Point3d center = new Point3d();
+        center.interpolate(new Point3d(bbmin[0], bbmin[1], bbmin[2]),
+                           new Point3d(bbmax[0], bbmax[1], bbmax[2]), 0.5);
+        double maxBBox = Math.max(Math.max(bbmax[0] - bbmin[0],
+                                           bbmax[1] - bbmin[1]),
+                                  bbmax[2] - bbmin[2]);
+
+        // Transform resulting vertices (same operations as for a Point3d)
+        double s = 3.2/maxBBox;
+        for (int i = 0; i < numVertices; i++) {
+            points[3*i]   = (points[3*i]   - center.x) * s;
+            points[3*i+1] = (points[3*i+1] - center.y) * s;
+            points[3*i+2] = (points[3*i+2] - center.z) * s;
+        }
+    }
+
+    // Weld vertices: merge vertices within distance eps of an earlier
+    // (kept) vertex, found with a hash grid of cells 2 eps wide (only
+    // the 8 cells around the corner nearest a vertex can hold vertices
+    // that close), so this takes linear time.  Polygons are renumbered,
+    // repeated vertices in a polygon are dropped, and polygons left with
+    // fewer than three vertices are removed (fileVertex and filePolygon
+    // tell where the others came from).  Normals are cleared (recompute
+    // them).
+    // Returns the number of vertices removed.
+    public int weld(double eps)
+    {
+        int nv = numVertices;
+        double eps2 = eps * eps;
+
+        // Kept vertices are chained by cell: head of each cell (open
+        // addressing on the packed cell coordinates) and next in chain
+        int size = Integer.highestOneBit(Math.max(4, 2 * nv)) * 2;
+        long[] keys = new long[size];
+        int[] heads = new int[size];
+        Arrays.fill(heads, -1);
+        int[] next = new int[nv];
+
+        int[] remap = new int[nv];
+        int[] fileVertices = new int[nv];
+        int kept = 0;
+        for (int v = 0; v < nv; v++) {
+            double x = points[3*v], y = points[3*v+1], z = points[3*v+2];
+            double gx = x / (2*eps), gy = y / (2*eps), gz = z / (2*eps);
+            long cx = (long)Math.floor(gx);
+            long cy = (long)Math.floor(gy);
+            long cz = (long)Math.floor(gz);
+
+            // Neighboring cells on the side of the nearest corner
+            int sx = (gx - cx < 0.5) ? -1 : 1;
+            int sy = (gy - cy < 0.5) ? -1 : 1;
+            int sz = (gz - cz < 0.5) ? -1 : 1;
+
+            // Look for a kept vertex in this or a neighboring cell
+            int found = -1;
+            for (int d = 0; d < 8 && found < 0; d++) {
+                long key = cellKey(cx + (d & 1) * sx, cy + (d >> 1 & 1) * sy,
+                                   cz + (d >> 2) * sz);
+                int slot = cellSlot(keys, heads, key);
+                for (int w = heads[slot]; w >= 0; w = next[w]) {
+                    double dx = points[3*w] - x;
+                    double dy = points[3*w+1] - y;
+                    double dz = points[3*w+2] - z;
+                    if (dx*dx + dy*dy + dz*dz <= eps2) {
+                        found = w;
+                        break;
+                    }
+                }
+            }
+            if (found >= 0) {
+                remap[v] = found;
+                continue;
+            }
+
+            // Keep it (moved down to its new number)
+            points[3*kept] = x;
+            points[3*kept+1] = y;
+            points[3*kept+2] = z;
+            remap[v] = kept;
+            fileVertices[kept] = (fileVertex != null) ? fileVertex[v] : v;
+            int slot = cellSlot(keys, heads, cellKey(cx, cy, cz));
+            keys[slot] = cellKey(cx, cy, cz);
+            next[kept] = heads[slot];
+            heads[slot] = kept;
+            kept++;
+        }
+
+        // Renumber the polygons, dropping repeated vertices (in place:
+        // the old end of each polygon is read before it is overwritten)
+        int np = 0, n = 0, end = 0;
+        int[] filePolygons = new int[numPolygons];
+        for (int p = 0; p < numPolygons; p++) {
+            int start = end;
+            end = offset[p+1];
+            int first = n;
+            for (int i = start; i < end; i++) {
+                int v = remap[index[i]];
+                if (n == first || index[n-1] != v)
+                  index[n++] = v;
+            }
+            if (n - first > 1 && index[n-1] == index[first])
+              n--;
+            if (n - first < 3) {
+                n = first;
+            } else {
+                filePolygons[np] = (filePolygon != null) ? filePolygon[p] : p;
+                offset[++np] = n;
+            }
+        }
+
+        int removed = nv - kept;
+        numVertices = kept;
+        points = Arrays.copyOf(points, 3 * kept);
+        normals = new double[3 * kept];
+        numPolygons = np;
+        offset = Arrays.copyOf(offset, np + 1);
+        index = Arrays.copyOf(index, n);
+        polyNormals = new double[3 * np];
+        fileVertex = Arrays.copyOf(fileVertices, kept);
+        filePolygon = Arrays.copyOf(filePolygons, np);
+        clearAdjacency();
+
+        return removed;
+    }
+
+    // Packed coordinates of a grid cell (21 bits each: cells far apart
+    // may share a key, which only adds candidates to check)
+    private static long cellKey(long cx, long cy, long cz)
+    {
+        return ((cx & 0x1fffff) << 42) | ((cy & 0x1fffff) << 21) |
+            (cz & 0x1fffff);
+    }
+
+    // Slot of a cell in the weld hash table (empty if not there yet)
+    private static int cellSlot(long[] keys, int[] heads, long key)
+    {
+        long h = key * 0x9e3779b97f4a7c15L;
+        int slot = (int)(h ^ (h >>> 32)) & (keys.length - 1);
+        while (heads[slot] >= 0 && keys[slot] != key) {
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        return slot;
+    }
+}
@@ -4,7 +4,6 @@
  * Doug DeCarlo
  */
 
-import javax.media.opengl.GL;
 import javax.vecmath.*;
 
 public class Ellipsoid extends UVShape
@@ -18,50 +17,51 @@ public class Ellipsoid extends UVShape
               0, 2*Math.PI, -Math.PI/2, Math.PI/2);
 
         // Ellipsoid parameters: axis lengths in x, y and z directions
-        ax = addParameter(new DoubleParameter("Ax", 1, 0.05, 10, 2));
-        ay = addParameter(new DoubleParameter("Ay", 1, 0.05, 10, 2));
-        az = addParameter(new DoubleParameter("Az", 1, 0.05, 10, 2));
+        ax = addUniform(new DoubleParameter("Ax", 1, 0.05, 10, 2), "ax");
+        ay = addUniform(new DoubleParameter("Ay", 1, 0.05, 10, 2), "ay");
+        az = addUniform(new DoubleParameter("Az", 1, 0.05, 10, 2), "az");
 
-        // Use my own vertex program
-        slProgram.vShaderFile = "ellipsoid.vp";
+        // Surface for the vertex program
+        setSurfaceShader("ellipsoid.glsl");
     }
 
-    // Tell the graphics processor the ellipsoid parameters
-    protected void bindUniform(GL gl)
+    // Compute geometry of vertices
+    public void evalPosition(double u, double v, Point3d p)
+    {
+        evalTrigPosition(Math.cos(u), Math.sin(u), Math.cos(v), Math.sin(v),
+                         p);
+    }
+    
+    // Compute normal vector
+    public void evalNormal(double u, double v, Vector3d n)
     {
-        float ax = (float)this.ax.value;
-        float ay = (float)this.ay.value;
-        float az = (float)this.az.value;
-        
-        int v;
+        evalTrigNormal(Math.cos(u), Math.sin(u), Math.cos(v), Math.sin(v), n);
+    }
 
-        v = gl.glGetUniformLocationARB(slProgram.program, "ax");
-        gl.glUniform1fARB(v, (float)ax);
-        
-        v = gl.glGetUniformLocationARB(slProgram.program, "ay");
-        gl.glUniform1fARB(v, (float)ay);
-        
-        v = gl.glGetUniformLocationARB(slProgram.program, "az");
-        gl.glUniform1fARB(v, (float)az);
+    // The ellipsoid only depends on sin/cos of u and v, so the grid can
+    // be evaluated from tables
+    protected boolean hasTrigEval()
+    {
+        return true;
     }
 
-    // Compute geometry of vertices
-    public void evalPosition(double u, double v, Point3d p)
+    protected void evalTrigPosition(double cosu, double sinu,
+                                    double cosv, double sinv, Point3d p)
     {
         // ... 
-    	double xCoord = ax.value * Math.cos(u) * Math.cos(v);
-    	double yCoord = ay.value * Math.sin(u) * Math.cos(v);
-    	double zCoord = az.value * Math.sin(v);
+    	double xCoord = ax.value * cosu * cosv;
+    	double yCoord = ay.value * sinu * cosv;
+    	double zCoord = az.value * sinv;
         p.set(xCoord, yCoord, zCoord);
     }
-    
-    // Compute normal vector
-    public void evalNormal(double u, double v, Vector3d n)
+
+    protected void evalTrigNormal(double cosu, double sinu,
+                                  double cosv, double sinv, Vector3d n)
     {
         // ...   (placeholder)
-    	double normx = ay.value * az.value *Math.cos(u) * Math.cos(v);
-    	double normy = ax.value * az.value *Math.sin(u) * Math.cos(v);
-    	double normz = ax.value * ay.value *Math.sin(v);
+    	double normx = ay.value * az.value * cosu * cosv;
+    	double normy = ax.value * az.value * sinu * cosv;
+    	double normz = ax.value * ay.value * sinv;
         n.set(normx, normy, normz);
     }
 }
@@ -0,0 +1,155 @@
+/* class FloatMesh
+ * Single-precision storage for a polygon mesh
+ *
+ * The same layout as CompactMesh, but with positions and normals kept
+ * as floats (which is what is sent to GL anyway), for half the memory.
+ * Arithmetic that accumulates is still done in double: Newell's method
+ * for the polygon normals, and the sums of polygon normals at each
+ * vertex; only the results are rounded to float.
+ *
+ * The views and normals are those of MeshStorage.  Code that needs the
+ * geometry in double precision arrays (such as the BVH or the
+ * decimator) works on a CompactMesh copy from toCompact().
+ */
+
+import javax.vecmath.*;
+
+public class FloatMesh extends MeshStorage
+{
+    // Vertices: positions and normals
+    float[] points;
+    float[] normals;
+
+    // Polygons: index buffer, offsets into it, and normals
+    int[] offset;
+    int[] index;
+    float[] polyNormals;
+
+    // Constructor: copy of the geometry of m, rounded to float (the
+    // polygon arrays are shared)
+    public FloatMesh(CompactMesh m)
+    {
+        numVertices = m.numVertices;
+        points = toFloat(m.points, 3 * m.numVertices);
+        normals = toFloat(m.normals, 3 * m.numVertices);
+
+        numPolygons = m.numPolygons;
+        offset = m.offset;
+        index = m.index;
+        polyNormals = toFloat(m.polyNormals, 3 * m.numPolygons);
+
+        fileVertex = m.fileVertex;
+        filePolygon = m.filePolygon;
+    }
+
+    // Constructor: mesh with the given polygons (the arrays are used
+    // directly), and positions and normals all zero
+    FloatMesh(int nv, int np, int[] offsetArray, int[] indexArray)
+    {
+        numVertices = nv;
+        points = new float[3 * nv];
+        normals = new float[3 * nv];
+
+        numPolygons = np;
+        offset = offsetArray;
+        index = indexArray;
+        polyNormals = new float[3 * np];
+    }
+
+    // The first n values of a, as floats
+    private static float[] toFloat(double[] a, int n)
+    {
+        float[] f = new float[n];
+        for (int i = 0; i < n; i++) {
+            f[i] = (float)a[i];
+        }
+        return f;
+    }
+
+    // The first n values of a, as doubles
+    private static double[] toDouble(float[] a, int n)
+    {
+        double[] d = new double[n];
+        for (int i = 0; i < n; i++) {
+            d[i] = a[i];
+        }
+        return d;
+    }
+
+    // Copy of the mesh in double precision (the polygon arrays are
+    // shared)
+    public CompactMesh toCompact()
+    {
+        CompactMesh m = new CompactMesh(numVertices,
+                                        toDouble(points, 3 * numVertices),
+                                        numPolygons, offset, index);
+        m.normals = toDouble(normals, 3 * numVertices);
+        m.polyNormals = toDouble(polyNormals, 3 * numPolygons);
+        m.fileVertex = fileVertex;
+        m.filePolygon = filePolygon;
+        return m;
+    }
+
+    // Bytes taken by the positions and normals, in single precision
+    // and as doubles (in a CompactMesh)
+    public long floatBytes()
+    {
+        return 4L * (6L * numVertices + 3L * numPolygons);
+    }
+    public long doubleBytes()
+    {
+        return 2 * floatBytes();
+    }
+
+    // ---------------------------------------------------------------------
+    // Access to the arrays (for the views and normals in MeshStorage)
+
+    double coord(int v, int k)
+    {
+        return points[3*v+k];
+    }
+    void vertexNormal(int v, double[] n, int off)
+    {
+        n[off] = normals[3*v];
+        n[off+1] = normals[3*v+1];
+        n[off+2] = normals[3*v+2];
+    }
+    void setVertexNormal(int v, double[] n, int off)
+    {
+        normals[3*v] = (float)n[off];
+        normals[3*v+1] = (float)n[off+1];
+        normals[3*v+2] = (float)n[off+2];
+    }
+    void polygonNormal(int p, double[] n, int off)
+    {
+        n[off] = polyNormals[3*p];
+        n[off+1] = polyNormals[3*p+1];
+        n[off+2] = polyNormals[3*p+2];
+    }
+    void setPolygonNormal(int p, double[] n, int off)
+    {
+        polyNormals[3*p] = (float)n[off];
+        polyNormals[3*p+1] = (float)n[off+1];
+        polyNormals[3*p+2] = (float)n[off+2];
+    }
+    public int polygonSize(int p)
+    {
+        return offset[p+1] - offset[p];
+    }
+    public int corner(int p, int i)
+    {
+        return index[offset[p] + i];
+    }
+    void setCorner(int p, int i, int v)
+    {
+        index[offset[p] + i] = v;
+    }
+
+    // Move vertex v to p (call computeNormals() afterwards)
+    public void setPoint(int v, Point3d p)
+    {
+        points[3*v] = (float)p.x;
+        points[3*v+1] = (float)p.y;
+        points[3*v+2] = (float)p.z;
+    }
+}
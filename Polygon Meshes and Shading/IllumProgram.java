@@ -7,6 +7,8 @@ import javax.media.opengl.GL;
 public class IllumProgram extends SlangProgram {
     protected BooleanParameter glslOn, phongModel, toonShading;
     private DoubleParameter toonLow, toonHigh;
+    // Their uniform variables
+    private Uniform bindPhong, bindToon, bindToonLow, bindToonHigh;
 
     public IllumProgram(String name, Shape shape)
     {
@@ -25,24 +27,20 @@ public class IllumProgram extends SlangProgram {
         // Toon shading parameters
         toonHigh = addParameter(new DoubleParameter("Toon High", 0.7, 0, 1,1));
         toonLow = addParameter(new DoubleParameter("Toon Low", 0.5, 0, 1, 1));
+
+        bindPhong = addUniform("phong");
+        bindToon = addUniform("toon");
+        bindToonLow = addUniform("toonLow");
+        bindToonHigh = addUniform("toonHigh");
     }
 
-    // Send (uniform) values to fragment program
+    // Send (uniform) values to fragment program (those that changed)
     protected void bindUniform(GL gl)
     {
-        int v;
-
-        v = gl.glGetUniformLocationARB(program, "phong");
-        gl.glUniform1iARB(v, phongModel.value ? 1 : 0);
-
-        v = gl.glGetUniformLocationARB(program, "toon");
-        gl.glUniform1iARB(v, toonShading.value ? 1 : 0);
-
-        v = gl.glGetUniformLocationARB(program, "toonLow");
-        gl.glUniform1fARB(v, (float)toonLow.value);
-
-        v = gl.glGetUniformLocationARB(program, "toonHigh");
-        gl.glUniform1fARB(v, (float)toonHigh.value);
+        setUniform(gl, bindPhong, phongModel.value);
+        setUniform(gl, bindToon, toonShading.value);
+        setUniform(gl, bindToonLow, (float)toonLow.value);
+        setUniform(gl, bindToonHigh, (float)toonHigh.value);
 
         // Bind values for shape
         super.bindUniform(gl);
@@ -0,0 +1,37 @@
+/* class LoadProgress
+ * Progress of loading a mesh: the step being done, and the fraction of
+ * it done so far
+ *
+ * It is updated by the loading threads and read by the display while
+ * the mesh loads in the background (see MeshPreview).
+ */
+
+public class LoadProgress
+{
+    // Current step, and the fraction of it done (0 to 1)
+    private volatile String step = "Starting";
+    private volatile double fraction = 0;
+
+    // Start a new step
+    public void begin(String stepName)
+    {
+        fraction = 0;
+        step = stepName;
+    }
+
+    // Report the fraction of the current step done
+    public void update(double done)
+    {
+        fraction = done;
+    }
+
+    // Accessors
+    public String getStep()
+    {
+        return step;
+    }
+    public double getFraction()
+    {
+        return fraction;
+    }
+}
@@ -0,0 +1,408 @@
+/* class MappedMesh
+ * Polygon mesh kept out of core, in memory-mapped temporary files
+ *
+ * For OBJ files too big for the Java heap: the file is streamed twice
+ * (ObjParser.stream), once to count the vertices and polygons and find
+ * the bounding box, and once to write the (rescaled) positions and the
+ * polygons straight into mapped files.  Nothing is kept per vertex or
+ * polygon on the heap, so the size of a mesh is bounded by disk and
+ * address space, not by -Xmx.
+ *
+ * Positions and normals are stored as floats (as sent to GL).  The
+ * polygons are stored like in CompactMesh (index buffer plus offsets),
+ * and also split into fans in a triangle index buffer, which is drawn
+ * straight from the mapped files.  Vertex and Polygon objects are only
+ * made on demand, as views (those of MeshStorage).
+ */
+
+import javax.vecmath.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import javax.media.opengl.GL;
+
+public class MappedMesh extends MeshStorage
+{
+    // Vertices: positions and normals (x,y,z floats)
+    Store points, normals;
+
+    // Polygons: offsets (longs) into the index buffer (ints), normals
+    // (floats), and the triangles of their fans (3 ints each)
+    long numCorners, numTriangles;
+    Store offset, index, polyNormals, triangles;
+
+    // Largest mapped region
+    private static final long REGION = 1L << 30;
+
+    // ---------------------------------------------------------------------
+
+    // A large array of numbers in a mapped temporary file, mapped in
+    // regions of at most REGION bytes that hold whole elements (of
+    // elementSize bytes), in native byte order (as GL wants it)
+    static class Store
+    {
+        private MappedByteBuffer[] regions;
+        private long regionSize;
+
+        // A store of count elements
+        Store(long count, int elementSize)
+            throws IOException
+        {
+            long bytes = Math.max(1, count * elementSize);
+            regionSize = (REGION / elementSize) * elementSize;
+
+            File path = File.createTempFile("mesh", ".map");
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                file.setLength(bytes);
+                FileChannel channel = file.getChannel();
+
+                int n = (int)((bytes + regionSize - 1) / regionSize);
+                regions = new MappedByteBuffer[n];
+                for (int r = 0; r < n; r++) {
+                    long start = r * regionSize;
+                    regions[r] =
+                        channel.map(FileChannel.MapMode.READ_WRITE, start,
+                                    Math.min(regionSize, bytes - start));
+                    regions[r].order(ByteOrder.nativeOrder());
+                }
+            } finally {
+                // The mappings stay valid: the file only goes away
+                // (where it can be deleted while mapped) once unmapped
+                file.close();
+                if (!path.delete())
+                  path.deleteOnExit();
+            }
+        }
+
+        // Number of regions, and region r (for drawing from)
+        int numRegions()
+        {
+            return regions.length;
+        }
+        ByteBuffer region(int r)
+        {
+            return regions[r];
+        }
+
+        // Access by the number of a float/int/long in the store
+        float getFloat(long i)
+        {
+            return regions[regionOf(4*i)].getFloat(offsetIn(4*i));
+        }
+        void putFloat(long i, float f)
+        {
+            regions[regionOf(4*i)].putFloat(offsetIn(4*i), f);
+        }
+        int getInt(long i)
+        {
+            return regions[regionOf(4*i)].getInt(offsetIn(4*i));
+        }
+        void putInt(long i, int v)
+        {
+            regions[regionOf(4*i)].putInt(offsetIn(4*i), v);
+        }
+        long getLong(long i)
+        {
+            return regions[regionOf(8*i)].getLong(offsetIn(8*i));
+        }
+        void putLong(long i, long v)
+        {
+            regions[regionOf(8*i)].putLong(offsetIn(8*i), v);
+        }
+
+        // Region holding byte b, and its position there
+        private int regionOf(long b)
+        {
+            return (int)(b / regionSize);
+        }
+        private int offsetIn(long b)
+        {
+            return (int)(b % regionSize);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Loading
+
+    // Read an OBJ file into mapped files; the mesh is rescaled like
+    // CompactMesh.rescale() (but without a pass of its own) and has its
+    // normals computed
+    public static MappedMesh load(String filename)
+        throws IOException
+    {
+        return load(filename, new LoadProgress());
+    }
+
+    // Same, reporting each pass to progress
+    public static MappedMesh load(String filename, LoadProgress progress)
+        throws IOException
+    {
+        progress.begin("Scanning");
+        // First pass: counts and bounding box
+        final double[] bbmin = { Double.POSITIVE_INFINITY,
+                                 Double.POSITIVE_INFINITY,
+                                 Double.POSITIVE_INFINITY };
+        final double[] bbmax = { Double.NEGATIVE_INFINITY,
+                                 Double.NEGATIVE_INFINITY,
+                                 Double.NEGATIVE_INFINITY };
+        final long[] counts = new long[4];  // vertices, polygons,
+                                            // corners, triangles
+        ObjParser.stream(filename, new ObjParser.Sink() {
+                public void vertex(double x, double y, double z) {
+                    bbmin[0] = Math.min(bbmin[0], x);
+                    bbmin[1] = Math.min(bbmin[1], y);
+                    bbmin[2] = Math.min(bbmin[2], z);
+                    bbmax[0] = Math.max(bbmax[0], x);
+                    bbmax[1] = Math.max(bbmax[1], y);
+                    bbmax[2] = Math.max(bbmax[2], z);
+                    counts[0]++;
+                }
+                public void corner(int value, boolean relative) {
+                    counts[2]++;
+                }
+                public void endPolygon(int size) {
+                    counts[1]++;
+                    counts[3] += Math.max(0, size - 2);
+                }
+            }, progress);
+        if (counts[0] > Integer.MAX_VALUE || counts[1] >= Integer.MAX_VALUE)
+          throw new IOException("too many vertices or polygons");
+
+        final MappedMesh m = new MappedMesh((int)counts[0], (int)counts[1],
+                                            counts[2], counts[3]);
+
+        // Rescaling: center the bounding box, and fit it in the view
+        final double[] center = new double[3];
+        double maxBBox = 0;
+        for (int k = 0; k < 3; k++) {
+            center[k] = 0.5 * (bbmin[k] + bbmax[k]);
+            maxBBox = Math.max(maxBBox, bbmax[k] - bbmin[k]);
+        }
+        final double s = (maxBBox > 0) ? 3.2/maxBBox : 1;
+
+        // Second pass: fill in the vertices and polygons
+        progress.begin("Reading");
+        ObjParser.stream(filename, new ObjParser.Sink() {
+                int v = 0, p = 0;
+                long c = 0, t = 0;
+
+                public void vertex(double x, double y, double z) {
+                    m.points.putFloat(3L*v, (float)((x - center[0]) * s));
+                    m.points.putFloat(3L*v+1, (float)((y - center[1]) * s));
+                    m.points.putFloat(3L*v+2, (float)((z - center[2]) * s));
+                    v++;
+                }
+                public void corner(int value, boolean relative)
+                    throws IOException {
+                    int i = relative ? v - value : value - 1;
+                    if (i < 0 || i >= m.numVertices)
+                      throw new IOException("vertex index out of range: " +
+                                            (i + 1));
+                    m.index.putInt(c++, i);
+                }
+                public void endPolygon(int size) {
+                    p++;
+                    m.offset.putLong(p, c);
+
+                    // Triangles of its fan
+                    long first = c - size;
+                    for (long i = first + 2; i < c; i++) {
+                        m.triangles.putInt(3*t, m.index.getInt(first));
+                        m.triangles.putInt(3*t+1, m.index.getInt(i-1));
+                        m.triangles.putInt(3*t+2, m.index.getInt(i));
+                        t++;
+                    }
+                }
+            }, progress);
+
+        progress.begin("Computing normals");
+        m.computeNormals();
+        return m;
+    }
+
+    // Constructor: mapped files for a mesh of the given size
+    private MappedMesh(int nv, int np, long nc, long nt)
+        throws IOException
+    {
+        numVertices = nv;
+        numPolygons = np;
+        numCorners = nc;
+        numTriangles = nt;
+
+        points = new Store(nv, 12);
+        normals = new Store(nv, 12);
+        offset = new Store(np + 1L, 8);
+        index = new Store(nc, 4);
+        polyNormals = new Store(np, 12);
+        triangles = new Store(nt, 12);
+    }
+
+    // ---------------------------------------------------------------------
+    // Normals
+
+    // Compute all polygon and vertex normal vectors, like
+    // CompactMesh.computeNormals(), in passes over the mapped files
+    public void computeNormals()
+    {
+        for (long i = 0; i < 3L * numVertices; i++) {
+            normals.putFloat(i, 0);
+        }
+
+        // Area-weighted polygon normals (Newell's method), added to the
+        // normals of their vertices
+        for (int p = 0; p < numPolygons; p++) {
+            long start = offset.getLong(p), end = offset.getLong(p+1);
+            double nx = 0, ny = 0, nz = 0;
+            for (long i = start; i < end; i++) {
+                long a = 3L * index.getInt(i);
+                long b = 3L * index.getInt((i+1 < end) ? i+1 : start);
+                double ax = points.getFloat(a), bx = points.getFloat(b);
+                double ay = points.getFloat(a+1), by = points.getFloat(b+1);
+                double az = points.getFloat(a+2), bz = points.getFloat(b+2);
+
+                nx += (ay - by) * (az + bz);
+                ny += (az - bz) * (ax + bx);
+                nz += (ax - bx) * (ay + by);
+            }
+            for (long i = start; i < end; i++) {
+                long v = 3L * index.getInt(i);
+                normals.putFloat(v, (float)(normals.getFloat(v) + nx));
+                normals.putFloat(v+1, (float)(normals.getFloat(v+1) + ny));
+                normals.putFloat(v+2, (float)(normals.getFloat(v+2) + nz));
+            }
+
+            double len = Math.sqrt(nx*nx + ny*ny + nz*nz);
+            polyNormals.putFloat(3L*p, (float)(nx / len));
+            polyNormals.putFloat(3L*p+1, (float)(ny / len));
+            polyNormals.putFloat(3L*p+2, (float)(nz / len));
+        }
+
+        for (int v = 0; v < numVertices; v++) {
+            normalize(normals, 3L*v);
+        }
+    }
+
+    // Normalize the vector at position i of a store
+    private static void normalize(Store s, long i)
+    {
+        double x = s.getFloat(i), y = s.getFloat(i+1), z = s.getFloat(i+2);
+        double norm = 1.0 / Math.sqrt(x*x + y*y + z*z);
+        s.putFloat(i, (float)(x * norm));
+        s.putFloat(i+1, (float)(y * norm));
+        s.putFloat(i+2, (float)(z * norm));
+    }
+
+    // Move vertex v to p (call computeNormals() afterwards)
+    public void setPoint(int v, Point3d p)
+    {
+        points.putFloat(3L*v, (float)p.x);
+        points.putFloat(3L*v+1, (float)p.y);
+        points.putFloat(3L*v+2, (float)p.z);
+    }
+
+    // ---------------------------------------------------------------------
+    // Drawing
+
+    // Draw the polygons: smooth shaded straight from the mapped files
+    // (one glDrawElements per region of triangles), or flat shaded in
+    // immediate mode (each polygon needs its own normal).  The vertex
+    // arrays need the positions in a single region (up to ~89 million
+    // vertices); larger meshes are drawn in immediate mode too.
+    public void draw(GL gl, boolean smooth)
+    {
+        if (smooth && points.numRegions() == 1) {
+            gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+            gl.glEnableClientState(GL.GL_NORMAL_ARRAY);
+            gl.glVertexPointer(3, GL.GL_FLOAT, 0, points.region(0));
+            gl.glNormalPointer(GL.GL_FLOAT, 0, normals.region(0));
+            for (int r = 0; r < triangles.numRegions(); r++) {
+                ByteBuffer tris = triangles.region(r);
+                gl.glDrawElements(GL.GL_TRIANGLES, tris.capacity() / 4,
+                                  GL.GL_UNSIGNED_INT, tris);
+            }
+            gl.glDisableClientState(GL.GL_NORMAL_ARRAY);
+            gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+            return;
+        }
+
+        for (int p = 0; p < numPolygons; p++) {
+            gl.glBegin(GL.GL_POLYGON);
+            if (!smooth) {
+                gl.glNormal3f(polyNormals.getFloat(3L*p),
+                              polyNormals.getFloat(3L*p+1),
+                              polyNormals.getFloat(3L*p+2));
+            }
+            for (long i = offset.getLong(p); i < offset.getLong(p+1); i++) {
+                long v = 3L * index.getInt(i);
+                if (smooth) {
+                    gl.glNormal3f(normals.getFloat(v), normals.getFloat(v+1),
+                                  normals.getFloat(v+2));
+                }
+                gl.glVertex3f(points.getFloat(v), points.getFloat(v+1),
+                              points.getFloat(v+2));
+            }
+            gl.glEnd();
+        }
+    }
+
+    // Draw the outlines of the polygons
+    public void drawWireframe(GL gl)
+    {
+        for (int p = 0; p < numPolygons; p++) {
+            gl.glBegin(GL.GL_LINE_LOOP);
+            for (long i = offset.getLong(p); i < offset.getLong(p+1); i++) {
+                long v = 3L * index.getInt(i);
+                gl.glVertex3f(points.getFloat(v), points.getFloat(v+1),
+                              points.getFloat(v+2));
+            }
+            gl.glEnd();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Access to the mapped files (for the views in MeshStorage)
+
+    double coord(int v, int k)
+    {
+        return points.getFloat(3L*v+k);
+    }
+    void vertexNormal(int v, double[] n, int off)
+    {
+        for (int k = 0; k < 3; k++) {
+            n[off+k] = normals.getFloat(3L*v+k);
+        }
+    }
+    void setVertexNormal(int v, double[] n, int off)
+    {
+        for (int k = 0; k < 3; k++) {
+            normals.putFloat(3L*v+k, (float)n[off+k]);
+        }
+    }
+    void polygonNormal(int p, double[] n, int off)
+    {
+        for (int k = 0; k < 3; k++) {
+            n[off+k] = polyNormals.getFloat(3L*p+k);
+        }
+    }
+    void setPolygonNormal(int p, double[] n, int off)
+    {
+        for (int k = 0; k < 3; k++) {
+            polyNormals.putFloat(3L*p+k, (float)n[off+k]);
+        }
+    }
+    public int polygonSize(int p)
+    {
+        return (int)(offset.getLong(p+1) - offset.getLong(p));
+    }
+    public int corner(int p, int i)
+    {
+        return index.getInt(offset.getLong(p) + i);
+    }
+    void setCorner(int p, int i, int v)
+    {
+        index.putInt(offset.getLong(p) + i, v);
+    }
+}
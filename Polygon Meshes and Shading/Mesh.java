@@ -5,10 +5,12 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.awt.*;
 import java.awt.event.*;
 
 import javax.swing.*;
+import javax.swing.Timer;
 
 public class Mesh extends JFrame
 {
@@ -18,6 +20,25 @@ public class Mesh extends JFrame
     // Viewed shape
     static Shape shape;
 
+    // Container of the parameter controls (rebuilt when the shape is
+    // replaced), and its layout
+    private Container controls;
+    private GridBagLayout controlLayout;
+    private GridBagConstraints controlCon;
+
+    // Thread that loads mesh files in the background
+    private static final ExecutorService loader =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "mesh-load");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // How often to redraw the progress of a load (ms)
+    static final int PROGRESS_DELAY = 100;
+
     // Method to refresh entire display
     public static void refresh()
     {
@@ -33,8 +54,8 @@ public class Mesh extends JFrame
         if (!SwingUtilities.isEventDispatchThread())
           return;
 
-        // Nothing to do in this case...
-        // (primitive geometry is computed on the fly...)
+        // Primitives re-evaluate their geometry (when next drawn)
+        shape.recompute();
     }
 
     // Construct GUI for a set of parameters
@@ -201,6 +222,10 @@ public class Mesh extends JFrame
                      shape.getOptions(), 
                      "Object parameters");
 
+        controls = cc;
+        controlLayout = clayout;
+        controlCon = ccon;
+
         // ------------------------------------------------------
 
         // Exit when window closes
@@ -219,22 +244,132 @@ public class Mesh extends JFrame
         pack();
         setVisible(true);
     }
+
+    // Load a mesh file in the background, showing preview (which should
+    // be the current shape) until it is ready, and then the mesh
+    public void load(final String filename, final boolean compact,
+                     final MeshPreview preview)
+    {
+        final LoadProgress progress = preview.getProgress();
+        final Future<PolyMesh> result = loader.submit(
+            new Callable<PolyMesh>() {
+                public PolyMesh call() throws Exception {
+                    preview.sample(filename);
+                    return new PolyMesh(filename, compact, progress);
+                }
+            });
+
+        // Poll for it on the event thread, which also does the swap
+        final Timer timer = new Timer(PROGRESS_DELAY, null);
+        timer.addActionListener(
+            new ActionListener()
+            {
+                public void actionPerformed(ActionEvent e)
+                {
+                    if (!result.isDone()) {
+                        setTitle("Loading " + filename + ": " +
+                                 progress.getStep() + " (" +
+                                 Math.round(100 * progress.getFraction()) +
+                                 "%)");
+                        worldDraw.display();
+                        return;
+                    }
+                    timer.stop();
+                    setTitle(filename);
+
+                    try {
+                        showShape(result.get());
+                    } catch (InterruptedException ie) {
+                        System.exit(1);
+                    } catch (ExecutionException ee) {
+                        ee.getCause().printStackTrace();
+                        System.out.println("Error: " +
+                                           ee.getCause().getMessage());
+                        System.exit(1);
+                    }
+                }
+            });
+        timer.start();
+    }
+
+    // Replace the shape (keeping the values of the parameters it shares
+    // with the old one), and its controls
+    public void showShape(Shape sh)
+    {
+        sh.copyParameters(shape);
+        shape = sh;
+        worldDraw.setShape(sh);
+
+        controls.removeAll();
+        makeControls(controls, controlLayout, controlCon,
+                     shape.getParams(),
+                     shape.getOptions(),
+                     "Object parameters");
+        getContentPane().validate();
+        repaint();
+
+        worldDraw.display();
+    }
     
     public static void main(String args[])
     {
         boolean debug = true;
+        boolean compact = false;
+        String filename = null;
 
         // Parse command-line arguments
         try {
             for (int i = 0; i < args.length; i++) {
                 if (args[i].equals("-help")) {
-                    System.out.println("Usage: java Mesh <filename>");
-                    System.out.println("   or: java Mesh <shape> [uSize vSize]");
+                    System.out.println("Usage: java Mesh [-compact] [-nocache] " +
+                                       "[-weld eps] [-reorder] [-lod]");
+                    System.out.println("                 [-stream] [-float] " +
+                                       "[-quantize] <filename>");
+                    System.out.println("   or: java Mesh [-float] " +
+                                       "[-adaptive tol] <shape> " +
+                                       "[uSize vSize]");
                     System.out.println(" where <shape> is one of:");
                     System.out.println(" -ellipsoid  -torus");
+                    System.out.println(" -compact stores the mesh in flat arrays");
+                    System.out.println(" -nocache ignores <filename>.pmc " +
+                                       "(binary cache of the mesh)");
+                    System.out.println(" -weld merges vertices closer " +
+                                       "than eps (in file units)");
+                    System.out.println(" -reorder puts the polygons in " +
+                                       "vertex cache order");
+                    System.out.println(" -lod makes levels of detail " +
+                                       "of large meshes");
+                    System.out.println(" -stream loads the mesh out of " +
+                                       "core (memory-mapped files)");
+                    System.out.println(" -float keeps positions and " +
+                                       "normals in single precision");
+                    System.out.println(" -quantize keeps positions in " +
+                                       "16 bits and normals oct-encoded");
+                    System.out.println(" -adaptive tessellates shapes " +
+                                       "to within tol of the surface");
                     System.exit(0);
                 } else if (args[i].equals("-nodebug")) {
                     debug = false;
+                } else if (args[i].equals("-compact")) {
+                    compact = true;
+                } else if (args[i].equals("-nocache")) {
+                    PolyMesh.useCache = false;
+                } else if (args[i].equals("-stream")) {
+                    PolyMesh.outOfCore = true;
+                } else if (args[i].equals("-float")) {
+                    PolyMesh.singlePrecision = true;
+                    UVShape.singlePrecision = true;
+                } else if (args[i].equals("-adaptive")) {
+                    UVShape.adaptiveTolerance =
+                        Double.parseDouble(args[++i]);
+                } else if (args[i].equals("-quantize")) {
+                    PolyMesh.quantize = true;
+                } else if (args[i].equals("-reorder")) {
+                    PolyMesh.reorder = true;
+                } else if (args[i].equals("-lod")) {
+                    PolyMesh.useLevelsOfDetail = true;
+                } else if (args[i].equals("-weld")) {
+                    PolyMesh.weldEpsilon = Double.parseDouble(args[++i]);
                 } else if (args[i].charAt(0) == '-') {
                     // Primitive
                     String primName = args[i].substring(1);
@@ -257,8 +392,9 @@ public class Mesh extends JFrame
                         throw new Exception("Unknown primitive: " + primName);
                     }
                 } else {
-                    // Filename
-                    shape = new PolyMesh(args[i]);
+                    // Filename (loaded once the window is up)
+                    filename = args[i];
+                    shape = new MeshPreview(filename, new LoadProgress());
                 }
             }
             if (shape == null)
@@ -272,6 +408,8 @@ public class Mesh extends JFrame
         // Create main window
         try {
             Mesh m = new Mesh(debug);
+            if (shape instanceof MeshPreview)
+              m.load(filename, compact, (MeshPreview)shape);
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
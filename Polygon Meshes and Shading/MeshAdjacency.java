@@ -0,0 +1,53 @@
+/* class MeshAdjacency
+ * Vertex -> polygon adjacency of an indexed mesh
+ *
+ * The polygons that use vertex v are
+ *   polys[start[v]] ... polys[start[v+1]-1]
+ * in increasing order (a polygon that uses a vertex twice is listed
+ * twice).  Gathering over these lists visits the polygons of a vertex
+ * in the same order as a loop over all polygons would, so sums come
+ * out exactly the same.
+ */
+
+public class MeshAdjacency
+{
+    int[] start;
+    int[] polys;
+
+    // Build from polygons given as an index buffer plus offsets
+    public MeshAdjacency(int numVertices, int numPolygons,
+                         int[] offset, int[] index)
+    {
+        start = new int[numVertices + 1];
+        polys = new int[offset[numPolygons]];
+
+        // Count polygons per vertex
+        for (int i = 0; i < offset[numPolygons]; i++) {
+            start[index[i] + 1]++;
+        }
+        for (int v = 0; v < numVertices; v++) {
+            start[v+1] += start[v];
+        }
+
+        // Fill in polygons (in increasing order)
+        int[] fill = new int[numVertices];
+        for (int p = 0; p < numPolygons; p++) {
+            for (int i = offset[p]; i < offset[p+1]; i++) {
+                int v = index[i];
+                polys[start[v] + fill[v]++] = p;
+            }
+        }
+    }
+
+    // Number of polygons using vertex v
+    public int degree(int v)
+    {
+        return start[v+1] - start[v];
+    }
+
+    // The i-th polygon using vertex v
+    public int polygon(int v, int i)
+    {
+        return polys[start[v] + i];
+    }
+}
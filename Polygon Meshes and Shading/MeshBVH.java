@@ -0,0 +1,586 @@
+/* class MeshBVH
+ * Bounding volume hierarchy over the polygons of a mesh
+ *
+ * Built top-down with the surface area heuristic (SAH), evaluated on a
+ * fixed number of bins along each axis, and stored flattened: node n
+ * has its bounding box at bounds[6n..6n+5] (min x,y,z then max x,y,z);
+ * an inner node (count[n] == 0) has its children at n+1 and first[n],
+ * a leaf holds polygons prims[first[n]] ... prims[first[n]+count[n]-1].
+ *
+ * Queries: closest ray intersection, nearest point on the mesh, and the
+ * polygons whose bounding boxes overlap a box.  Polygons are treated as
+ * triangle fans (as they are drawn).
+ */
+
+import java.util.*;
+
+public class MeshBVH
+{
+    // Result of a ray or nearest-point query
+    public static class Hit
+    {
+        // Polygon hit (or nearest), its distance along the ray (in units
+        // of the ray direction) or from the query point, and the point
+        public int polygon = -1;
+        public double t = Double.POSITIVE_INFINITY;
+        public double[] point = new double[3];
+    }
+
+    // Mesh the hierarchy was built for
+    private CompactMesh mesh;
+
+    // Flattened nodes
+    int numNodes;
+    double[] bounds;
+    int[] first, count;
+
+    // Polygons in leaf order
+    int[] prims;
+
+    // Build parameters
+    private static final int BINS = 12;
+    private static final int MAX_LEAF = 4;
+
+    // Per polygon bounding boxes and centroids (only while building)
+    private double[] box, centroid;
+
+    // Constructor: build the hierarchy
+    public MeshBVH(CompactMesh m)
+    {
+        mesh = m;
+        int np = m.numPolygons;
+
+        box = new double[6 * np];
+        centroid = new double[3 * np];
+        for (int p = 0; p < np; p++) {
+            for (int k = 0; k < 3; k++) {
+                box[6*p+k] = Double.POSITIVE_INFINITY;
+                box[6*p+3+k] = Double.NEGATIVE_INFINITY;
+            }
+            for (int i = m.offset[p]; i < m.offset[p+1]; i++) {
+                int v = 3 * m.index[i];
+                for (int k = 0; k < 3; k++) {
+                    box[6*p+k] = Math.min(box[6*p+k], m.points[v+k]);
+                    box[6*p+3+k] = Math.max(box[6*p+3+k], m.points[v+k]);
+                }
+            }
+            for (int k = 0; k < 3; k++) {
+                centroid[3*p+k] = 0.5 * (box[6*p+k] + box[6*p+3+k]);
+            }
+        }
+
+        prims = new int[np];
+        for (int p = 0; p < np; p++) {
+            prims[p] = p;
+        }
+
+        int maxNodes = Math.max(1, 2 * np - 1);
+        bounds = new double[6 * maxNodes];
+        first = new int[maxNodes];
+        count = new int[maxNodes];
+        numNodes = 0;
+
+        if (np > 0) {
+            build(0, np);
+        } else {
+            // Empty mesh: a single empty leaf
+            numNodes = 1;
+            Arrays.fill(bounds, 0, 3, Double.POSITIVE_INFINITY);
+            Arrays.fill(bounds, 3, 6, Double.NEGATIVE_INFINITY);
+        }
+
+        bounds = Arrays.copyOf(bounds, 6 * numNodes);
+        first = Arrays.copyOf(first, numNodes);
+        count = Arrays.copyOf(count, numNodes);
+        box = null;
+        centroid = null;
+    }
+
+    // ---------------------------------------------------------------------
+    // Building
+
+    // Build the subtree for prims[lo..hi); returns its node index
+    private int build(int lo, int hi)
+    {
+        int node = numNodes++;
+        int n = hi - lo;
+
+        // Bounds of the polygons, and of their centroids
+        double[] cmin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                          Double.POSITIVE_INFINITY };
+        double[] cmax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                          Double.NEGATIVE_INFINITY };
+        for (int k = 0; k < 3; k++) {
+            bounds[6*node+k] = Double.POSITIVE_INFINITY;
+            bounds[6*node+3+k] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = lo; i < hi; i++) {
+            int p = prims[i];
+            for (int k = 0; k < 3; k++) {
+                bounds[6*node+k] = Math.min(bounds[6*node+k], box[6*p+k]);
+                bounds[6*node+3+k] = Math.max(bounds[6*node+3+k],
+                                              box[6*p+3+k]);
+                cmin[k] = Math.min(cmin[k], centroid[3*p+k]);
+                cmax[k] = Math.max(cmax[k], centroid[3*p+k]);
+            }
+        }
+
+        if (n <= MAX_LEAF) {
+            makeLeaf(node, lo, n);
+            return node;
+        }
+
+        // Find the best binned SAH split over all three axes
+        int bestAxis = -1, bestBin = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        int[] binCount = new int[BINS];
+        double[] binBox = new double[6 * BINS];
+        double[] rightArea = new double[BINS];
+        int[] rightCount = new int[BINS];
+
+        for (int axis = 0; axis < 3; axis++) {
+            double extent = cmax[axis] - cmin[axis];
+            if (!(extent > 0))
+              continue;
+
+            Arrays.fill(binCount, 0);
+            for (int b = 0; b < BINS; b++) {
+                emptyBox(binBox, b);
+            }
+            double scale = BINS / extent;
+            for (int i = lo; i < hi; i++) {
+                int p = prims[i];
+                int b = bin(centroid[3*p+axis], cmin[axis], scale);
+                binCount[b]++;
+                growBox(binBox, b, box, p);
+            }
+
+            // Sweep from the right, then from the left
+            double[] acc = new double[6];
+            emptyBox(acc, 0);
+            int cnt = 0;
+            for (int b = BINS - 1; b > 0; b--) {
+                cnt += binCount[b];
+                growBox(acc, 0, binBox, b);
+                rightCount[b] = cnt;
+                rightArea[b] = area(acc, 0);
+            }
+            emptyBox(acc, 0);
+            cnt = 0;
+            for (int b = 0; b < BINS - 1; b++) {
+                cnt += binCount[b];
+                growBox(acc, 0, binBox, b);
+                if (cnt == 0 || rightCount[b+1] == 0)
+                  continue;
+                double cost = cnt * area(acc, 0) +
+                    rightCount[b+1] * rightArea[b+1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b;
+                }
+            }
+        }
+
+        int mid;
+        if (bestAxis >= 0) {
+            // A leaf is better if splitting doesn't pay off (the cost of
+            // traversing a node is taken as one intersection test)
+            double leafCost = n * area(bounds, node);
+            if (n <= 2 * MAX_LEAF &&
+                bestCost + area(bounds, node) >= leafCost) {
+                makeLeaf(node, lo, n);
+                return node;
+            }
+
+            // Partition by bin
+            double scale = BINS / (cmax[bestAxis] - cmin[bestAxis]);
+            int i = lo, j = hi - 1;
+            while (i <= j) {
+                int p = prims[i];
+                if (bin(centroid[3*p+bestAxis], cmin[bestAxis], scale)
+                    <= bestBin) {
+                    i++;
+                } else {
+                    prims[i] = prims[j];
+                    prims[j--] = p;
+                }
+            }
+            mid = i;
+        } else {
+            // All centroids coincide: split the list in half
+            mid = (lo + hi) / 2;
+        }
+
+        build(lo, mid);
+        first[node] = build(mid, hi);
+        count[node] = 0;
+        return node;
+    }
+
+    private void makeLeaf(int node, int lo, int n)
+    {
+        first[node] = lo;
+        count[node] = n;
+    }
+
+    private static int bin(double c, double min, double scale)
+    {
+        return Math.min(BINS - 1, (int)((c - min) * scale));
+    }
+
+    private static void emptyBox(double[] b, int i)
+    {
+        for (int k = 0; k < 3; k++) {
+            b[6*i+k] = Double.POSITIVE_INFINITY;
+            b[6*i+3+k] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    // Grow box i of a to include box j of b
+    private static void growBox(double[] a, int i, double[] b, int j)
+    {
+        for (int k = 0; k < 3; k++) {
+            a[6*i+k] = Math.min(a[6*i+k], b[6*j+k]);
+            a[6*i+3+k] = Math.max(a[6*i+3+k], b[6*j+3+k]);
+        }
+    }
+
+    // Surface area (up to a factor 2) of box i of b
+    private static double area(double[] b, int i)
+    {
+        double dx = b[6*i+3] - b[6*i];
+        double dy = b[6*i+4] - b[6*i+1];
+        double dz = b[6*i+5] - b[6*i+2];
+        return dx*dy + dy*dz + dz*dx;
+    }
+
+    // ---------------------------------------------------------------------
+    // Ray queries
+
+    // Closest intersection of the ray origin + t dir (t >= 0) with the
+    // mesh; returns null if there is none
+    public Hit intersect(double[] origin, double[] dir)
+    {
+        Hit hit = new Hit();
+        double[] inv = { 1 / dir[0], 1 / dir[1], 1 / dir[2] };
+
+        int[] stack = new int[64];
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (rayBox(node, origin, inv) >= hit.t)
+              continue;
+
+            if (count[node] > 0) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) {
+                    intersectPolygon(prims[i], origin, dir, hit);
+                }
+            } else {
+                // Visit the nearer child first
+                int a = node + 1, b = first[node];
+                double ta = rayBox(a, origin, inv);
+                double tb = rayBox(b, origin, inv);
+                if (sp + 2 > stack.length)
+                  stack = Arrays.copyOf(stack, 2 * stack.length);
+                if (ta <= tb) {
+                    if (tb < hit.t) stack[sp++] = b;
+                    if (ta < hit.t) stack[sp++] = a;
+                } else {
+                    if (ta < hit.t) stack[sp++] = a;
+                    if (tb < hit.t) stack[sp++] = b;
+                }
+            }
+        }
+
+        if (hit.polygon < 0)
+          return null;
+        for (int k = 0; k < 3; k++) {
+            hit.point[k] = origin[k] + hit.t * dir[k];
+        }
+        return hit;
+    }
+
+    // Entry distance of the ray into the box of node (infinity if the
+    // ray misses it, so that it is never closer than a hit)
+    private double rayBox(int node, double[] o, double[] inv)
+    {
+        double tmin = 0, tmax = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < 3; k++) {
+            double t0 = (bounds[6*node+k] - o[k]) * inv[k];
+            double t1 = (bounds[6*node+3+k] - o[k]) * inv[k];
+            if (t0 > t1) {
+                double t = t0; t0 = t1; t1 = t;
+            }
+            // (NaN from 0 * infinity leaves the interval unchanged)
+            if (t0 > tmin) tmin = t0;
+            if (t1 < tmax) tmax = t1;
+        }
+        return (tmin <= tmax) ? tmin : Double.POSITIVE_INFINITY;
+    }
+
+    // Intersect the ray with polygon p (as a triangle fan), updating hit
+    // if it is closer
+    void intersectPolygon(int p, double[] o, double[] d, Hit hit)
+    {
+        double[] pts = mesh.points;
+        int start = mesh.offset[p];
+        int a = 3 * mesh.index[start];
+
+        for (int i = start + 2; i < mesh.offset[p+1]; i++) {
+            int b = 3 * mesh.index[i-1], c = 3 * mesh.index[i];
+
+            // Moller-Trumbore
+            double e1x = pts[b] - pts[a], e1y = pts[b+1] - pts[a+1],
+                e1z = pts[b+2] - pts[a+2];
+            double e2x = pts[c] - pts[a], e2y = pts[c+1] - pts[a+1],
+                e2z = pts[c+2] - pts[a+2];
+            double px = d[1]*e2z - d[2]*e2y, py = d[2]*e2x - d[0]*e2z,
+                pz = d[0]*e2y - d[1]*e2x;
+            double det = e1x*px + e1y*py + e1z*pz;
+            if (det == 0)
+              continue;
+            double invDet = 1 / det;
+
+            double sx = o[0] - pts[a], sy = o[1] - pts[a+1],
+                sz = o[2] - pts[a+2];
+            double u = (sx*px + sy*py + sz*pz) * invDet;
+            if (u < 0 || u > 1)
+              continue;
+
+            double qx = sy*e1z - sz*e1y, qy = sz*e1x - sx*e1z,
+                qz = sx*e1y - sy*e1x;
+            double v = (d[0]*qx + d[1]*qy + d[2]*qz) * invDet;
+            if (v < 0 || u + v > 1)
+              continue;
+
+            double t = (e2x*qx + e2y*qy + e2z*qz) * invDet;
+            if (t >= 0 && t < hit.t) {
+                hit.t = t;
+                hit.polygon = p;
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Nearest point queries
+
+    // Point on the mesh nearest to q (hit.t is the distance); returns
+    // null for an empty mesh
+    public Hit nearest(double[] q)
+    {
+        Hit hit = new Hit();
+        double best = Double.POSITIVE_INFINITY;  // squared distance
+        double[] c = new double[3];
+
+        int[] stack = new int[64];
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (boxDistance2(node, q) >= best)
+              continue;
+
+            if (count[node] > 0) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) {
+                    double d2 = nearestOnPolygon(prims[i], q, c);
+                    if (d2 < best) {
+                        best = d2;
+                        hit.polygon = prims[i];
+                        System.arraycopy(c, 0, hit.point, 0, 3);
+                    }
+                }
+            } else {
+                // Visit the nearer child first
+                int a = node + 1, b = first[node];
+                double da = boxDistance2(a, q), db = boxDistance2(b, q);
+                if (sp + 2 > stack.length)
+                  stack = Arrays.copyOf(stack, 2 * stack.length);
+                if (da <= db) {
+                    if (db < best) stack[sp++] = b;
+                    if (da < best) stack[sp++] = a;
+                } else {
+                    if (da < best) stack[sp++] = a;
+                    if (db < best) stack[sp++] = b;
+                }
+            }
+        }
+
+        if (hit.polygon < 0)
+          return null;
+        hit.t = Math.sqrt(best);
+        return hit;
+    }
+
+    // Squared distance from q to the box of node
+    private double boxDistance2(int node, double[] q)
+    {
+        double d2 = 0;
+        for (int k = 0; k < 3; k++) {
+            double d = Math.max(0, Math.max(bounds[6*node+k] - q[k],
+                                            q[k] - bounds[6*node+3+k]));
+            d2 += d * d;
+        }
+        return d2;
+    }
+
+    // Point of polygon p nearest to q (stored in c); returns the squared
+    // distance
+    double nearestOnPolygon(int p, double[] q, double[] c)
+    {
+        double best = Double.POSITIVE_INFINITY;
+        double[] r = new double[3];
+        int start = mesh.offset[p];
+        int a = 3 * mesh.index[start];
+
+        for (int i = start + 2; i < mesh.offset[p+1]; i++) {
+            closestOnTriangle(q, a, 3 * mesh.index[i-1], 3 * mesh.index[i], r);
+            double dx = r[0] - q[0], dy = r[1] - q[1], dz = r[2] - q[2];
+            double d2 = dx*dx + dy*dy + dz*dz;
+            if (d2 < best) {
+                best = d2;
+                System.arraycopy(r, 0, c, 0, 3);
+            }
+        }
+        return best;
+    }
+
+    // Closest point to q on the triangle of points a,b,c (offsets into
+    // mesh.points), by the Voronoi regions of the triangle
+    private void closestOnTriangle(double[] q, int a, int b, int c,
+                                   double[] r)
+    {
+        double[] pts = mesh.points;
+        double abx = pts[b] - pts[a], aby = pts[b+1] - pts[a+1],
+            abz = pts[b+2] - pts[a+2];
+        double acx = pts[c] - pts[a], acy = pts[c+1] - pts[a+1],
+            acz = pts[c+2] - pts[a+2];
+        double apx = q[0] - pts[a], apy = q[1] - pts[a+1],
+            apz = q[2] - pts[a+2];
+
+        double d1 = abx*apx + aby*apy + abz*apz;
+        double d2 = acx*apx + acy*apy + acz*apz;
+        if (d1 <= 0 && d2 <= 0) {
+            set(r, pts, a, 0, 0, 0);
+            return;
+        }
+
+        double bpx = q[0] - pts[b], bpy = q[1] - pts[b+1],
+            bpz = q[2] - pts[b+2];
+        double d3 = abx*bpx + aby*bpy + abz*bpz;
+        double d4 = acx*bpx + acy*bpy + acz*bpz;
+        if (d3 >= 0 && d4 <= d3) {
+            set(r, pts, b, 0, 0, 0);
+            return;
+        }
+
+        double vc = d1*d4 - d3*d2;
+        if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+            double v = d1 / (d1 - d3);
+            set(r, pts, a, v*abx, v*aby, v*abz);
+            return;
+        }
+
+        double cpx = q[0] - pts[c], cpy = q[1] - pts[c+1],
+            cpz = q[2] - pts[c+2];
+        double d5 = abx*cpx + aby*cpy + abz*cpz;
+        double d6 = acx*cpx + acy*cpy + acz*cpz;
+        if (d6 >= 0 && d5 <= d6) {
+            set(r, pts, c, 0, 0, 0);
+            return;
+        }
+
+        double vb = d5*d2 - d1*d6;
+        if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+            double w = d2 / (d2 - d6);
+            set(r, pts, a, w*acx, w*acy, w*acz);
+            return;
+        }
+
+        double va = d3*d6 - d5*d4;
+        if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+            double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+            set(r, pts, b, w*(pts[c] - pts[b]), w*(pts[c+1] - pts[b+1]),
+                w*(pts[c+2] - pts[b+2]));
+            return;
+        }
+
+        // Inside the face
+        double denom = 1 / (va + vb + vc);
+        double v = vb * denom, w = vc * denom;
+        set(r, pts, a, v*abx + w*acx, v*aby + w*acy, v*abz + w*acz);
+    }
+
+    // r = point at offset i of pts, plus (dx,dy,dz)
+    private static void set(double[] r, double[] pts, int i,
+                            double dx, double dy, double dz)
+    {
+        r[0] = pts[i] + dx;
+        r[1] = pts[i+1] + dy;
+        r[2] = pts[i+2] + dz;
+    }
+
+    // ---------------------------------------------------------------------
+    // Box queries
+
+    // Polygons whose bounding boxes overlap the box [min,max]
+    public int[] overlap(double[] min, double[] max)
+    {
+        int[] res = new int[16];
+        int n = 0;
+
+        int[] stack = new int[64];
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (!boxOverlap(node, min, max))
+              continue;
+
+            if (count[node] > 0) {
+                for (int i = first[node]; i < first[node] + count[node]; i++) {
+                    if (polygonOverlap(prims[i], min, max)) {
+                        if (n == res.length)
+                          res = Arrays.copyOf(res, 2 * n);
+                        res[n++] = prims[i];
+                    }
+                }
+            } else {
+                if (sp + 2 > stack.length)
+                  stack = Arrays.copyOf(stack, 2 * stack.length);
+                stack[sp++] = first[node];
+                stack[sp++] = node + 1;
+            }
+        }
+
+        res = Arrays.copyOf(res, n);
+        Arrays.sort(res);
+        return res;
+    }
+
+    private boolean boxOverlap(int node, double[] min, double[] max)
+    {
+        for (int k = 0; k < 3; k++) {
+            if (bounds[6*node+k] > max[k] || bounds[6*node+3+k] < min[k])
+              return false;
+        }
+        return true;
+    }
+
+    // Does the bounding box of polygon p overlap the box [min,max]?
+    boolean polygonOverlap(int p, double[] min, double[] max)
+    {
+        for (int k = 0; k < 3; k++) {
+            double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+            for (int i = mesh.offset[p]; i < mesh.offset[p+1]; i++) {
+                double x = mesh.points[3 * mesh.index[i] + k];
+                lo = Math.min(lo, x);
+                hi = Math.max(hi, x);
+            }
+            if (lo > max[k] || hi < min[k])
+              return false;
+        }
+        return true;
+    }
+}
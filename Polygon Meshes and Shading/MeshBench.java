@@ -0,0 +1,891 @@
+/* class MeshBench
+ * Command-line timings for the mesh loading and processing code
+ *
+ *   java MeshBench [-runs N] -parse <file.obj>
+ *      OBJ parsing throughput (MB/s): StreamTokenizer vs parallel parser
+ *   java MeshBench -memory <file.obj>
+ *      heap used by a PolyMesh stored as objects vs as a CompactMesh
+ *   java MeshBench [-runs N] -cache <file.obj>
+ *      PolyMesh load time: parsing vs the binary mesh cache
+ *   java MeshBench [-runs N] -normals <file.obj>
+ *      computeAllNormals: sequential vs parallel (1, 2, 4, ... threads,
+ *      up to the processor count or -Dmesh.threads), for both storage modes
+ *   java MeshBench [-runs N] -update <file.obj>
+ *      updateNormals after moving 1, 10, 100, ... vertices vs
+ *      computeAllNormals, for both storage modes
+ *   java MeshBench [-runs N] -uvgrid <n>
+ *      evaluation of an n x n torus/ellipsoid grid: direct vs trig tables
+ *   java MeshBench -adaptive <n> <tolerance>
+ *      adaptive tessellation of an n x n grid (torus, and an elongated
+ *      ellipsoid): polygons, time, distance of the full grid from it,
+ *      and cracks (open edges once coincident vertices are welded)
+ *   java MeshBench [-runs N] -silhouette <file.obj>
+ *      edge table build time and per-view silhouette extraction time
+ *   java MeshBench [-runs N] -bvh <file.obj>
+ *      BVH build time, and ray/nearest-point/box queries vs linear scans
+ *   java MeshBench [-runs N] -draw <file.obj>
+ *      frame time, GL calls and vertices sent drawing the polygons
+ *      (offscreen pbuffer): immediate mode vs vertex buffers, as
+ *      triangles and as strips, smooth and flat shaded
+ *   java MeshBench [-runs N] -reorder <file.obj>
+ *      vertex cache reordering: ACMR, and computeAllNormals/rescale
+ *      times in file order vs reordered, for both storage modes
+ *   java MeshBench -reordergrid <n>
+ *      vertex cache reordering of an n x n torus of quads, in grid
+ *      order and shuffled, and of the same torus as triangles: ACMR
+ *      before and after, and reordering time
+ *   java MeshBench -lod <file.obj>
+ *      quadric-error simplification: time and triangle count of each
+ *      level of detail, and how far its vertices are from the full mesh
+ *   java MeshBench [-runs N] -subdivide <file.obj> [levels]
+ *      Loop/Catmull-Clark subdivision: polygons made per second for
+ *      each level, on 1, 2, 4, ... threads
+ */
+
+import java.io.*;
+import java.util.*;
+
+import javax.media.opengl.*;
+
+public class MeshBench
+{
+    // Number of timed runs (after one warm-up run)
+    static int runs = 3;
+
+    // Time a task over several runs; returns the best time in seconds
+    interface Task
+    {
+        public abstract void run() throws Exception;
+    }
+
+    static double time(Task task)
+        throws Exception
+    {
+        task.run();
+
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e9);
+        }
+        return best;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Parsing throughput of both OBJ readers
+    static void benchParse(final String filename)
+        throws Exception
+    {
+        double mb = new File(filename).length() / (1024.0 * 1024.0);
+
+        final ObjParser.Result[] res = new ObjParser.Result[2];
+
+        double tTok = time(new Task() {
+                public void run() throws Exception {
+                    res[0] = ObjParser.parseTokenized(filename);
+                }
+            });
+        double tPar = time(new Task() {
+                public void run() throws Exception {
+                    res[1] = ObjParser.parse(filename);
+                }
+            });
+
+        System.out.println(filename + ": " + res[1].numVertices +
+                           " vertices, " + res[1].numPolygons + " polygons");
+        System.out.printf("  StreamTokenizer: %8.3f s %8.1f MB/s%n",
+                          tTok, mb / tTok);
+        System.out.printf("  parallel (%2d):   %8.3f s %8.1f MB/s%n",
+                          Parallel.threads(), tPar, mb / tPar);
+
+        boolean same = res[0].numVertices == res[1].numVertices &&
+            Arrays.equals(res[0].points, res[1].points) &&
+            Arrays.equals(res[0].offset, res[1].offset) &&
+            Arrays.equals(res[0].index, res[1].index);
+        System.out.println("  results identical: " + same);
+    }
+
+    // Exact comparison of vertex positions/normals (NaN equals NaN, for
+    // the normals of unused vertices)
+    static boolean same(Vertex a, Vertex b)
+    {
+        return Arrays.equals(coords(a.getPoint()), coords(b.getPoint())) &&
+            Arrays.equals(coords(a.getNormal()), coords(b.getNormal()));
+    }
+    static double[] coords(javax.vecmath.Tuple3d t)
+    {
+        return new double[] { t.x, t.y, t.z };
+    }
+
+    // Heap in use (after collecting garbage)
+    static long usedHeap()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // Memory used by both storage modes of PolyMesh
+    static void benchMemory(String filename)
+    {
+        long base = usedHeap();
+        PolyMesh objects = new PolyMesh(filename, false);
+        long objBytes = usedHeap() - base;
+
+        base = usedHeap();
+        PolyMesh compact = new PolyMesh(filename, true);
+        long compactBytes = usedHeap() - base;
+
+        int nv = compact.numVertices();
+        System.out.println(filename + ": " + nv + " vertices, " +
+                           compact.numPolygons() + " polygons");
+        System.out.printf("  objects: %8.1f MB (%5.1f bytes/vertex)%n",
+                          objBytes / 1048576.0, (double)objBytes / nv);
+        System.out.printf("  compact: %8.1f MB (%5.1f bytes/vertex)%n",
+                          compactBytes / 1048576.0, (double)compactBytes / nv);
+
+        // Both should give the same geometry
+        boolean same = true;
+        for (int i = 0; i < nv && same; i++) {
+            same = same(objects.getVertex(i), compact.getVertex(i));
+        }
+        System.out.println("  results identical: " + same);
+    }
+
+    // Load time of a PolyMesh with and without its cache
+    static void benchCache(final String filename)
+        throws Exception
+    {
+        final PolyMesh[] res = new PolyMesh[2];
+
+        double tParse = time(new Task() {
+                public void run() {
+                    PolyMesh.useCache = false;
+                    res[0] = new PolyMesh(filename, true);
+                }
+            });
+
+        // Make sure there is a cache to load
+        PolyMesh.useCache = true;
+        new PolyMesh(filename, true);
+
+        double tCache = time(new Task() {
+                public void run() {
+                    res[1] = new PolyMesh(filename, true);
+                }
+            });
+
+        System.out.println(filename + ": " + res[0].numVertices() +
+                           " vertices, " + res[0].numPolygons() + " polygons");
+        System.out.printf("  parse+rescale+normals: %8.3f s%n", tParse);
+        System.out.printf("  cache (%s): %8.3f s%n",
+                          MeshCache.cacheName(filename), tCache);
+
+        boolean same = true;
+        for (int i = 0; i < res[0].numVertices() && same; i++) {
+            same = same(res[0].getVertex(i), res[1].getVertex(i));
+        }
+        System.out.println("  results identical: " + same);
+    }
+
+    // All vertex and polygon normals of a shape
+    static double[] normals(Shape s)
+    {
+        double[] n = new double[3 * (s.numVertices() + s.numPolygons())];
+        int k = 0;
+        for (int i = 0; i < s.numVertices(); i++) {
+            System.arraycopy(coords(s.getVertex(i).getNormal()), 0, n, k, 3);
+            k += 3;
+        }
+        for (int i = 0; i < s.numPolygons(); i++) {
+            System.arraycopy(coords(s.getPolygon(i).getNormal()), 0, n, k, 3);
+            k += 3;
+        }
+        return n;
+    }
+
+    // Sequential and parallel normal computation
+    static void benchNormals(String filename)
+        throws Exception
+    {
+        PolyMesh.useCache = false;
+
+        for (int mode = 0; mode < 2; mode++) {
+            final PolyMesh mesh = new PolyMesh(filename, mode == 1);
+
+            System.out.println(filename + " (" +
+                               (mode == 1 ? "compact" : "objects") + "): " +
+                               mesh.numVertices() + " vertices, " +
+                               mesh.numPolygons() + " polygons");
+
+            double tSeq = time(new Task() {
+                    public void run() {
+                        mesh.computeAllNormals(false);
+                    }
+                });
+            double[] ref = normals(mesh);
+            System.out.printf("  sequential:        %8.3f s%n", tSeq);
+
+            // Up to the number of processors (or -Dmesh.threads)
+            int cores = Math.max(Runtime.getRuntime().availableProcessors(),
+                                 Parallel.threads());
+            for (int t = 1; ; t = Math.min(2 * t, cores)) {
+                Parallel.setThreads(t);
+                double tPar = time(new Task() {
+                        public void run() {
+                            mesh.computeAllNormals(true);
+                        }
+                    });
+                System.out.printf("  parallel (%2d):     %8.3f s  %5.2fx  " +
+                                  "identical: %b%n", t, tPar, tSeq / tPar,
+                                  Arrays.equals(ref, normals(mesh)));
+                if (t == cores)
+                  break;
+            }
+        }
+    }
+
+    // Loops over the mesh in file order vs vertex cache order
+    static void benchReorder(String filename)
+        throws Exception
+    {
+        PolyMesh.useCache = false;
+
+        for (int mode = 0; mode < 2; mode++) {
+            for (int r = 0; r < 2; r++) {
+                PolyMesh.reorder = (r == 1);
+                final PolyMesh mesh = new PolyMesh(filename, mode == 1);
+                final CompactMesh m = mesh.getCompactMesh();
+
+                System.out.printf("%s (%s, %s): ACMR %.3f%n", filename,
+                                  mode == 1 ? "compact" : "objects",
+                                  r == 1 ? "reordered" : "file order",
+                                  MeshReorder.acmr(mesh.getGeometry(),
+                                                   MeshReorder.CACHE_SIZE));
+                double tNormals = time(new Task() {
+                        public void run() {
+                            mesh.computeAllNormals(false);
+                        }
+                    });
+                System.out.printf("  computeAllNormals: %8.3f s%n", tNormals);
+                if (m != null) {
+                    double tRescale = time(new Task() {
+                            public void run() {
+                                m.rescale();
+                            }
+                        });
+                    System.out.printf("  rescale:           %8.3f s%n",
+                                      tRescale);
+                }
+            }
+        }
+        PolyMesh.reorder = false;
+    }
+
+    // Reordering a torus grid of quads and of triangles, in grid order
+    // and shuffled
+    static void benchReorderGrid(int n)
+    {
+        CompactMesh grid = new Torus(n, n).getGeometry();
+        int[] order = new int[grid.numPolygons];
+        for (int p = 0; p < order.length; p++) {
+            order[p] = p;
+        }
+        Random random = new Random(1);
+        for (int p = order.length - 1; p > 0; p--) {
+            int q = random.nextInt(p + 1);
+            int t = order[p];
+            order[p] = order[q];
+            order[q] = t;
+        }
+
+        for (int tri = 0; tri < 2; tri++) {
+            for (int shuffled = 0; shuffled < 2; shuffled++) {
+                CompactMesh m = polygonsInOrder(grid,
+                                                (shuffled == 1) ? order : null,
+                                                tri == 1);
+                double before = MeshReorder.acmr(m, MeshReorder.CACHE_SIZE);
+                long start = System.nanoTime();
+                MeshReorder.reorder(m);
+                double t = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%dx%d torus, %-9s %-10s: ACMR %.3f -> " +
+                                  "%.3f (%.2f s)%n", n, n,
+                                  (tri == 1) ? "triangles" : "quads",
+                                  (shuffled == 1) ? "shuffled" : "grid order",
+                                  before,
+                                  MeshReorder.acmr(m, MeshReorder.CACHE_SIZE),
+                                  t);
+            }
+        }
+    }
+
+    // Copy of a mesh with its polygons in the given order (or the same
+    // order, if null), split into triangle fans if triangles is true
+    static CompactMesh polygonsInOrder(CompactMesh m, int[] order,
+                                       boolean triangles)
+    {
+        int ni = 0, np = 0;
+        for (int p = 0; p < m.numPolygons; p++) {
+            int size = m.offset[p+1] - m.offset[p];
+            ni += triangles ? 3 * (size - 2) : size;
+            np += triangles ? size - 2 : 1;
+        }
+        int[] offset = new int[np + 1];
+        int[] index = new int[ni];
+        int k = 0;
+        np = 0;
+        for (int j = 0; j < m.numPolygons; j++) {
+            int p = (order != null) ? order[j] : j;
+            int start = m.offset[p], end = m.offset[p+1];
+            if (!triangles) {
+                for (int i = start; i < end; i++) {
+                    index[k++] = m.index[i];
+                }
+                offset[++np] = k;
+                continue;
+            }
+            for (int i = start + 1; i + 1 < end; i++) {
+                index[k++] = m.index[start];
+                index[k++] = m.index[i];
+                index[k++] = m.index[i+1];
+                offset[++np] = k;
+            }
+        }
+        CompactMesh c = new CompactMesh(m.numVertices, m.points.clone(),
+                                        np, offset, index);
+        c.computeNormals();
+        return c;
+    }
+
+    // Incremental normal updates after moving a few vertices
+    static void benchUpdate(String filename)
+        throws Exception
+    {
+        PolyMesh.useCache = false;
+
+        for (int mode = 0; mode < 2; mode++) {
+            final PolyMesh mesh = new PolyMesh(filename, mode == 1);
+
+            System.out.println(filename + " (" +
+                               (mode == 1 ? "compact" : "objects") + "): " +
+                               mesh.numVertices() + " vertices, " +
+                               mesh.numPolygons() + " polygons");
+
+            double tAll = time(new Task() {
+                    public void run() {
+                        mesh.computeAllNormals();
+                    }
+                });
+            System.out.printf("  computeAllNormals:    %10.6f s%n", tAll);
+
+            Random rand = new Random(1);
+            for (int k = 1; k <= mesh.numVertices() / 10; k *= 10) {
+                // Move k random vertices
+                final int[] dirty = new int[k];
+                for (int i = 0; i < k; i++) {
+                    dirty[i] = rand.nextInt(mesh.numVertices());
+                    javax.vecmath.Point3d p =
+                        mesh.getVertex(dirty[i]).getPoint();
+                    p.x += 0.01 * rand.nextGaussian();
+                    mesh.setVertexPoint(dirty[i], p);
+                }
+
+                double tUpd = time(new Task() {
+                        public void run() {
+                            mesh.updateNormals(dirty);
+                        }
+                    });
+                double[] inc = normals(mesh);
+                mesh.computeAllNormals(false);
+
+                System.out.printf("  update %8d verts: %10.6f s  " +
+                                  "identical: %b%n", k, tUpd,
+                                  Arrays.equals(inc, normals(mesh)));
+            }
+        }
+    }
+
+    // Evaluation of UV primitives with and without the trig tables
+    static void benchUVGrid(int n)
+        throws Exception
+    {
+        UVShape[] shapes = { new Torus(n, n), new Ellipsoid(n, n) };
+
+        for (final UVShape shape : shapes) {
+            double[][] res = new double[2][];
+            double[] t = new double[2];
+
+            for (int mode = 0; mode < 2; mode++) {
+                UVShape.useTrigTables = (mode == 1);
+                t[mode] = time(new Task() {
+                        public void run() {
+                            shape.recompute();
+                            shape.evaluate();
+                        }
+                    });
+                CompactMesh m = shape.evaluate();
+                res[mode] = new double[m.points.length +
+                                       m.normals.length +
+                                       m.polyNormals.length];
+                System.arraycopy(m.points, 0, res[mode], 0, m.points.length);
+                System.arraycopy(m.normals, 0, res[mode], m.points.length,
+                                 m.normals.length);
+                System.arraycopy(m.polyNormals, 0, res[mode],
+                                 2 * m.points.length, m.polyNormals.length);
+            }
+
+            System.out.println(shape.name + " " + n + "x" + n + ":");
+            System.out.printf("  direct sin/cos: %8.3f s%n", t[0]);
+            System.out.printf("  trig tables:    %8.3f s  %5.2fx  " +
+                              "identical: %b%n", t[1], t[0] / t[1],
+                              Arrays.equals(res[0], res[1]));
+        }
+    }
+
+    // CPU silhouette extraction
+    static void benchSilhouette(String filename)
+        throws Exception
+    {
+        final CompactMesh mesh = new PolyMesh(filename, true).getCompactMesh();
+        final MeshEdges[] edges = new MeshEdges[1];
+
+        double tBuild = time(new Task() {
+                public void run() {
+                    edges[0] = new MeshEdges(mesh);
+                }
+            });
+
+        // Eye somewhat above the front of the (rescaled) mesh
+        final double[] eye = { 1, 2, 5 };
+        final boolean[] front = new boolean[mesh.numPolygons];
+        final int[][] lines = new int[1][];
+        double tSil = time(new Task() {
+                public void run() {
+                    mesh.frontFacing(eye, front);
+                    lines[0] = edges[0].silhouette(front);
+                }
+            });
+
+        System.out.println(filename + ": " + mesh.numPolygons +
+                           " polygons, " + edges[0].numEdges + " edges");
+        System.out.printf("  edge table:  %8.3f s%n", tBuild);
+        System.out.printf("  silhouette:  %8.3f s (%d threads) %d edges%n",
+                          tSil, Parallel.threads(), lines[0].length / 2);
+    }
+
+    // Spatial queries with the BVH, checked against linear scans
+    static void benchBVH(String filename)
+        throws Exception
+    {
+        final CompactMesh mesh = new PolyMesh(filename, true).getCompactMesh();
+        final MeshBVH[] bvh = new MeshBVH[1];
+
+        double tBuild = time(new Task() {
+                public void run() {
+                    bvh[0] = new MeshBVH(mesh);
+                }
+            });
+        System.out.println(filename + ": " + mesh.numPolygons +
+                           " polygons, " + bvh[0].numNodes + " nodes");
+        System.out.printf("  build:          %8.3f s%n", tBuild);
+
+        // Random rays from outside towards the (rescaled) mesh, and
+        // random query points
+        final int queries = 1000, scans = 20;
+        Random rand = new Random(1);
+        final double[][] origins = new double[queries][];
+        final double[][] dirs = new double[queries][];
+        final double[][] points = new double[queries][];
+        for (int i = 0; i < queries; i++) {
+            origins[i] = new double[] { 4 * rand.nextGaussian(),
+                                        4 * rand.nextGaussian(), 10 };
+            dirs[i] = new double[] { rand.nextGaussian() - origins[i][0] / 10,
+                                     rand.nextGaussian() - origins[i][1] / 10,
+                                     -1 };
+            points[i] = new double[] { 2 * rand.nextGaussian(),
+                                       2 * rand.nextGaussian(),
+                                       2 * rand.nextGaussian() };
+        }
+
+        final MeshBVH.Hit[] hits = new MeshBVH.Hit[queries];
+        double tRay = time(new Task() {
+                public void run() {
+                    for (int i = 0; i < queries; i++) {
+                        hits[i] = bvh[0].intersect(origins[i], dirs[i]);
+                    }
+                }
+            }) / queries;
+        final MeshBVH.Hit[] near = new MeshBVH.Hit[queries];
+        double tNear = time(new Task() {
+                public void run() {
+                    for (int i = 0; i < queries; i++) {
+                        near[i] = bvh[0].nearest(points[i]);
+                    }
+                }
+            }) / queries;
+
+        // Linear scans (over fewer queries), for timing and checking
+        long start = System.nanoTime();
+        boolean same = true;
+        for (int i = 0; i < scans; i++) {
+            MeshBVH.Hit h = new MeshBVH.Hit();
+            for (int p = 0; p < mesh.numPolygons; p++) {
+                bvh[0].intersectPolygon(p, origins[i], dirs[i], h);
+            }
+            same &= (hits[i] == null) ? h.polygon < 0 : h.t == hits[i].t;
+        }
+        double tRayScan = (System.nanoTime() - start) / 1e9 / scans;
+
+        start = System.nanoTime();
+        double[] c = new double[3];
+        for (int i = 0; i < scans; i++) {
+            double best = Double.POSITIVE_INFINITY;
+            for (int p = 0; p < mesh.numPolygons; p++) {
+                best = Math.min(best, bvh[0].nearestOnPolygon(p, points[i], c));
+            }
+            same &= Math.sqrt(best) == near[i].t;
+        }
+        double tNearScan = (System.nanoTime() - start) / 1e9 / scans;
+
+        // Box around the first vertex
+        double[] lo = new double[3], hi = new double[3];
+        for (int k = 0; k < 3; k++) {
+            lo[k] = mesh.points[k] - 0.1;
+            hi[k] = mesh.points[k] + 0.1;
+        }
+        int[] inBox = bvh[0].overlap(lo, hi);
+        int n = 0;
+        for (int p = 0; p < mesh.numPolygons; p++) {
+            if (bvh[0].polygonOverlap(p, lo, hi)) {
+                same &= n < inBox.length && inBox[n++] == p;
+            }
+        }
+        same &= (n == inBox.length);
+
+        System.out.printf("  ray:     %10.2f us (scan %10.2f us)%n",
+                          1e6 * tRay, 1e6 * tRayScan);
+        System.out.printf("  nearest: %10.2f us (scan %10.2f us)%n",
+                          1e6 * tNear, 1e6 * tNearScan);
+        System.out.println("  box: " + inBox.length + " polygons");
+        System.out.println("  results identical: " + same);
+    }
+
+    // Adaptive tessellation against the full grid
+    static void benchAdaptive(int n, double tol)
+        throws Exception
+    {
+        for (int s = 0; s < 2; s++) {
+            UVShape.adaptiveTolerance = 0;
+            UVShape full = (s == 0) ? new Torus(n, n) : new Ellipsoid(n, n);
+            UVShape.adaptiveTolerance = tol;
+            UVShape adaptive = (s == 0) ? new Torus(n, n) :
+                new Ellipsoid(n, n);
+            if (s == 1) {
+                setParameter(full, "Az", 3);
+                setParameter(adaptive, "Az", 3);
+            }
+
+            long start = System.nanoTime();
+            CompactMesh a = adaptive.evaluate();
+            double t = (System.nanoTime() - start) / 1e9;
+            CompactMesh f = full.evaluate();
+
+            // Distance of the full grid's vertices from the adaptive mesh
+            MeshBVH bvh = new MeshBVH(a);
+            double worst = 0;
+            double[] q = new double[3];
+            for (int v = 0; v < f.numVertices; v++) {
+                System.arraycopy(f.points, 3*v, q, 0, 3);
+                worst = Math.max(worst, bvh.nearest(q).t);
+            }
+
+            System.out.println(full.name + " " + n + "x" + n + ", tolerance " +
+                               tol + ":");
+            System.out.printf("  full grid: %8d polygons, %3d open edges%n",
+                              f.numPolygons, openEdges(f));
+            System.out.printf("  adaptive:  %8d polygons, %3d open edges, " +
+                              "%5.1f%% of the polygons, %.3f s, max " +
+                              "distance %.5f%n", a.numPolygons, openEdges(a),
+                              100.0 * a.numPolygons / f.numPolygons, t,
+                              worst);
+
+            // Changing a parameter a little: tessellate again
+            setParameter(adaptive, "Tolerance", 1.1 * tol);
+            adaptive.recompute();
+            start = System.nanoTime();
+            adaptive.evaluate();
+            System.out.printf("  again at %.5f: %8d polygons, %.3f s%n",
+                              1.1 * tol, adaptive.numPolygons(),
+                              (System.nanoTime() - start) / 1e9);
+        }
+        UVShape.adaptiveTolerance = 0;
+    }
+
+    // Edges with one polygon, after welding coincident vertices (cracks,
+    // for closed surfaces)
+    static int openEdges(CompactMesh m)
+    {
+        CompactMesh c = new CompactMesh(m.numVertices, m.points.clone(),
+                                        m.numPolygons, m.offset.clone(),
+                                        m.index.clone());
+        c.weld(1e-9);
+        MeshEdges e = new MeshEdges(c);
+        int open = 0;
+        for (int k = 0; k < e.numEdges; k++) {
+            if (e.isBoundary(k))
+              open++;
+        }
+        return open;
+    }
+
+    // Set a parameter of a shape by name
+    static void setParameter(Shape s, String name, double value)
+    {
+        for (DoubleParameter p : s.getParams()) {
+            if (p.name.equals(name))
+              p.value = value;
+        }
+        s.recompute();
+    }
+
+    // Set a drawing option of a shape by name
+    static void setOption(Shape s, String name, boolean value)
+    {
+        for (BooleanParameter p : s.getOptions()) {
+            if (p.name.equals(name))
+              p.value = value;
+        }
+    }
+
+    // Drawing the polygons in immediate mode and from vertex buffers
+    static void benchDraw(String filename)
+        throws Exception
+    {
+        final PolyMesh mesh = new PolyMesh(filename, true);
+        final int frames = 10;
+        final double[] result = new double[1];
+
+        GLCapabilities caps = new GLCapabilities();
+        caps.setDepthBits(24);
+        GLPbuffer pbuffer = GLDrawableFactory.getFactory()
+            .createGLPbuffer(caps, null, 512, 512, null);
+
+        // Draws a number of frames each time the pbuffer is displayed
+        pbuffer.addGLEventListener(new GLEventListener() {
+                public void init(GLAutoDrawable drawable) {
+                    GL gl = drawable.getGL();
+                    gl.glEnable(GL.GL_DEPTH_TEST);
+                    gl.glEnable(GL.GL_RESCALE_NORMAL);
+                    gl.glViewport(0, 0, 512, 512);
+                    gl.glMatrixMode(GL.GL_PROJECTION);
+                    gl.glLoadIdentity();
+                    gl.glFrustum(-1, 1, -1, 1, 2, 500);
+                    gl.glMatrixMode(GL.GL_MODELVIEW);
+                }
+                public void display(GLAutoDrawable drawable) {
+                    GL gl = drawable.getGL();
+                    long start = System.nanoTime();
+                    for (int i = 0; i < frames; i++) {
+                        gl.glClear(GL.GL_COLOR_BUFFER_BIT |
+                                   GL.GL_DEPTH_BUFFER_BIT);
+                        gl.glLoadIdentity();
+                        gl.glTranslated(0, 0, -5);
+                        mesh.draw(gl);
+                    }
+                    gl.glFinish();
+                    result[0] = (System.nanoTime() - start) / 1e9 / frames;
+                }
+                public void reshape(GLAutoDrawable drawable,
+                                    int x, int y, int w, int h) { }
+                public void displayChanged(GLAutoDrawable drawable,
+                                           boolean modeChanged,
+                                           boolean deviceChanged) { }
+            });
+
+        System.out.println(filename + ": " + mesh.numVertices() +
+                           " vertices, " + mesh.numPolygons() + " polygons");
+        System.out.println("  " + pbuffer.getGL().glGetString(GL.GL_RENDERER));
+
+        // Vertices sent in immediate mode
+        long corners = 0;
+        for (int i = 0; i < mesh.numPolygons(); i++) {
+            corners += mesh.getPolygon(i).size();
+        }
+
+        String[] modes = { "immediate", "triangles", "strips" };
+        for (int smooth = 0; smooth < 2; smooth++) {
+            setOption(mesh, "Smooth shading", smooth == 1);
+            for (int buffers = 0; buffers < 3; buffers++) {
+                setOption(mesh, "Vertex buffers", buffers > 0);
+                setOption(mesh, "Triangle strips", buffers == 2);
+
+                // First display builds the buffers (if used)
+                pbuffer.display();
+                double best = Double.MAX_VALUE;
+                for (int r = 0; r < runs; r++) {
+                    pbuffer.display();
+                    best = Math.min(best, result[0]);
+                }
+
+                long calls = (buffers > 0) ?
+                    mesh.getRenderer().glCalls :
+                    MeshRenderer.immediateCalls(mesh, smooth == 1);
+                long sent = (buffers > 0) ?
+                    mesh.getRenderer().verticesSent : corners;
+                System.out.printf("  %-6s %-10s %8.2f ms/frame %10d GL calls" +
+                                  " %10d vertices%n",
+                                  smooth == 1 ? "smooth" : "flat",
+                                  modes[buffers], 1000 * best, calls, sent);
+            }
+        }
+        pbuffer.destroy();
+    }
+
+    // Making the levels of detail (as PolyMesh does)
+    static void benchLOD(String filename)
+        throws Exception
+    {
+        PolyMesh mesh = new PolyMesh(filename, true);
+        CompactMesh m = mesh.getGeometry();
+        double[] fractions = { 0.5, 0.25, 0.1, 0.02 };
+
+        long start = System.nanoTime();
+        CompactMesh[] levels = MeshDecimator.levels(m, fractions);
+        double t = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(filename + ": " + MeshDecimator.countTriangles(m) +
+                           " triangles, levels made in " + t + " s");
+
+        // Distance of the vertices of each level from the full mesh,
+        // relative to the size of its bounding box
+        MeshBVH bvh = new MeshBVH(m);
+        double size = 0;
+        for (int k = 0; k < 3; k++) {
+            size = Math.max(size, bvh.bounds[3+k] - bvh.bounds[k]);
+        }
+        for (int l = 0; l < levels.length; l++) {
+            CompactMesh lm = levels[l];
+            double worst = 0;
+            double[] q = new double[3];
+            for (int v = 0; v < lm.numVertices; v += Math.max(1,
+                                                   lm.numVertices / 10000)) {
+                q[0] = lm.points[3*v];
+                q[1] = lm.points[3*v+1];
+                q[2] = lm.points[3*v+2];
+                MeshBVH.Hit h = bvh.nearest(q);
+                worst = Math.max(worst, h.t);
+            }
+            System.out.printf("  %4.0f%%: %9d triangles, max deviation %.5f%n",
+                              100 * fractions[l], lm.numPolygons,
+                              worst / size);
+        }
+    }
+
+    // Subdivision throughput, for each level and number of threads
+    static void benchSubdivide(String filename, int levels)
+        throws Exception
+    {
+        PolyMesh mesh = new PolyMesh(filename, true);
+        CompactMesh m = mesh.getGeometry();
+        System.out.println(filename + ": " + m.numPolygons + " polygons, " +
+                           MeshSubdivider.scheme(m) + " subdivision");
+
+        int cores = Math.max(Runtime.getRuntime().availableProcessors(),
+                             Parallel.threads());
+        for (int l = 1; l <= levels; l++) {
+            final CompactMesh base = m;
+            final CompactMesh[] res = new CompactMesh[1];
+            CompactMesh ref = null;
+            double tOne = 0;
+
+            for (int t = 1; ; t = Math.min(2 * t, cores)) {
+                Parallel.setThreads(t);
+                double time = time(new Task() {
+                        public void run() {
+                            res[0] = MeshSubdivider.subdivide(base);
+                        }
+                    });
+                if (t == 1) {
+                    tOne = time;
+                    ref = res[0];
+                }
+                System.out.printf("  level %d (%2d): %9d polygons %8.3f s " +
+                                  "%7.2f M polygons/s  %5.2fx  " +
+                                  "identical: %b%n", l, t,
+                                  res[0].numPolygons, time,
+                                  res[0].numPolygons / time / 1e6,
+                                  tOne / time,
+                                  Arrays.equals(ref.points, res[0].points) &&
+                                  Arrays.equals(ref.index, res[0].index));
+                if (t == cores)
+                  break;
+            }
+            m = ref;
+        }
+    }
+
+    public static void main(String args[])
+    {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-runs")) {
+                    runs = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-parse")) {
+                    benchParse(args[++i]);
+                } else if (args[i].equals("-memory")) {
+                    benchMemory(args[++i]);
+                } else if (args[i].equals("-cache")) {
+                    benchCache(args[++i]);
+                } else if (args[i].equals("-normals")) {
+                    benchNormals(args[++i]);
+                } else if (args[i].equals("-update")) {
+                    benchUpdate(args[++i]);
+                } else if (args[i].equals("-uvgrid")) {
+                    benchUVGrid(Integer.parseInt(args[++i]));
+                } else if (args[i].equals("-adaptive")) {
+                    int n = Integer.parseInt(args[++i]);
+                    benchAdaptive(n, Double.parseDouble(args[++i]));
+                } else if (args[i].equals("-silhouette")) {
+                    benchSilhouette(args[++i]);
+                } else if (args[i].equals("-bvh")) {
+                    benchBVH(args[++i]);
+                } else if (args[i].equals("-draw")) {
+                    benchDraw(args[++i]);
+                } else if (args[i].equals("-reorder")) {
+                    benchReorder(args[++i]);
+                } else if (args[i].equals("-reordergrid")) {
+                    benchReorderGrid(Integer.parseInt(args[++i]));
+                } else if (args[i].equals("-lod")) {
+                    benchLOD(args[++i]);
+                } else if (args[i].equals("-subdivide")) {
+                    String filename = args[++i];
+                    int levels = 2;
+                    if (i+1 < args.length && args[i+1].charAt(0) != '-') {
+                        levels = Integer.parseInt(args[++i]);
+                    }
+                    benchSubdivide(filename, levels);
+                } else {
+                    System.out.println("Usage: java MeshBench [-runs N] " +
+                                       "-parse|-memory|-cache|-normals|" +
+                                       "-update|-silhouette|-bvh|-draw|" +
+                                       "-reorder|-lod|-subdivide " +
+                                       "<file.obj>");
+                    System.out.println("   or: java MeshBench [-runs N] " +
+                                       "-uvgrid <n>");
+                    System.out.println("   or: java MeshBench " +
+                                       "-reordergrid <n>");
+                    System.out.println("   or: java MeshBench -adaptive " +
+                                       "<n> <tolerance>");
+                    System.exit(1);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/* class MeshCache
+ * Binary cache of a loaded PolyMesh, kept next to the OBJ file
+ * (model.obj -> model.obj.pmc)
+ *
+ * The cache holds the rescaled vertex positions, the polygon index
+ * buffer and the computed polygon and vertex normals, so that later
+ * loads skip parsing, rescaling and normal computation; and, if the
+ * vertices or polygons were renumbered, their numbers in the file.  It
+ * is memory mapped when read.
+ *
+ * A cache is only used if it was made with the same load options
+ * (including the weld distance) and from the same source file: the
+ * size and modification time must match, or if only the time differs
+ * (the file was copied or touched), a hash of the contents must match;
+ * the cache then takes the new time, so the hash isn't needed again.
+ * A cache whose polygons don't index its vertices is ignored.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.CRC32;
+
+public class MeshCache
+{
+    // File format identification; bump VERSION when the layout changes
+    private static final int MAGIC = 0x504d4331;  // "PMC1"
+    private static final int VERSION = 2;
+
+    // Size of the header in bytes
+    private static final int HEADER = 64;
+
+    // Load options: vertices were welded (the distance is in the
+    // header); polygons and vertices were put in vertex cache order
+    public static final int WELDED = 1;
+    public static final int REORDERED = 2;
+
+    // Arrays stored after the index buffer (a bit mask in the header)
+    private static final int FILE_VERTEX = 1;
+    private static final int FILE_POLYGON = 2;
+
+    // Largest region mapped or written at once
+    private static final int WINDOW = 1 << 28;
+
+    // Name of the cache file for an OBJ file
+    public static String cacheName(String filename)
+    {
+        return filename + ".pmc";
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Load the cached mesh for filename; returns null if there is no
+    // valid cache (options is a bit mask of the load options used, and
+    // weld the distance vertices were welded within)
+    public static CompactMesh load(String filename, int options, double weld)
+    {
+        File source = new File(filename);
+        File cache = new File(cacheName(filename));
+
+        if (!cache.isFile() || !source.isFile())
+          return null;
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(cache, "r");
+            FileChannel channel = file.getChannel();
+
+            if (channel.size() < HEADER)
+              return null;
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                                            0, HEADER);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION ||
+                header.getInt(8) != options || header.getDouble(56) != weld)
+              return null;
+
+            // Check that the cache matches the source file
+            long size = header.getLong(16);
+            long mtime = header.getLong(24);
+            long hash = header.getLong(32);
+            if (size != source.length())
+              return null;
+            if (mtime != source.lastModified() && hash != hash(source))
+              return null;
+
+            int nv = header.getInt(40);
+            int np = header.getInt(44);
+            int ni = header.getInt(48);
+            int stored = header.getInt(52);
+
+            long expected = HEADER + 8L * (3L*nv + 3L*nv + 3L*np) +
+                4L * (np + 1 + ni);
+            if ((stored & FILE_VERTEX) != 0)
+              expected += 4L * nv;
+            if ((stored & FILE_POLYGON) != 0)
+              expected += 4L * np;
+            if (nv < 0 || np < 0 || ni < 0 || channel.size() != expected)
+              return null;
+
+            // Read the arrays
+            double[] points = new double[3*nv];
+            int[] offset = new int[np + 1];
+            int[] index = new int[ni];
+
+            long pos = HEADER;
+            pos = read(channel, pos, points);
+            CompactMesh mesh = new CompactMesh(nv, points, np, offset, index);
+            pos = read(channel, pos, mesh.normals);
+            pos = read(channel, pos, mesh.polyNormals);
+            pos = read(channel, pos, offset);
+            pos = read(channel, pos, index);
+            if ((stored & FILE_VERTEX) != 0) {
+                mesh.fileVertex = new int[nv];
+                pos = read(channel, pos, mesh.fileVertex);
+            }
+            if ((stored & FILE_POLYGON) != 0) {
+                mesh.filePolygon = new int[np];
+                pos = read(channel, pos, mesh.filePolygon);
+            }
+
+            if (!validIndices(mesh)) {
+                System.err.println("Ignoring mesh cache " + cache +
+                                   ": bad polygon indices");
+                return null;
+            }
+
+            // Copied or touched source with the same contents: keep its
+            // time, so that the next load doesn't hash it again
+            if (mtime != source.lastModified()) {
+                close(file);
+                file = null;
+                setTime(cache, source.lastModified());
+            }
+
+            return mesh;
+        } catch (IOException e) {
+            System.err.println("Ignoring mesh cache " + cache + ": " +
+                               e.getMessage());
+            return null;
+        } finally {
+            close(file);
+        }
+    }
+
+    // Save mesh as the cache for filename; failures (such as a
+    // read-only directory) are only reported
+    public static void save(String filename, int options, double weld,
+                            CompactMesh mesh)
+    {
+        File source = new File(filename);
+        File cache = new File(cacheName(filename));
+        File temp = new File(cacheName(filename) + ".tmp");
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(temp, "rw");
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, options);
+            header.putLong(16, source.length());
+            header.putLong(24, source.lastModified());
+            header.putLong(32, hash(source));
+            header.putInt(40, mesh.numVertices);
+            header.putInt(44, mesh.numPolygons);
+            header.putInt(48, mesh.offset[mesh.numPolygons]);
+            header.putInt(52, ((mesh.fileVertex != null) ? FILE_VERTEX : 0) |
+                          ((mesh.filePolygon != null) ? FILE_POLYGON : 0));
+            header.putDouble(56, weld);
+            channel.write(header, 0);
+
+            long pos = HEADER;
+            pos = write(channel, pos, mesh.points, 3*mesh.numVertices);
+            pos = write(channel, pos, mesh.normals, 3*mesh.numVertices);
+            pos = write(channel, pos, mesh.polyNormals, 3*mesh.numPolygons);
+            pos = write(channel, pos, mesh.offset, mesh.numPolygons + 1);
+            pos = write(channel, pos, mesh.index,
+                        mesh.offset[mesh.numPolygons]);
+            if (mesh.fileVertex != null)
+              pos = write(channel, pos, mesh.fileVertex, mesh.numVertices);
+            if (mesh.filePolygon != null)
+              pos = write(channel, pos, mesh.filePolygon, mesh.numPolygons);
+
+            file.close();
+            file = null;
+
+            // Replace the old cache only when the new one is complete
+            cache.delete();
+            if (!temp.renameTo(cache))
+              throw new IOException("cannot rename " + temp);
+        } catch (IOException e) {
+            System.err.println("Cannot write mesh cache " + cache + ": " +
+                               e.getMessage());
+            temp.delete();
+        } finally {
+            close(file);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+
+    // True if the polygons of mesh are consecutive runs of the index
+    // buffer, and refer to its vertices (and file numbers aren't
+    // negative)
+    private static boolean validIndices(CompactMesh mesh)
+    {
+        int[] offset = mesh.offset, index = mesh.index;
+        int np = mesh.numPolygons, nv = mesh.numVertices;
+
+        if (offset[0] != 0 || offset[np] != index.length)
+          return false;
+        for (int p = 0; p < np; p++) {
+            if (offset[p+1] < offset[p])
+              return false;
+        }
+        for (int i = 0; i < index.length; i++) {
+            if (index[i] < 0 || index[i] >= nv)
+              return false;
+        }
+        int[][] numbers = { mesh.fileVertex, mesh.filePolygon };
+        for (int[] a : numbers) {
+            for (int i = 0; a != null && i < a.length; i++) {
+                if (a[i] < 0)
+                  return false;
+            }
+        }
+        return true;
+    }
+
+    // Store a new source modification time in the header of a cache;
+    // failures are only reported (the cache is still valid)
+    private static void setTime(File cache, long mtime)
+    {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(cache, "rw");
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.putLong(0, mtime);
+            file.getChannel().write(buf, 24);
+        } catch (IOException e) {
+            System.err.println("Cannot update mesh cache " + cache + ": " +
+                               e.getMessage());
+        } finally {
+            close(file);
+        }
+    }
+
+    // Hash of the contents of a file
+    private static long hash(File f)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            CRC32 crc = new CRC32();
+            byte[] bytes = new byte[1 << 16];
+
+            for (long pos = 0; pos < size; pos += WINDOW) {
+                MappedByteBuffer buf =
+                    channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                                Math.min(WINDOW, size - pos));
+                while (buf.hasRemaining()) {
+                    int n = Math.min(bytes.length, buf.remaining());
+                    buf.get(bytes, 0, n);
+                    crc.update(bytes, 0, n);
+                }
+            }
+            return crc.getValue() ^ (size << 32);
+        } finally {
+            file.close();
+        }
+    }
+
+    // Read an array starting at pos (returns the position after it)
+    private static long read(FileChannel channel, long pos, double[] a)
+        throws IOException
+    {
+        for (int i = 0; i < a.length; ) {
+            int n = Math.min(WINDOW / 8, a.length - i);
+            MappedByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, pos, 8L * n);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.asDoubleBuffer().get(a, i, n);
+            i += n;
+            pos += 8L * n;
+        }
+        return pos;
+    }
+    private static long read(FileChannel channel, long pos, int[] a)
+        throws IOException
+    {
+        for (int i = 0; i < a.length; ) {
+            int n = Math.min(WINDOW / 4, a.length - i);
+            MappedByteBuffer buf =
+                channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * n);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            buf.asIntBuffer().get(a, i, n);
+            i += n;
+            pos += 4L * n;
+        }
+        return pos;
+    }
+
+    // Write the first count elements of an array starting at pos
+    private static long write(FileChannel channel, long pos,
+                              double[] a, int count)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; ) {
+            int n = Math.min(buf.capacity() / 8, count - i);
+            buf.clear();
+            buf.asDoubleBuffer().put(a, i, n);
+            buf.limit(8 * n);
+            while (buf.hasRemaining()) {
+                pos += channel.write(buf, pos);
+            }
+            i += n;
+        }
+        return pos;
+    }
+    private static long write(FileChannel channel, long pos,
+                              int[] a, int count)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; ) {
+            int n = Math.min(buf.capacity() / 4, count - i);
+            buf.clear();
+            buf.asIntBuffer().put(a, i, n);
+            buf.limit(4 * n);
+            while (buf.hasRemaining()) {
+                pos += channel.write(buf, pos);
+            }
+            i += n;
+        }
+        return pos;
+    }
+
+    private static void close(RandomAccessFile file)
+    {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+}
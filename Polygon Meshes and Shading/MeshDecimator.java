@@ -0,0 +1,557 @@
+/* class MeshDecimator
+ * Mesh simplification by edge collapses, ordered by the quadric error
+ * metric (Garland and Heckbert)
+ *
+ * The polygons are triangulated (as fans) and each vertex gets the sum
+ * of the (area weighted) plane quadrics of its triangles; boundary
+ * edges add planes perpendicular to their triangle, so the outline is
+ * kept.  The edge whose collapse (to the position minimizing the summed
+ * quadric) adds the least error is collapsed first, until the target
+ * number of triangles is reached.  Collapses that would flip a triangle
+ * or make the mesh non-manifold are skipped.
+ *
+ * levels() runs a single simplification and takes a copy of the mesh
+ * each time it passes one of the targets, so coarser levels are made
+ * from finer ones.
+ */
+
+import java.util.*;
+
+public class MeshDecimator
+{
+    // Vertices: positions, quadrics (10 coefficients each: a2 ab ac ad
+    // b2 bc bd c2 cd d2), and a version bumped whenever they change
+    private int nv;
+    private double[] pts;
+    private double[] quad;
+    private int[] version;
+    private boolean[] deadVertex;
+
+    // Triangles (3 vertices each), and the number still alive
+    private int nt, alive;
+    private int[] tri;
+    private boolean[] deadTri;
+
+    // Vertex -> triangles (may also list dead triangles, which are
+    // skipped)
+    private int[][] vt;
+    private int[] vtCount;
+
+    // Candidate collapses: binary heap on cost, storing the vertices and
+    // their versions when pushed (stale entries are skipped)
+    private int heapSize;
+    private double[] heapCost;
+    private int[] heapA, heapB, heapVA, heapVB;
+
+    // Marks for finding neighbors
+    private int[] mark;
+    private int markStamp;
+
+    // Weight of the boundary planes
+    private static final double BOUNDARY_WEIGHT = 100;
+
+    // ---------------------------------------------------------------------
+
+    // Simplify a mesh down to (about) target triangles
+    public static CompactMesh decimate(CompactMesh m, int target)
+    {
+        return new MeshDecimator(m).run(new int[] { target })[0];
+    }
+
+    // Simplified copies of a mesh with the given fractions of its
+    // triangle count (in decreasing order)
+    public static CompactMesh[] levels(CompactMesh m, double[] fractions)
+    {
+        MeshDecimator d = new MeshDecimator(m);
+        int[] targets = new int[fractions.length];
+        for (int i = 0; i < fractions.length; i++) {
+            targets[i] = (int)(fractions[i] * d.nt);
+        }
+        return d.run(targets);
+    }
+
+    // Number of triangles of a mesh, when triangulated as fans
+    public static int countTriangles(CompactMesh m)
+    {
+        int n = 0;
+        for (int p = 0; p < m.numPolygons; p++) {
+            n += Math.max(0, m.offset[p+1] - m.offset[p] - 2);
+        }
+        return n;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Set up triangles, quadrics and candidate collapses
+    private MeshDecimator(CompactMesh m)
+    {
+        nv = m.numVertices;
+        pts = Arrays.copyOf(m.points, 3 * nv);
+        quad = new double[10 * nv];
+        version = new int[nv];
+        deadVertex = new boolean[nv];
+        mark = new int[nv];
+
+        // Triangulate
+        nt = countTriangles(m);
+        tri = new int[3 * nt];
+        int[] offset = new int[nt + 1];
+        int k = 0;
+        for (int p = 0; p < m.numPolygons; p++) {
+            int start = m.offset[p];
+            for (int i = start + 2; i < m.offset[p+1]; i++) {
+                tri[3*k] = m.index[start];
+                tri[3*k+1] = m.index[i-1];
+                tri[3*k+2] = m.index[i];
+                k++;
+                offset[k] = 3 * k;
+            }
+        }
+        deadTri = new boolean[nt];
+        alive = nt;
+
+        // Vertex -> triangle lists
+        vtCount = new int[nv];
+        for (int i = 0; i < 3 * nt; i++) {
+            vtCount[tri[i]]++;
+        }
+        vt = new int[nv][];
+        for (int v = 0; v < nv; v++) {
+            vt[v] = new int[Math.max(vtCount[v], 1)];
+            vtCount[v] = 0;
+        }
+        for (int t = 0; t < nt; t++) {
+            for (int j = 0; j < 3; j++) {
+                int v = tri[3*t+j];
+                vt[v][vtCount[v]++] = t;
+            }
+        }
+
+        // Plane quadrics of the triangles
+        double[] n = new double[3];
+        for (int t = 0; t < nt; t++) {
+            double area = normal(tri[3*t], tri[3*t+1], tri[3*t+2], n);
+            if (area == 0)
+              continue;
+            int a = 3 * tri[3*t];
+            double d = -(n[0]*pts[a] + n[1]*pts[a+1] + n[2]*pts[a+2]);
+            for (int j = 0; j < 3; j++) {
+                addPlane(tri[3*t+j], n[0], n[1], n[2], d, area);
+            }
+        }
+
+        // Edges of the triangles; boundary edges get perpendicular planes
+        CompactMesh tris = new CompactMesh(nv, pts, nt, offset, tri);
+        MeshEdges edges = new MeshEdges(tris);
+        for (int e = 0; e < edges.numEdges; e++) {
+            if (edges.isBoundary(e)) {
+                addBoundaryPlane(edges.v0[e], edges.v1[e], edges.f0[e]);
+            }
+        }
+
+        heapCost = new double[edges.numEdges + 16];
+        heapA = new int[heapCost.length];
+        heapB = new int[heapCost.length];
+        heapVA = new int[heapCost.length];
+        heapVB = new int[heapCost.length];
+        heapSize = 0;
+
+        double[] p = new double[3];
+        for (int e = 0; e < edges.numEdges; e++) {
+            push(edges.v0[e], edges.v1[e], p);
+        }
+    }
+
+    // Collapse edges until each target is reached; returns a copy of the
+    // mesh at each target
+    private CompactMesh[] run(int[] targets)
+    {
+        CompactMesh[] res = new CompactMesh[targets.length];
+        double[] p = new double[3];
+
+        int level = 0;
+        while (level < targets.length) {
+            if (alive <= targets[level] || heapSize == 0) {
+                res[level++] = extract();
+                continue;
+            }
+
+            // Cheapest collapse that is still valid
+            int a = heapA[0], b = heapB[0];
+            boolean valid = !deadVertex[a] && !deadVertex[b] &&
+                version[a] == heapVA[0] && version[b] == heapVB[0];
+            pop();
+            if (!valid)
+              continue;
+
+            optimalPosition(a, b, p);
+            if (!canCollapse(a, b, p))
+              continue;
+            collapse(a, b, p);
+
+            // New candidates around a
+            markStamp++;
+            for (int i = 0; i < vtCount[a]; i++) {
+                int t = vt[a][i];
+                for (int j = 0; j < 3; j++) {
+                    int w = tri[3*t+j];
+                    if (w != a && mark[w] != markStamp) {
+                        mark[w] = markStamp;
+                        push(a, w, p);
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    // ---------------------------------------------------------------------
+    // Quadrics
+
+    // Unit normal of triangle a,b,c in n; returns its area
+    private double normal(int a, int b, int c, double[] n)
+    {
+        a *= 3; b *= 3; c *= 3;
+        double ux = pts[b] - pts[a], uy = pts[b+1] - pts[a+1],
+            uz = pts[b+2] - pts[a+2];
+        double vx = pts[c] - pts[a], vy = pts[c+1] - pts[a+1],
+            vz = pts[c+2] - pts[a+2];
+        n[0] = uy*vz - uz*vy;
+        n[1] = uz*vx - ux*vz;
+        n[2] = ux*vy - uy*vx;
+        double len = Math.sqrt(n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+        if (len > 0) {
+            n[0] /= len;
+            n[1] /= len;
+            n[2] /= len;
+        }
+        return 0.5 * len;
+    }
+
+    // Add w times the quadric of plane ax+by+cz+d=0 to vertex v
+    private void addPlane(int v, double a, double b, double c, double d,
+                          double w)
+    {
+        double[] q = quad;
+        int i = 10 * v;
+        q[i]   += w*a*a; q[i+1] += w*a*b; q[i+2] += w*a*c; q[i+3] += w*a*d;
+        q[i+4] += w*b*b; q[i+5] += w*b*c; q[i+6] += w*b*d;
+        q[i+7] += w*c*c; q[i+8] += w*c*d;
+        q[i+9] += w*d*d;
+    }
+
+    // Plane through boundary edge (v0,v1) perpendicular to triangle t
+    private void addBoundaryPlane(int v0, int v1, int t)
+    {
+        double[] n = new double[3];
+        if (normal(tri[3*t], tri[3*t+1], tri[3*t+2], n) == 0)
+          return;
+
+        int a = 3 * v0, b = 3 * v1;
+        double ex = pts[b] - pts[a], ey = pts[b+1] - pts[a+1],
+            ez = pts[b+2] - pts[a+2];
+        double px = ey*n[2] - ez*n[1], py = ez*n[0] - ex*n[2],
+            pz = ex*n[1] - ey*n[0];
+        double len = Math.sqrt(px*px + py*py + pz*pz);
+        if (len == 0)
+          return;
+        px /= len; py /= len; pz /= len;
+
+        double d = -(px*pts[a] + py*pts[a+1] + pz*pts[a+2]);
+        double w = BOUNDARY_WEIGHT * (ex*ex + ey*ey + ez*ez);
+        addPlane(v0, px, py, pz, d, w);
+        addPlane(v1, px, py, pz, d, w);
+    }
+
+    // Error of position p for the sum of the quadrics of a and b
+    private double error(int a, int b, double[] p)
+    {
+        double[] q = quad;
+        int i = 10 * a, j = 10 * b;
+        double x = p[0], y = p[1], z = p[2];
+        return (q[i] + q[j])*x*x + 2*(q[i+1] + q[j+1])*x*y +
+            2*(q[i+2] + q[j+2])*x*z + 2*(q[i+3] + q[j+3])*x +
+            (q[i+4] + q[j+4])*y*y + 2*(q[i+5] + q[j+5])*y*z +
+            2*(q[i+6] + q[j+6])*y + (q[i+7] + q[j+7])*z*z +
+            2*(q[i+8] + q[j+8])*z + (q[i+9] + q[j+9]);
+    }
+
+    // Position minimizing the summed quadric of a and b (or the best of
+    // the endpoints and midpoint, if the minimum is not unique)
+    private void optimalPosition(int a, int b, double[] p)
+    {
+        double[] q = quad;
+        int i = 10 * a, j = 10 * b;
+        double a00 = q[i] + q[j], a01 = q[i+1] + q[j+1], a02 = q[i+2] + q[j+2];
+        double a11 = q[i+4] + q[j+4], a12 = q[i+5] + q[j+5];
+        double a22 = q[i+7] + q[j+7];
+        double b0 = -(q[i+3] + q[j+3]), b1 = -(q[i+6] + q[j+6]),
+            b2 = -(q[i+8] + q[j+8]);
+
+        double c00 = a11*a22 - a12*a12;
+        double c01 = a02*a12 - a01*a22;
+        double c02 = a01*a12 - a02*a11;
+        double det = a00*c00 + a01*c01 + a02*c02;
+        double size = Math.abs(a00) + Math.abs(a11) + Math.abs(a22);
+
+        if (Math.abs(det) > 1e-9 * size * size * size) {
+            double c11 = a00*a22 - a02*a02;
+            double c12 = a01*a02 - a00*a12;
+            double c22 = a00*a11 - a01*a01;
+            p[0] = (c00*b0 + c01*b1 + c02*b2) / det;
+            p[1] = (c01*b0 + c11*b1 + c12*b2) / det;
+            p[2] = (c02*b0 + c12*b1 + c22*b2) / det;
+
+            // Don't move far from the edge (nearly singular systems)
+            double ex = pts[3*b] - pts[3*a], ey = pts[3*b+1] - pts[3*a+1],
+                ez = pts[3*b+2] - pts[3*a+2];
+            double mx = p[0] - 0.5 * (pts[3*a] + pts[3*b]);
+            double my = p[1] - 0.5 * (pts[3*a+1] + pts[3*b+1]);
+            double mz = p[2] - 0.5 * (pts[3*a+2] + pts[3*b+2]);
+            if (mx*mx + my*my + mz*mz <= 4 * (ex*ex + ey*ey + ez*ez))
+              return;
+        }
+
+        double[] best = null;
+        double bestErr = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < 3; k++) {
+            double s = 0.5 * k;
+            double[] c = {
+                (1-s) * pts[3*a] + s * pts[3*b],
+                (1-s) * pts[3*a+1] + s * pts[3*b+1],
+                (1-s) * pts[3*a+2] + s * pts[3*b+2]
+            };
+            double err = error(a, b, c);
+            if (best == null || err < bestErr) {
+                best = c;
+                bestErr = err;
+            }
+        }
+        System.arraycopy(best, 0, p, 0, 3);
+    }
+
+    // ---------------------------------------------------------------------
+    // Collapses
+
+    // Can b be collapsed into a, moving a to p?
+    private boolean canCollapse(int a, int b, double[] p)
+    {
+        // Link condition: the only vertices next to both a and b are the
+        // third vertices of the triangles on edge (a,b)
+        markStamp++;
+        for (int i = 0; i < vtCount[a]; i++) {
+            int t = vt[a][i];
+            if (deadTri[t])
+              continue;
+            for (int j = 0; j < 3; j++) {
+                mark[tri[3*t+j]] = markStamp;
+            }
+        }
+        int shared = 0, common = 0;
+        markStamp++;
+        for (int i = 0; i < vtCount[b]; i++) {
+            int t = vt[b][i];
+            if (deadTri[t])
+              continue;
+            if (has(t, a))
+              shared++;
+            for (int j = 0; j < 3; j++) {
+                int w = tri[3*t+j];
+                if (w != a && w != b && mark[w] == markStamp - 1) {
+                    mark[w] = markStamp;
+                    common++;
+                }
+            }
+        }
+        if (common > shared)
+          return false;
+
+        // No triangle may flip
+        return !flips(a, b, p) && !flips(b, a, p);
+    }
+
+    // Would moving v to p flip one of its triangles (other than those
+    // it shares with u)?
+    private boolean flips(int v, int u, double[] p)
+    {
+        double[] before = new double[3];
+        for (int i = 0; i < vtCount[v]; i++) {
+            int t = vt[v][i];
+            if (deadTri[t] || has(t, u))
+              continue;
+
+            if (normal(tri[3*t], tri[3*t+1], tri[3*t+2], before) == 0)
+              continue;
+
+            // Other two vertices, in order after v
+            int j = (tri[3*t] == v) ? 0 : (tri[3*t+1] == v) ? 1 : 2;
+            int b = 3 * tri[3*t + (j+1) % 3], c = 3 * tri[3*t + (j+2) % 3];
+            double ux = pts[b] - p[0], uy = pts[b+1] - p[1],
+                uz = pts[b+2] - p[2];
+            double wx = pts[c] - p[0], wy = pts[c+1] - p[1],
+                wz = pts[c+2] - p[2];
+            double nx = uy*wz - uz*wy, ny = uz*wx - ux*wz, nz = ux*wy - uy*wx;
+            if (nx*before[0] + ny*before[1] + nz*before[2] <= 0)
+              return true;
+        }
+        return false;
+    }
+
+    // Does triangle t use vertex v?
+    private boolean has(int t, int v)
+    {
+        return tri[3*t] == v || tri[3*t+1] == v || tri[3*t+2] == v;
+    }
+
+    // Collapse b into a, moving a to p
+    private void collapse(int a, int b, double[] p)
+    {
+        pts[3*a] = p[0];
+        pts[3*a+1] = p[1];
+        pts[3*a+2] = p[2];
+        for (int k = 0; k < 10; k++) {
+            quad[10*a+k] += quad[10*b+k];
+        }
+
+        for (int i = 0; i < vtCount[b]; i++) {
+            int t = vt[b][i];
+            if (deadTri[t]) {
+                continue;
+            } else if (has(t, a)) {
+                // Degenerate: remove
+                deadTri[t] = true;
+                alive--;
+            } else {
+                for (int j = 0; j < 3; j++) {
+                    if (tri[3*t+j] == b)
+                      tri[3*t+j] = a;
+                }
+                if (vtCount[a] == vt[a].length)
+                  vt[a] = Arrays.copyOf(vt[a], 2 * vt[a].length);
+                vt[a][vtCount[a]++] = t;
+            }
+        }
+
+        // Drop dead triangles from the lists of a
+        int n = 0;
+        for (int i = 0; i < vtCount[a]; i++) {
+            if (!deadTri[vt[a][i]])
+              vt[a][n++] = vt[a][i];
+        }
+        vtCount[a] = n;
+
+        deadVertex[b] = true;
+        vt[b] = null;
+        vtCount[b] = 0;
+        version[a]++;
+        version[b]++;
+    }
+
+    // Copy of the current mesh (unused vertices dropped), with normals
+    private CompactMesh extract()
+    {
+        int[] map = new int[nv];
+        Arrays.fill(map, -1);
+        int nvOut = 0, ntOut = 0;
+        for (int t = 0; t < nt; t++) {
+            if (deadTri[t])
+              continue;
+            ntOut++;
+            for (int j = 0; j < 3; j++) {
+                int v = tri[3*t+j];
+                if (map[v] < 0)
+                  map[v] = nvOut++;
+            }
+        }
+
+        double[] points = new double[3 * nvOut];
+        for (int v = 0; v < nv; v++) {
+            if (map[v] >= 0)
+              System.arraycopy(pts, 3*v, points, 3*map[v], 3);
+        }
+        int[] offset = new int[ntOut + 1];
+        int[] index = new int[3 * ntOut];
+        int k = 0;
+        for (int t = 0; t < nt; t++) {
+            if (deadTri[t])
+              continue;
+            for (int j = 0; j < 3; j++) {
+                index[3*k+j] = map[tri[3*t+j]];
+            }
+            k++;
+            offset[k] = 3 * k;
+        }
+
+        CompactMesh m = new CompactMesh(nvOut, points, ntOut, offset, index);
+        m.computeNormals();
+        return m;
+    }
+
+    // ---------------------------------------------------------------------
+    // Heap of candidate collapses
+
+    // Add the collapse of edge (a,b) (p is scratch space)
+    private void push(int a, int b, double[] p)
+    {
+        optimalPosition(a, b, p);
+        double cost = error(a, b, p);
+
+        if (heapSize == heapCost.length) {
+            int n = 2 * heapSize;
+            heapCost = Arrays.copyOf(heapCost, n);
+            heapA = Arrays.copyOf(heapA, n);
+            heapB = Arrays.copyOf(heapB, n);
+            heapVA = Arrays.copyOf(heapVA, n);
+            heapVB = Arrays.copyOf(heapVB, n);
+        }
+
+        // Sift up
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heapCost[parent] <= cost)
+              break;
+            move(parent, i);
+            i = parent;
+        }
+        heapCost[i] = cost;
+        heapA[i] = a;
+        heapB[i] = b;
+        heapVA[i] = version[a];
+        heapVB[i] = version[b];
+    }
+
+    // Remove the cheapest entry
+    private void pop()
+    {
+        heapSize--;
+        if (heapSize == 0)
+          return;
+
+        // Sift the last entry down from the root
+        int last = heapSize;
+        double cost = heapCost[last];
+        int i = 0;
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= heapSize)
+              break;
+            if (c + 1 < heapSize && heapCost[c+1] < heapCost[c])
+              c++;
+            if (cost <= heapCost[c])
+              break;
+            move(c, i);
+            i = c;
+        }
+        move(last, i);
+    }
+
+    private void move(int from, int to)
+    {
+        heapCost[to] = heapCost[from];
+        heapA[to] = heapA[from];
+        heapB[to] = heapB[from];
+        heapVA[to] = heapVA[from];
+        heapVB[to] = heapVB[from];
+    }
+}
@@ -0,0 +1,213 @@
+/* class MeshEdges
+ * Edge adjacency of an indexed mesh
+ *
+ * Each distinct edge e (an unordered pair of vertices) is stored once,
+ * with its vertices v0[e] < v1[e] and the polygons on either side,
+ * f0[e] and f1[e] (f1[e] is -1 for a boundary edge).  Edges are
+ * numbered in the order they are first used by the polygons.
+ *
+ * The half-edges are the polygon corners: corner i (an index into the
+ * mesh index buffer) is the edge from index[i] to the next vertex of
+ * its polygon, and cornerEdge[i] is the edge it belongs to.
+ *
+ * Edges with more than two polygons (non-manifold) keep the first two;
+ * the others are only counted in faceCount[e].
+ */
+
+import java.util.*;
+
+public class MeshEdges
+{
+    // Edges: vertices and adjacent polygons
+    int numEdges;
+    int[] v0, v1;
+    int[] f0, f1;
+    int[] faceCount;
+
+    // Edge of each polygon corner (half-edge)
+    int[] cornerEdge;
+
+    // All edges as pairs of vertices (made when first needed)
+    private int[] lines;
+
+    // Edges per block of the parallel silhouette search
+    private static final int SILHOUETTE_GRAIN = 8192;
+
+    // Build the edges of a mesh, finding shared edges with a hash table
+    // keyed on the sorted vertex pair
+    public MeshEdges(CompactMesh mesh)
+    {
+        int corners = mesh.offset[mesh.numPolygons];
+
+        // Open addressing table (power of two size, at most half full)
+        int size = Integer.highestOneBit(Math.max(4, 2 * corners)) * 2;
+        long[] keys = new long[size];
+        int[] ids = new int[size];
+        Arrays.fill(ids, -1);
+
+        // At most one edge per corner
+        v0 = new int[corners];
+        v1 = new int[corners];
+        f0 = new int[corners];
+        f1 = new int[corners];
+        faceCount = new int[corners];
+        cornerEdge = new int[corners];
+        numEdges = 0;
+
+        for (int p = 0; p < mesh.numPolygons; p++) {
+            int start = mesh.offset[p], end = mesh.offset[p+1];
+            for (int i = start; i < end; i++) {
+                int a = mesh.index[i];
+                int b = mesh.index[(i+1 < end) ? i+1 : start];
+                int lo = Math.min(a, b), hi = Math.max(a, b);
+                long key = ((long)lo << 32) | hi;
+
+                int slot = hash(key) & (size - 1);
+                while (ids[slot] >= 0 && keys[slot] != key) {
+                    slot = (slot + 1) & (size - 1);
+                }
+
+                int e = ids[slot];
+                if (e < 0) {
+                    // New edge
+                    e = numEdges++;
+                    keys[slot] = key;
+                    ids[slot] = e;
+                    v0[e] = lo;
+                    v1[e] = hi;
+                    f0[e] = p;
+                    f1[e] = -1;
+                } else if (faceCount[e] == 1) {
+                    f1[e] = p;
+                }
+                faceCount[e]++;
+                cornerEdge[i] = e;
+            }
+        }
+
+        v0 = Arrays.copyOf(v0, numEdges);
+        v1 = Arrays.copyOf(v1, numEdges);
+        f0 = Arrays.copyOf(f0, numEdges);
+        f1 = Arrays.copyOf(f1, numEdges);
+        faceCount = Arrays.copyOf(faceCount, numEdges);
+    }
+
+    // Mix the bits of a key (so that grid-like vertex numbers spread out)
+    private static int hash(long key)
+    {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int)(key ^ (key >>> 32));
+    }
+
+    // Is edge e on the boundary of the mesh (used by one polygon)?
+    public boolean isBoundary(int e)
+    {
+        return faceCount[e] == 1;
+    }
+
+    // Is edge e used by more than two polygons?
+    public boolean isNonManifold(int e)
+    {
+        return faceCount[e] > 2;
+    }
+
+    // Is edge e a crease: do the (unit) normals of its polygons differ
+    // by more than angle (in radians)?
+    public boolean isCrease(int e, double[] polyNormals, double angle)
+    {
+        if (f1[e] < 0)
+          return false;
+
+        int a = 3 * f0[e], b = 3 * f1[e];
+        double cos = polyNormals[a] * polyNormals[b] +
+            polyNormals[a+1] * polyNormals[b+1] +
+            polyNormals[a+2] * polyNormals[b+2];
+        return cos < Math.cos(angle);
+    }
+
+    // All edges, as pairs of vertices (for drawing as GL_LINES)
+    public synchronized int[] lines()
+    {
+        if (lines == null) {
+            lines = new int[2 * numEdges];
+            for (int e = 0; e < numEdges; e++) {
+                lines[2*e] = v0[e];
+                lines[2*e+1] = v1[e];
+            }
+        }
+        return lines;
+    }
+
+    // Boundary edges, as pairs of vertices
+    public int[] boundaryLines()
+    {
+        int n = 0;
+        int[] res = new int[64];
+        for (int e = 0; e < numEdges; e++) {
+            if (isBoundary(e)) {
+                if (n == res.length)
+                  res = Arrays.copyOf(res, 2 * n);
+                res[n++] = v0[e];
+                res[n++] = v1[e];
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    // Crease edges of a mesh (made of these edges), as pairs of vertices
+    public int[] creaseLines(CompactMesh mesh, double angle)
+    {
+        int n = 0;
+        int[] res = new int[64];
+        for (int e = 0; e < numEdges; e++) {
+            if (isCrease(e, mesh.polyNormals, angle)) {
+                if (n == res.length)
+                  res = Arrays.copyOf(res, 2 * n);
+                res[n++] = v0[e];
+                res[n++] = v1[e];
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    // Silhouette edges, given which polygons face the viewer: edges
+    // between a front and a back facing polygon, and boundary edges of
+    // back facing polygons (as the outlines of back faces would show;
+    // seams of UV shapes stay hidden this way).  Returned as pairs of
+    // vertices, ready to draw as GL_LINES.
+    public int[] silhouette(final boolean[] front)
+    {
+        // Each block of edges collects its own list (by its first edge),
+        // and the lists are joined in order
+        final SortedMap<Integer, int[]> parts =
+            Collections.synchronizedSortedMap(new TreeMap<Integer, int[]>());
+        Parallel.forRange(numEdges, SILHOUETTE_GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    int[] lines = new int[64];
+                    int n = 0;
+                    for (int e = start; e < end; e++) {
+                        if (f1[e] < 0 ? !front[f0[e]] :
+                            front[f0[e]] != front[f1[e]]) {
+                            if (n == lines.length)
+                              lines = Arrays.copyOf(lines, 2 * n);
+                            lines[n++] = v0[e];
+                            lines[n++] = v1[e];
+                        }
+                    }
+                    parts.put(start, Arrays.copyOf(lines, n));
+                }
+            });
+
+        int n = 0;
+        for (int[] part : parts.values()) {
+            n += part.length;
+        }
+        int[] lines = new int[n];
+        n = 0;
+        for (int[] part : parts.values()) {
+            System.arraycopy(part, 0, lines, n, part.length);
+            n += part.length;
+        }
+        return lines;
+    }
+}
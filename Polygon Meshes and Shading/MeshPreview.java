@@ -0,0 +1,245 @@
+/* class MeshPreview
+ * Stand-in shape shown while a mesh file loads in the background
+ *
+ * It draws a progress bar for the load, and once sample() is done, a
+ * coarse preview: the vertices on lines read at evenly spaced places in
+ * the file, as points, inside their bounding box.  They are rescaled
+ * like the mesh will be (CompactMesh.rescale(), but from the samples),
+ * so the preview sits about where the mesh will appear.
+ *
+ * The preview has no polygons, and cannot be picked.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import javax.media.opengl.GL;
+
+public class MeshPreview extends Shape
+{
+    // Progress of the load
+    private LoadProgress progress;
+
+    // Sampled vertices (x,y,z, rescaled), and their bounding box (null
+    // until sampled)
+    private volatile float[] samples;
+    private float[] bbmin, bbmax;
+
+    // Number of places in the file to read a line at
+    static final int SAMPLES = 20000;
+
+    // Longest line read at each place
+    private static final int MAX_LINE = 256;
+
+    // Constructor
+    public MeshPreview(String filename, LoadProgress loadProgress)
+    {
+        super(filename);
+
+        vertices = new Vertex[0];
+        polygons = new Polygon[0];
+        progress = loadProgress;
+        samples = null;
+    }
+
+    // Progress of the load
+    public LoadProgress getProgress()
+    {
+        return progress;
+    }
+
+    // Nothing to pick
+    public boolean pickable()
+    {
+        return false;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Read the vertices at SAMPLES places in the file (this only reads
+    // a small part of the file, at any size)
+    public void sample(String filename)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        float[] pts = new float[3 * SAMPLES];
+        int n = 0;
+
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            ByteBuffer buf = ByteBuffer.allocate(MAX_LINE);
+            byte[] line = new byte[MAX_LINE];
+            double[] xyz = new double[3];
+
+            for (int k = 0; k < SAMPLES; k++) {
+                long pos = size * k / SAMPLES;
+                buf.clear();
+                int len = channel.read(buf, pos);
+                if (len <= 0)
+                  continue;
+                buf.flip();
+                buf.get(line, 0, len);
+
+                // The first whole line from pos (the file starts one)
+                int i = 0;
+                if (pos > 0) {
+                    while (i < len && line[i] != '\n') {
+                        i++;
+                    }
+                    i++;
+                }
+                int end = i;
+                while (end < len && line[end] != '\n') {
+                    end++;
+                }
+                if (end == len && pos + len < size)
+                  continue;
+
+                if (parseVertex(line, i, end, xyz)) {
+                    pts[n++] = (float)xyz[0];
+                    pts[n++] = (float)xyz[1];
+                    pts[n++] = (float)xyz[2];
+                }
+            }
+        } finally {
+            file.close();
+        }
+
+        if (n == 0)
+          return;
+
+        // Rescale them like the mesh (center the bounding box, and fit
+        // it in the view)
+        float[] lo = { pts[0], pts[1], pts[2] };
+        float[] hi = { pts[0], pts[1], pts[2] };
+        for (int i = 3; i < n; i++) {
+            lo[i % 3] = Math.min(lo[i % 3], pts[i]);
+            hi[i % 3] = Math.max(hi[i % 3], pts[i]);
+        }
+        float maxBBox = Math.max(Math.max(hi[0] - lo[0], hi[1] - lo[1]),
+                                 hi[2] - lo[2]);
+        float s = (maxBBox > 0) ? 3.2f/maxBBox : 1;
+        for (int i = 0; i < n; i++) {
+            float c = 0.5f * (lo[i % 3] + hi[i % 3]);
+            pts[i] = (pts[i] - c) * s;
+        }
+        bbmin = new float[3];
+        bbmax = new float[3];
+        for (int k = 0; k < 3; k++) {
+            bbmax[k] = 0.5f * (hi[k] - lo[k]) * s;
+            bbmin[k] = -bbmax[k];
+        }
+
+        samples = Arrays.copyOf(pts, n);
+    }
+
+    // Parse "v x y z" from line[start..end) into xyz (false if it is not
+    // a vertex line)
+    private static boolean parseVertex(byte[] line, int start, int end,
+                                       double[] xyz)
+    {
+        if (end - start < 2 || line[start] != 'v' ||
+            (line[start+1] != ' ' && line[start+1] != '\t'))
+          return false;
+
+        int i = start + 1;
+        for (int k = 0; k < 3; k++) {
+            while (i < end && line[i] <= ' ') {
+                i++;
+            }
+            int first = i;
+            while (i < end && line[i] > ' ') {
+                i++;
+            }
+            if (i == first)
+              return false;
+            try {
+                xyz[k] = Double.parseDouble(new String(line, first,
+                                                       i - first));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Draw the preview (if sampled yet) and the progress bar
+    public void draw(GL gl)
+    {
+        float[] pts = samples;
+
+        if (pts != null) {
+            gl.glPushMatrix();
+            applyTransform(gl);
+
+            // Bounding box: the 4 edges along each axis k
+            gl.glColor3d(0.5, 0.5, 0.5);
+            gl.glBegin(GL.GL_LINES);
+            float[] p = new float[3];
+            for (int k = 0; k < 3; k++) {
+                int a = (k + 1) % 3, b = (k + 2) % 3;
+                for (int c = 0; c < 4; c++) {
+                    p[a] = ((c & 1) == 0) ? bbmin[a] : bbmax[a];
+                    p[b] = ((c & 2) == 0) ? bbmin[b] : bbmax[b];
+                    p[k] = bbmin[k];
+                    gl.glVertex3f(p[0], p[1], p[2]);
+                    p[k] = bbmax[k];
+                    gl.glVertex3f(p[0], p[1], p[2]);
+                }
+            }
+            gl.glEnd();
+
+            // Sampled vertices
+            float[] color = getMatColor();
+            gl.glColor3f(color[0], color[1], color[2]);
+            gl.glPointSize(2.0f);
+            gl.glBegin(GL.GL_POINTS);
+            for (int i = 0; i < pts.length; i += 3) {
+                gl.glVertex3f(pts[i], pts[i+1], pts[i+2]);
+            }
+            gl.glEnd();
+            gl.glPointSize(1.0f);
+
+            gl.glPopMatrix();
+        }
+
+        drawProgress(gl);
+    }
+
+    // Draw the progress of the current step as a bar along the bottom
+    // of the window
+    private void drawProgress(GL gl)
+    {
+        double x0 = -0.8, x1 = 0.8, y0 = -0.92, y1 = -0.86;
+        double x = x0 + (x1 - x0) * progress.getFraction();
+
+        gl.glMatrixMode(GL.GL_PROJECTION);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        gl.glMatrixMode(GL.GL_MODELVIEW);
+        gl.glPushMatrix();
+        gl.glLoadIdentity();
+        gl.glDisable(GL.GL_DEPTH_TEST);
+
+        gl.glColor3d(0.2, 0.4, 0.8);
+        gl.glRectd(x0, y0, x, y1);
+        gl.glColor3d(0.2, 0.2, 0.2);
+        gl.glBegin(GL.GL_LINE_LOOP);
+        gl.glVertex2d(x0, y0);
+        gl.glVertex2d(x1, y0);
+        gl.glVertex2d(x1, y1);
+        gl.glVertex2d(x0, y1);
+        gl.glEnd();
+
+        gl.glEnable(GL.GL_DEPTH_TEST);
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL.GL_PROJECTION);
+        gl.glPopMatrix();
+        gl.glMatrixMode(GL.GL_MODELVIEW);
+    }
+}
@@ -0,0 +1,627 @@
+/* class MeshRenderer
+ * Retained-mode drawing of the polygons of a shape
+ *
+ * The polygons are triangulated once (as fans) and their normals and
+ * positions are stored interleaved in direct buffers, which are drawn
+ * from vertex buffer objects (or from plain vertex arrays, when VBOs
+ * are not available).  Smooth shading shares the vertices through an
+ * index buffer; flat shading needs the polygon normal at each corner,
+ * so each triangle gets its own copies.
+ *
+ * With triangle strips (MeshStrips), smooth shading indexes the shared
+ * vertices in strip order instead, and flat shading sends the strip
+ * vertices with the normal of the triangle each one ends, drawn with
+ * glShadeModel(GL_FLAT) (so each triangle takes that normal's color).
+ * That needs fixed-function lighting, so with GLSL flat shading keeps
+ * to separate triangles.  Strips are joined with restart indices if
+ * the driver has NV_primitive_restart, or else by degenerate triangles.
+ *
+ * The buffers are rebuilt only when the geometry of the shape changes
+ * (Shape.geometryChanged()), or when switching between smooth and flat
+ * shading, or GLSL on and off (which changes what a UVShape sends).
+ *
+ * The wireframe and silhouettes are drawn from the edge adjacency of
+ * the mesh (built once): the wireframe draws each edge once, and the
+ * silhouettes only the edges between front and back facing polygons.
+ *
+ * Shapes stored in single precision (Shape.getFloatMesh()) are drawn
+ * straight from their float arrays, and quantized ones
+ * (Shape.getQuantizedMesh()) are decoded in a batch when the buffers
+ * are built; no copy in double is kept for either (getMesh() makes a
+ * new one on each call).
+ */
+
+import java.nio.*;
+
+import javax.media.opengl.GL;
+
+import com.sun.opengl.util.BufferUtil;
+
+public class MeshRenderer
+{
+    // Shape being drawn (null when drawing a fixed mesh)
+    private Shape shape;
+
+    // Fixed mesh in single precision or quantized (null if not used)
+    private FloatMesh floats;
+    private QuantizedMesh quantized;
+
+    // Its geometry as flat arrays, and the edges (built when needed)
+    private CompactMesh mesh;
+    private int meshVersion;
+    private boolean meshGLSL;
+    private MeshEdges edges;
+    private MeshStrips strips;
+
+    // Polygons of the packed mesh the edges and strips were made for
+    private int[] packedIndex;
+
+    // Vertex positions and indices for drawing lines, and polygon
+    // facing flags
+    private FloatBuffer pointData;
+    private IntBuffer lineData;
+    private boolean[] front;
+
+    // State the buffers were built for
+    private int builtVersion;
+    private boolean builtSmooth, builtGLSL, builtStrips;
+
+    // Interleaved normals/positions (GL_N3F_V3F) and triangle (or
+    // strip) indices (these are let go of once uploaded to VBOs)
+    private FloatBuffer vertexData;
+    private IntBuffer indexData;
+    private int vertexCount, indexCount;
+
+    // Primitive drawn, whether it is flat shaded strips, and whether
+    // strips are separated by restart indices
+    private int mode;
+    private boolean flatStrips, restart;
+
+    // Buffer objects (0 if not used)
+    private int[] vbo = { 0, 0 };
+    private boolean useVBO;
+
+    // Number of GL calls made by the last draw(), and the number of
+    // vertices (or indices) it sent
+    int glCalls;
+    int verticesSent;
+
+    // Constructor
+    public MeshRenderer(Shape s)
+    {
+        shape = s;
+        builtVersion = -1;
+        meshVersion = -1;
+    }
+
+    // Constructor: renderer for a mesh that doesn't change (such as a
+    // level of detail)
+    public MeshRenderer(CompactMesh m)
+    {
+        shape = null;
+        mesh = m;
+        builtVersion = -1;
+        meshVersion = 0;
+    }
+
+    // Constructor: renderer for a fixed mesh in single precision
+    public MeshRenderer(FloatMesh f)
+    {
+        shape = null;
+        floats = f;
+        builtVersion = -1;
+        meshVersion = 0;
+    }
+
+    // Constructor: renderer for a fixed quantized mesh
+    public MeshRenderer(QuantizedMesh q)
+    {
+        shape = null;
+        quantized = q;
+        builtVersion = -1;
+        meshVersion = 0;
+    }
+
+    // The mesh in single precision, or quantized, if it is stored that
+    // way
+    private FloatMesh floatMesh()
+    {
+        return (shape != null) ? shape.getFloatMesh() : floats;
+    }
+    private QuantizedMesh quantizedMesh()
+    {
+        return (shape != null) ? shape.getQuantizedMesh() : quantized;
+    }
+
+    // Vertex data version and GLSL state of the shape
+    private int version()
+    {
+        return (shape != null) ? shape.getVertexDataVersion() : 0;
+    }
+    private boolean glsl()
+    {
+        return shape != null && shape.useGLSL();
+    }
+
+    // Current geometry of the shape as flat arrays, as drawn (these may
+    // also be called from outside the GL thread)
+    public synchronized CompactMesh getMesh()
+    {
+        FloatMesh f = floatMesh();
+        QuantizedMesh q = quantizedMesh();
+        if (f != null || q != null) {
+            // Not kept, so the geometry stays packed (checkMesh()
+            // tells when its polygons change)
+            return (f != null) ? f.toCompact() : q.toCompact();
+        }
+
+        if (mesh == null || meshVersion != version() || meshGLSL != glsl()) {
+            meshVersion = version();
+            meshGLSL = glsl();
+
+            CompactMesh m = shape.getCompactMesh();
+            if (m == null) {
+                m = CompactMesh.fromShape(shape);
+            }
+            // Keep the edges if the polygons are still the same
+            if (mesh == null || m.index != mesh.index) {
+                edges = null;
+                strips = null;
+            }
+            mesh = m;
+            pointData = null;
+        }
+        return mesh;
+    }
+
+    // Drop what was made from an older geometry: the edges and strips
+    // if the polygons have changed, and the line positions
+    private void checkMesh()
+    {
+        FloatMesh f = floatMesh();
+        QuantizedMesh q = quantizedMesh();
+        if (f == null && q == null) {
+            getMesh();
+        } else if (meshVersion != version()) {
+            meshVersion = version();
+            pointData = null;
+            int[] index = (f != null) ? f.index : q.index;
+            if (index != packedIndex) {
+                packedIndex = index;
+                edges = null;
+                strips = null;
+            }
+        }
+    }
+
+    // Edges of the current geometry
+    public synchronized MeshEdges getEdges()
+    {
+        checkMesh();
+        if (edges == null) {
+            edges = new MeshEdges(getMesh());
+        }
+        return edges;
+    }
+
+    // Triangle strips over the current geometry (the shape's own, such
+    // as rows of a UV grid, or else made from its polygons)
+    public synchronized MeshStrips getStrips()
+    {
+        checkMesh();
+        if (strips == null) {
+            if (shape != null) {
+                strips = shape.getStrips();
+            }
+            if (strips == null) {
+                strips = MeshStrips.stripify(getMesh());
+            }
+        }
+        return strips;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Draw the polygons of the shape (smooth or flat shaded) as
+    // triangles
+    public void draw(GL gl, boolean smooth)
+    {
+        draw(gl, smooth, false);
+    }
+
+    // Draw the polygons of the shape, as triangle strips if useStrips
+    public void draw(GL gl, boolean smooth, boolean useStrips)
+    {
+        if (builtVersion != version() || builtSmooth != smooth ||
+            builtGLSL != glsl() || builtStrips != useStrips) {
+            build(gl, smooth, useStrips);
+        }
+        if (vertexCount == 0)
+          return;
+
+        glCalls = 0;
+        if (flatStrips) {
+            gl.glShadeModel(GL.GL_FLAT);
+            glCalls++;
+        }
+        if (restart) {
+            gl.glEnableClientState(GL.GL_PRIMITIVE_RESTART_NV);
+            gl.glPrimitiveRestartIndexNV(MeshStrips.RESTART);
+            glCalls += 2;
+        }
+
+        if (useVBO) {
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo[0]);
+            gl.glInterleavedArrays(GL.GL_N3F_V3F, 0, 0L);
+            glCalls += 2;
+            if (indexCount > 0) {
+                gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, vbo[1]);
+                gl.glDrawElements(mode, indexCount, GL.GL_UNSIGNED_INT, 0L);
+                gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+                glCalls += 3;
+            } else {
+                gl.glDrawArrays(mode, 0, vertexCount);
+                glCalls++;
+            }
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+            glCalls++;
+        } else {
+            gl.glInterleavedArrays(GL.GL_N3F_V3F, 0, vertexData);
+            glCalls++;
+            if (indexCount > 0) {
+                gl.glDrawElements(mode, indexCount, GL.GL_UNSIGNED_INT,
+                                  indexData);
+            } else {
+                gl.glDrawArrays(mode, 0, vertexCount);
+            }
+            glCalls++;
+        }
+        verticesSent = (indexCount > 0) ? indexCount : vertexCount;
+
+        // glInterleavedArrays turned these on
+        gl.glDisableClientState(GL.GL_NORMAL_ARRAY);
+        gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+        glCalls += 2;
+
+        if (restart) {
+            gl.glDisableClientState(GL.GL_PRIMITIVE_RESTART_NV);
+            glCalls++;
+        }
+        if (flatStrips) {
+            gl.glShadeModel(GL.GL_SMOOTH);
+            glCalls++;
+        }
+    }
+
+    // Draw each edge of the mesh once, as a single batch of lines
+    public void drawWireframe(GL gl)
+    {
+        int[] lines = getEdges().lines();
+        drawLines(gl, lines, lines.length);
+    }
+
+    // Draw the silhouette edges for the current view (the modelview
+    // matrix must include the transformation of the shape)
+    public void drawSilhouettes(GL gl)
+    {
+        FloatMesh f = floatMesh();
+        QuantizedMesh q = quantizedMesh();
+        CompactMesh m = (f == null && q == null) ? getMesh() : null;
+        MeshEdges e = getEdges();
+        int numPolygons = (f != null) ? f.numPolygons :
+            (q != null) ? q.numPolygons : m.numPolygons;
+
+        // Eye position in the coordinates of the mesh
+        double[] mv = new double[16];
+        gl.glGetDoublev(GL.GL_MODELVIEW_MATRIX, mv, 0);
+        double[] eye = eyePosition(mv);
+
+        if (front == null || front.length != numPolygons) {
+            front = new boolean[numPolygons];
+        }
+        if (f != null) {
+            f.frontFacing(eye, front);
+        } else if (q != null) {
+            q.frontFacing(eye, front);
+        } else {
+            m.frontFacing(eye, front);
+        }
+        int[] lines = e.silhouette(front);
+        drawLines(gl, lines, lines.length);
+    }
+
+    // Draw lines between the n vertices listed in lines (in pairs)
+    private void drawLines(GL gl, int[] lines, int n)
+    {
+        if (n == 0)
+          return;
+
+        FloatBuffer points = linePoints();
+        if (lineData == null || lineData.capacity() < n) {
+            lineData = BufferUtil.newIntBuffer(Math.max(n, 1024));
+        }
+        lineData.clear();
+        lineData.put(lines, 0, n);
+        lineData.rewind();
+
+        gl.glEnableClientState(GL.GL_VERTEX_ARRAY);
+        gl.glVertexPointer(3, GL.GL_FLOAT, 0, points);
+        gl.glDrawElements(GL.GL_LINES, n, GL.GL_UNSIGNED_INT, lineData);
+        gl.glDisableClientState(GL.GL_VERTEX_ARRAY);
+    }
+
+    // Vertex positions for drawing lines, made when first needed after
+    // the geometry changes (getMesh() and checkMesh() may drop them from
+    // other threads, so they are only read and made under the lock)
+    private synchronized FloatBuffer linePoints()
+    {
+        if (pointData == null) {
+            Source src = source();
+            FloatBuffer points =
+                BufferUtil.newFloatBuffer(3 * src.numVertices);
+            for (int v = 0; v < src.numVertices; v++) {
+                src.point(points, v);
+            }
+            points.rewind();
+            pointData = points;
+        }
+        return pointData;
+    }
+
+    // Position of the eye (the origin of eye coordinates) given the
+    // modelview matrix M (column major): M^-1 (0,0,0,1), for M affine
+    static double[] eyePosition(double[] m)
+    {
+        // Upper 3x3 part A (a[row][col]) and translation t
+        double a00 = m[0], a01 = m[4], a02 = m[8];
+        double a10 = m[1], a11 = m[5], a12 = m[9];
+        double a20 = m[2], a21 = m[6], a22 = m[10];
+        double tx = -m[12], ty = -m[13], tz = -m[14];
+
+        // Solve A x = -t with the adjugate
+        double c00 = a11*a22 - a12*a21;
+        double c01 = a02*a21 - a01*a22;
+        double c02 = a01*a12 - a02*a11;
+        double c10 = a12*a20 - a10*a22;
+        double c11 = a00*a22 - a02*a20;
+        double c12 = a02*a10 - a00*a12;
+        double c20 = a10*a21 - a11*a20;
+        double c21 = a01*a20 - a00*a21;
+        double c22 = a00*a11 - a01*a10;
+        double det = a00*c00 + a01*c10 + a02*c20;
+
+        return new double[] {
+            (c00*tx + c01*ty + c02*tz) / det,
+            (c10*tx + c11*ty + c12*tz) / det,
+            (c20*tx + c21*ty + c22*tz) / det
+        };
+    }
+
+    // Free the buffer objects
+    public void dispose(GL gl)
+    {
+        if (vbo[0] != 0) {
+            gl.glDeleteBuffers(2, vbo, 0);
+            vbo[0] = vbo[1] = 0;
+        }
+        vertexData = null;
+        indexData = null;
+        builtVersion = -1;
+    }
+
+    // Number of GL calls the immediate-mode code in Shape makes to draw
+    // the polygons of a shape (for comparison)
+    public static long immediateCalls(Shape s, boolean smooth)
+    {
+        long calls = 0;
+        for (int i = 0; i < s.numPolygons(); i++) {
+            int size = s.getPolygon(i).size();
+            // glBegin/glEnd; normal and vertex per corner (smooth), or
+            // one normal and a vertex per corner (flat)
+            calls += smooth ? 2 + 2*size : 3 + size;
+        }
+        return calls;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Triangulate the polygons and fill (and upload) the buffers
+    private void build(GL gl, boolean smooth, boolean useStrips)
+    {
+        builtVersion = version();
+        builtSmooth = smooth;
+        builtGLSL = glsl();
+        builtStrips = useStrips;
+
+        Source mesh = source();
+
+        flatStrips = useStrips && !smooth && !glsl();
+        restart = useStrips && smooth &&
+            gl.isExtensionAvailable("GL_NV_primitive_restart");
+        mode = (useStrips && (smooth || flatStrips)) ?
+            GL.GL_TRIANGLE_STRIP : GL.GL_TRIANGLES;
+
+        int triangles = 0;
+        for (int p = 0; p < mesh.numPolygons; p++) {
+            triangles += Math.max(0, mesh.offset[p+1] - mesh.offset[p] - 2);
+        }
+
+        if (smooth && mode == GL.GL_TRIANGLE_STRIP) {
+            // Shared vertices, indexed in strip order
+            putSharedVertices(mesh);
+
+            MeshStrips st = getStrips();
+            int[] order = st.joined(restart);
+            indexCount = order.length;
+            indexData = BufferUtil.newIntBuffer(indexCount);
+            for (int i = 0; i < order.length; i++) {
+                indexData.put((order[i] == MeshStrips.RESTART) ?
+                              MeshStrips.RESTART : st.verts[order[i]]);
+            }
+            indexData.rewind();
+        } else if (mode == GL.GL_TRIANGLE_STRIP) {
+            // Strip vertices, with the normal of the triangle they end
+            // (the joining triangles, and the first two vertices of
+            // each strip, get no normal: it isn't used)
+            MeshStrips st = getStrips();
+            int[] order = st.joined(false);
+            vertexCount = order.length;
+            vertexData = BufferUtil.newFloatBuffer(6 * vertexCount);
+            for (int i = 0; i < order.length; i++) {
+                int p = st.polygon[order[i]];
+                if (p >= 0) {
+                    mesh.polyNormal(vertexData, p);
+                } else {
+                    vertexData.put(0).put(0).put(0);
+                }
+                mesh.point(vertexData, st.verts[order[i]]);
+            }
+            indexCount = 0;
+            indexData = null;
+        } else if (smooth) {
+            // Shared vertices with their own normals
+            putSharedVertices(mesh);
+
+            indexCount = 3 * triangles;
+            indexData = BufferUtil.newIntBuffer(indexCount);
+            for (int p = 0; p < mesh.numPolygons; p++) {
+                int start = mesh.offset[p];
+                for (int i = start + 2; i < mesh.offset[p+1]; i++) {
+                    indexData.put(mesh.index[start]);
+                    indexData.put(mesh.index[i-1]);
+                    indexData.put(mesh.index[i]);
+                }
+            }
+            indexData.rewind();
+        } else {
+            // Separate corners with the polygon normal
+            vertexCount = 3 * triangles;
+            vertexData = BufferUtil.newFloatBuffer(6 * vertexCount);
+            for (int p = 0; p < mesh.numPolygons; p++) {
+                int start = mesh.offset[p];
+                for (int i = start + 2; i < mesh.offset[p+1]; i++) {
+                    mesh.polyNormal(vertexData, p);
+                    mesh.point(vertexData, mesh.index[start]);
+                    mesh.polyNormal(vertexData, p);
+                    mesh.point(vertexData, mesh.index[i-1]);
+                    mesh.polyNormal(vertexData, p);
+                    mesh.point(vertexData, mesh.index[i]);
+                }
+            }
+            indexCount = 0;
+            indexData = null;
+        }
+        vertexData.rewind();
+
+        // Upload to buffer objects, if available
+        useVBO = gl.isFunctionAvailable("glGenBuffers") &&
+            gl.isFunctionAvailable("glBufferData");
+        if (useVBO) {
+            if (vbo[0] == 0) {
+                gl.glGenBuffers(2, vbo, 0);
+            }
+
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo[0]);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER,
+                            vertexData.capacity() * BufferUtil.SIZEOF_FLOAT,
+                            vertexData, GL.GL_STATIC_DRAW);
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+
+            if (indexData != null) {
+                gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, vbo[1]);
+                gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER,
+                                indexData.capacity() * BufferUtil.SIZEOF_INT,
+                                indexData, GL.GL_STATIC_DRAW);
+                gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+            }
+
+            // The data now lives in GL
+            vertexData = null;
+            indexData = null;
+        }
+    }
+
+    // Fill the vertex data with the vertices of the mesh and their
+    // normals
+    private void putSharedVertices(Source mesh)
+    {
+        vertexCount = mesh.numVertices;
+        vertexData = BufferUtil.newFloatBuffer(6 * vertexCount);
+        for (int v = 0; v < mesh.numVertices; v++) {
+            mesh.normal(vertexData, v);
+            mesh.point(vertexData, v);
+        }
+    }
+
+    // The current geometry to fill buffers from
+    private Source source()
+    {
+        FloatMesh f = floatMesh();
+        QuantizedMesh q = quantizedMesh();
+        if (q != null) {
+            // Decoded in a batch
+            f = q.toFloat();
+        }
+        return (f != null) ? new Source(f) : new Source(getMesh());
+    }
+
+    // Geometry to fill buffers from, in double or single precision: the
+    // polygons, and methods that append a position or normal to a
+    // buffer (as floats)
+    private static class Source
+    {
+        int numVertices, numPolygons;
+        int[] offset, index;
+
+        private double[] points, normals, polyNormals;
+        private float[] pointsF, normalsF, polyNormalsF;
+
+        Source(CompactMesh m)
+        {
+            numVertices = m.numVertices;
+            numPolygons = m.numPolygons;
+            offset = m.offset;
+            index = m.index;
+            points = m.points;
+            normals = m.normals;
+            polyNormals = m.polyNormals;
+        }
+        Source(FloatMesh f)
+        {
+            numVertices = f.numVertices;
+            numPolygons = f.numPolygons;
+            offset = f.offset;
+            index = f.index;
+            pointsF = f.points;
+            normalsF = f.normals;
+            polyNormalsF = f.polyNormals;
+        }
+
+        void point(FloatBuffer buf, int v)
+        {
+            put(buf, points, pointsF, 3*v);
+        }
+        void normal(FloatBuffer buf, int v)
+        {
+            put(buf, normals, normalsF, 3*v);
+        }
+        void polyNormal(FloatBuffer buf, int p)
+        {
+            put(buf, polyNormals, polyNormalsF, 3*p);
+        }
+
+        // Append the 3-vector at position i of a (or of af, if a is
+        // null) to buf
+        private static void put(FloatBuffer buf, double[] a, float[] af,
+                                int i)
+        {
+            if (a == null) {
+                buf.put(af, i, 3);
+            } else {
+                buf.put((float)a[i]);
+                buf.put((float)a[i+1]);
+                buf.put((float)a[i+2]);
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/* class MeshReorder
+ * Reordering of a mesh for the post-transform vertex cache
+ *
+ * Polygons are put in the order chosen by Tom Forsyth's "linear-speed
+ * vertex cache optimisation", run on the triangles the polygons are
+ * drawn as (their fans): each vertex is scored by its position in a
+ * simulated LRU cache and by how many triangles still use it, and the
+ * triangle with the highest total score next to the cache is drawn
+ * next.  Each polygon then goes where its first triangle was drawn.
+ * (Scoring whole polygons instead walks quad meshes in strips one
+ * polygon wide, which is no better than their row order.)  Vertices
+ * are then renumbered in the order they are first used, so that loops
+ * over the polygons walk the vertex arrays in order too.
+ *
+ * The quality of an order is measured by the ACMR (average cache miss
+ * ratio): vertices transformed per triangle with a FIFO cache of the
+ * same size as the simulated one, for the polygons drawn as fans.
+ * Forsyth's scores are tuned for an LRU cache, but give the same order
+ * for FIFO caches of this size; on a torus of 1000x1000 quads in grid
+ * order (or shuffled), the ACMR goes from 1.00 (2.00) to 0.74 (MeshBench
+ * -reordergrid).
+ *
+ * The file number of each polygon and vertex is kept in the mesh
+ * (filePolygon and fileVertex), to report them.
+ */
+
+import java.util.Arrays;
+
+public class MeshReorder
+{
+    // Size of the simulated cache (LRU when reordering, FIFO when
+    // measuring the ACMR)
+    static final int CACHE_SIZE = 16;
+
+    // Score of the vertices of the last polygon, falloff of the score
+    // with cache position, and the boost for vertices with few
+    // polygons left (from Forsyth)
+    private static final double LAST_POLYGON_SCORE = 0.75;
+    private static final double CACHE_DECAY = 1.5;
+    private static final double VALENCE_SCALE = 2.0;
+    private static final double VALENCE_POWER = 0.5;
+
+    // Reorder the polygons and renumber the vertices of a mesh (in
+    // place; normals, if computed, are moved along)
+    public static void reorder(CompactMesh m)
+    {
+        reorderPolygons(m);
+        renumberVertices(m);
+    }
+
+    // Average cache miss ratio of a mesh with a FIFO cache of the
+    // given size
+    public static double acmr(CompactMesh m, int cacheSize)
+    {
+        // A vertex is in the cache if fewer than cacheSize misses
+        // happened since it was loaded
+        int[] loaded = new int[m.numVertices];
+        Arrays.fill(loaded, Integer.MIN_VALUE / 2);
+        int misses = 0;
+        long triangles = 0;
+
+        for (int p = 0; p < m.numPolygons; p++) {
+            int start = m.offset[p], end = m.offset[p+1];
+            for (int i = start; i < end; i++) {
+                int v = m.index[i];
+                if (misses - loaded[v] >= cacheSize) {
+                    loaded[v] = misses++;
+                }
+            }
+            triangles += Math.max(0, end - start - 2);
+        }
+        return (triangles == 0) ? 0 : (double)misses / triangles;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Score of a vertex at a cache position (-1 if not in the cache)
+    // with the given number of polygons left, just after drawing a
+    // polygon with lastSize distinct vertices
+    private static double score(int pos, int remaining, int lastSize)
+    {
+        if (remaining == 0)
+          return -1;
+
+        double s = 0;
+        if (pos >= 0) {
+            if (pos < lastSize) {
+                s = LAST_POLYGON_SCORE;
+            } else {
+                double f = 1 - (double)(pos - lastSize) /
+                    (CACHE_SIZE - lastSize);
+                s = Math.pow(f, CACHE_DECAY);
+            }
+        }
+        return s + VALENCE_SCALE * Math.pow(remaining, -VALENCE_POWER);
+    }
+
+    // Tables of score() for the usual arguments (small polygons and
+    // vertices with few polygons left)
+    private static final int TABLE_SIZE = 32;
+    private static final double[][] CACHE_SCORE =
+        new double[TABLE_SIZE][CACHE_SIZE];
+    private static final double[] VALENCE_SCORE = new double[TABLE_SIZE];
+    static {
+        for (int last = 0; last < TABLE_SIZE; last++) {
+            for (int pos = 0; pos < CACHE_SIZE; pos++) {
+                CACHE_SCORE[last][pos] = score(pos, 1, last) -
+                    score(-1, 1, 0);
+            }
+        }
+        for (int r = 1; r < TABLE_SIZE; r++) {
+            VALENCE_SCORE[r] = score(-1, r, 0);
+        }
+    }
+
+    // Same as score(), from the tables when possible
+    private static double fastScore(int pos, int remaining, int lastSize)
+    {
+        if (remaining == 0)
+          return -1;
+        if (remaining >= TABLE_SIZE || lastSize >= TABLE_SIZE)
+          return score(pos, remaining, lastSize);
+        return ((pos >= 0) ? CACHE_SCORE[lastSize][pos] : 0) +
+            VALENCE_SCORE[remaining];
+    }
+
+    // Put the polygons in vertex cache order
+    private static void reorderPolygons(CompactMesh m)
+    {
+        int nv = m.numVertices, np = m.numPolygons;
+        int[] offset = m.offset, index = m.index;
+
+        // Triangle fans of the polygons (the mesh itself, if it is only
+        // triangles), and the polygon of each triangle
+        int nt = 0;
+        for (int p = 0; p < np; p++) {
+            nt += Math.max(0, offset[p+1] - offset[p] - 2);
+        }
+        int[] triPolygon = new int[nt];
+        int[] triOffset = offset, triIndex = index;
+        if (offset[np] != 3 * nt || nt != np) {
+            triOffset = new int[nt + 1];
+            triIndex = new int[3 * nt];
+            int t = 0;
+            for (int p = 0; p < np; p++) {
+                int start = offset[p];
+                for (int i = start + 1; i + 1 < offset[p+1]; i++) {
+                    triIndex[3*t] = index[start];
+                    triIndex[3*t+1] = index[i];
+                    triIndex[3*t+2] = index[i+1];
+                    triPolygon[t] = p;
+                    t++;
+                    triOffset[t] = 3 * t;
+                }
+            }
+        } else {
+            for (int t = 0; t < nt; t++) {
+                triPolygon[t] = t;
+            }
+        }
+        int[] triOrder = order(nv, nt, triOffset, triIndex);
+
+        // Each polygon where its first triangle is (those without any
+        // triangles last)
+        int[] order = new int[np];
+        boolean[] placed = new boolean[np];
+        int k = 0;
+        for (int i = 0; i < nt; i++) {
+            int p = triPolygon[triOrder[i]];
+            if (!placed[p]) {
+                placed[p] = true;
+                order[k++] = p;
+            }
+        }
+        for (int p = 0; p < np; p++) {
+            if (!placed[p])
+              order[k++] = p;
+        }
+
+        // Rebuild the index buffer (and polygon normals) in that order
+        int[] newOffset = new int[np + 1];
+        int[] newIndex = new int[index.length];
+        double[] newNormals = new double[3 * np];
+        int[] filePolygon = new int[np];
+        for (k = 0; k < np; k++) {
+            int p = order[k];
+            int size = offset[p+1] - offset[p];
+            System.arraycopy(index, offset[p], newIndex, newOffset[k], size);
+            newOffset[k+1] = newOffset[k] + size;
+            System.arraycopy(m.polyNormals, 3*p, newNormals, 3*k, 3);
+            filePolygon[k] = (m.filePolygon != null) ? m.filePolygon[p] : p;
+        }
+        m.offset = newOffset;
+        m.index = newIndex;
+        m.polyNormals = newNormals;
+        m.filePolygon = filePolygon;
+        m.clearAdjacency();
+    }
+
+    // Order to draw the polygons of a mesh in (given by its vertex
+    // count and index buffer), from their scores
+    private static int[] order(int nv, int np, int[] offset, int[] index)
+    {
+        MeshAdjacency adj = new MeshAdjacency(nv, np, offset, index);
+
+        int maxSize = 0;
+        for (int p = 0; p < np; p++) {
+            maxSize = Math.max(maxSize, offset[p+1] - offset[p]);
+        }
+
+        // Polygons left per vertex, and the scores
+        int[] remaining = new int[nv];
+        double[] vScore = new double[nv];
+        for (int v = 0; v < nv; v++) {
+            remaining[v] = adj.degree(v);
+            vScore[v] = score(-1, remaining[v], 0);
+        }
+        double[] pScore = new double[np];
+        int best = -1;
+        for (int p = 0; p < np; p++) {
+            for (int i = offset[p]; i < offset[p+1]; i++) {
+                pScore[p] += vScore[index[i]];
+            }
+            if (best < 0 || pScore[p] > pScore[best])
+              best = p;
+        }
+
+        // Cache contents (most recent first), and the same with the
+        // polygon just drawn added in front
+        int[] cache = new int[CACHE_SIZE + maxSize];
+        int[] next = new int[CACHE_SIZE + maxSize];
+        int cacheLen = 0;
+        int[] cachePos = new int[nv];
+        Arrays.fill(cachePos, -1);
+        int[] added = new int[nv];
+        Arrays.fill(added, -1);
+
+        boolean[] drawn = new boolean[np];
+        int[] order = new int[np];
+        int cursor = 0;
+
+        for (int k = 0; k < np; k++) {
+            // Nothing next to the cache: take the next polygon left
+            if (best < 0) {
+                while (drawn[cursor]) {
+                    cursor++;
+                }
+                best = cursor;
+            }
+            int p = best;
+            drawn[p] = true;
+            order[k] = p;
+
+            // Its vertices go to the front of the cache
+            int n = 0;
+            for (int i = offset[p]; i < offset[p+1]; i++) {
+                int v = index[i];
+                remaining[v]--;
+                if (added[v] != k) {
+                    added[v] = k;
+                    next[n++] = v;
+                }
+            }
+            int lastSize = n;
+            for (int i = 0; i < cacheLen; i++) {
+                if (added[cache[i]] != k)
+                  next[n++] = cache[i];
+            }
+
+            // Rescore the vertices (those pushed out leave the cache)
+            for (int i = 0; i < n; i++) {
+                int v = next[i];
+                cachePos[v] = (i < CACHE_SIZE) ? i : -1;
+                vScore[v] = fastScore(cachePos[v], remaining[v], lastSize);
+            }
+            int[] t = cache;
+            cache = next;
+            next = t;
+            cacheLen = Math.min(n, CACHE_SIZE);
+
+            // Rescore the polygons left around them, and pick the best
+            best = -1;
+            for (int i = 0; i < n; i++) {
+                int v = cache[i];
+                for (int j = adj.start[v]; j < adj.start[v+1]; j++) {
+                    int q = adj.polys[j];
+                    if (drawn[q])
+                      continue;
+                    double s = 0;
+                    for (int c = offset[q]; c < offset[q+1]; c++) {
+                        s += vScore[index[c]];
+                    }
+                    pScore[q] = s;
+                    if (best < 0 || s > pScore[best])
+                      best = q;
+                }
+            }
+        }
+
+        return order;
+    }
+
+    // Renumber the vertices in the order the polygons first use them
+    // (unused vertices go last)
+    private static void renumberVertices(CompactMesh m)
+    {
+        int nv = m.numVertices;
+        int[] remap = new int[nv];
+        Arrays.fill(remap, -1);
+        int n = 0;
+        for (int i = 0; i < m.offset[m.numPolygons]; i++) {
+            int v = m.index[i];
+            if (remap[v] < 0)
+              remap[v] = n++;
+            m.index[i] = remap[v];
+        }
+        for (int v = 0; v < nv; v++) {
+            if (remap[v] < 0)
+              remap[v] = n++;
+        }
+
+        double[] points = new double[3 * nv];
+        double[] normals = new double[3 * nv];
+        int[] fileVertex = new int[nv];
+        for (int v = 0; v < nv; v++) {
+            System.arraycopy(m.points, 3*v, points, 3*remap[v], 3);
+            System.arraycopy(m.normals, 3*v, normals, 3*remap[v], 3);
+            fileVertex[remap[v]] = (m.fileVertex != null) ? m.fileVertex[v] : v;
+        }
+        m.points = points;
+        m.normals = normals;
+        m.fileVertex = fileVertex;
+        m.clearAdjacency();
+    }
+}
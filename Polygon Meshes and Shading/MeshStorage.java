@@ -0,0 +1,238 @@
+/* class MeshStorage
+ * Numbered storage for a polygon mesh: the part common to CompactMesh,
+ * FloatMesh, QuantizedMesh and MappedMesh
+ *
+ * Each kind of storage gives access to single coordinates, normals and
+ * polygon corners (in double precision, whatever it keeps); the Vertex
+ * and Polygon views, Newell's method for the polygon normals, the
+ * normals of the whole mesh and front facing polygons are written once
+ * here on top of that.  A storage replaces them where it can do better
+ * on its own arrays (CompactMesh computes its normals in place and in
+ * parallel, MappedMesh in passes over its files).
+ */
+
+import javax.vecmath.*;
+
+public abstract class MeshStorage
+{
+    // Number of vertices and polygons
+    int numVertices;
+    int numPolygons;
+
+    // Numbers in the file of the vertices and polygons, when they were
+    // renumbered after loading (welded or reordered); null when they
+    // are in file order.  A vertex welded from several has the number of
+    // the first.
+    int[] fileVertex;
+    int[] filePolygon;
+
+    // ---------------------------------------------------------------------
+    // Access to the storage
+
+    // Coordinate k of vertex v
+    abstract double coord(int v, int k);
+
+    // Move vertex v to p (call updateNormals() afterwards)
+    public abstract void setPoint(int v, Point3d p);
+
+    // Normal of vertex v or polygon p, read into position off of n, or
+    // set from it
+    abstract void vertexNormal(int v, double[] n, int off);
+    abstract void setVertexNormal(int v, double[] n, int off);
+    abstract void polygonNormal(int p, double[] n, int off);
+    abstract void setPolygonNormal(int p, double[] n, int off);
+
+    // Number of vertices of polygon p, and the vertex at its corner i
+    // (from 0 to the size)
+    public abstract int polygonSize(int p);
+    public abstract int corner(int p, int i);
+    abstract void setCorner(int p, int i, int v);
+
+    // Number in the file of vertex v and polygon p (from 0)
+    public int fileVertex(int v)
+    {
+        return (fileVertex != null) ? fileVertex[v] : v;
+    }
+    public int filePolygon(int p)
+    {
+        return (filePolygon != null) ? filePolygon[p] : p;
+    }
+
+    // ---------------------------------------------------------------------
+    // Views of vertices and polygons
+
+    // Vertex view: copies of the position/normal are returned, so
+    // changing them does not change the mesh
+    private class VertexView implements Vertex
+    {
+        private int v;
+
+        private VertexView(int vIndex)
+        {
+            v = vIndex;
+        }
+
+        public Point3d getPoint()
+        {
+            return new Point3d(coord(v, 0), coord(v, 1), coord(v, 2));
+        }
+        public Vector3d getNormal()
+        {
+            double[] n = new double[3];
+            vertexNormal(v, n, 0);
+            return new Vector3d(n[0], n[1], n[2]);
+        }
+    }
+
+    // Polygon view
+    private class PolygonView implements Polygon
+    {
+        private int p;
+
+        private PolygonView(int pIndex)
+        {
+            p = pIndex;
+        }
+
+        public int size()
+        {
+            return polygonSize(p);
+        }
+
+        // Vertex accessors (MOD size)
+        public Vertex getVertex(int i)
+        {
+            return new VertexView(corner(p, wrap(i)));
+        }
+        public void setVertex(int i, Vertex v)
+        {
+            setCorner(p, wrap(i), ((VertexView)v).v);
+        }
+
+        private int wrap(int i)
+        {
+            i %= size();
+            if (i < 0) i += size();
+            return i;
+        }
+
+        public Vector3d getNormal()
+        {
+            double[] n = new double[3];
+            polygonNormal(p, n, 0);
+            return new Vector3d(n[0], n[1], n[2]);
+        }
+        public void computeNormal()
+        {
+            double[] n = new double[3];
+            computePolygonNormal(p, n, 0);
+            normalize(n, 0);
+            setPolygonNormal(p, n, 0);
+        }
+    }
+
+    // Accessors for views
+    public Vertex getVertex(int i)
+    {
+        return new VertexView(i);
+    }
+    public Polygon getPolygon(int i)
+    {
+        return new PolygonView(i);
+    }
+
+    // ---------------------------------------------------------------------
+    // Normals
+
+    // Compute the unnormalized normal of polygon p using Newell's method
+    // (in double), storing it at position off of array n
+    public void computePolygonNormal(int p, double[] n, int off)
+    {
+        double nx = 0, ny = 0, nz = 0;
+        int size = polygonSize(p);
+
+        for (int i = 0; i < size; i++) {
+            // Vertex i and i+1 (modulo size)
+            int a = corner(p, i);
+            int b = corner(p, (i+1) % size);
+
+            double ax = coord(a, 0), ay = coord(a, 1), az = coord(a, 2);
+            double bx = coord(b, 0), by = coord(b, 1), bz = coord(b, 2);
+            nx += (ay - by) * (az + bz);
+            ny += (az - bz) * (ax + bx);
+            nz += (ax - bx) * (ay + by);
+        }
+
+        n[off] = nx;
+        n[off+1] = ny;
+        n[off+2] = nz;
+    }
+
+    // Normalize the vector at position i of array a
+    static void normalize(double[] a, int i)
+    {
+        double norm = 1.0 / Math.sqrt(a[i]*a[i] + a[i+1]*a[i+1] +
+                                      a[i+2]*a[i+2]);
+        a[i] *= norm;
+        a[i+1] *= norm;
+        a[i+2] *= norm;
+    }
+
+    // Compute all polygon and vertex normal vectors (vertex normals
+    // are area weighted averages of the polygon normals); the vertex
+    // sums are accumulated in a temporary double array
+    public void computeNormals()
+    {
+        double[] sums = new double[3 * numVertices];
+        double[] n = new double[3];
+
+        for (int p = 0; p < numPolygons; p++) {
+            computePolygonNormal(p, n, 0);
+            for (int i = 0; i < polygonSize(p); i++) {
+                int v = 3 * corner(p, i);
+                sums[v] += n[0];
+                sums[v+1] += n[1];
+                sums[v+2] += n[2];
+            }
+            normalize(n, 0);
+            setPolygonNormal(p, n, 0);
+        }
+
+        for (int v = 0; v < numVertices; v++) {
+            normalize(sums, 3*v);
+            setVertexNormal(v, sums, 3*v);
+        }
+    }
+
+    // Compute all normals, sequentially or in parallel where the
+    // storage can (the results are the same either way)
+    public void computeNormals(boolean parallel)
+    {
+        computeNormals();
+    }
+
+    // Update the normals after the vertices in dirty have moved (by
+    // default, all of them are recomputed)
+    public void updateNormals(int[] dirty)
+    {
+        computeNormals();
+    }
+
+    // Which polygons face a viewer at position eye (which must be in
+    // the coordinates of the mesh)
+    public void frontFacing(final double[] eye, final boolean[] front)
+    {
+        Parallel.forRange(numPolygons, 4096, new Parallel.Body() {
+                public void run(int start, int end) {
+                    double[] n = new double[3];
+                    for (int p = start; p < end; p++) {
+                        int a = corner(p, 0);
+                        polygonNormal(p, n, 0);
+                        front[p] = n[0] * (eye[0] - coord(a, 0)) +
+                            n[1] * (eye[1] - coord(a, 1)) +
+                            n[2] * (eye[2] - coord(a, 2)) > 0;
+                    }
+                }
+            });
+    }
+}
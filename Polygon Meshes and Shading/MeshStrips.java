@@ -0,0 +1,244 @@
+/* class MeshStrips
+ * Triangle strips covering the polygons of a mesh
+ *
+ * Strip s uses the vertices verts[start[s]] ... verts[start[s+1]-1];
+ * the triangle ending at position i of a strip (i >= 2 within it) is
+ * part of polygon polygon[i] (polygon[i] is -1 at the first two
+ * positions of each strip).  As usual for GL_TRIANGLE_STRIP, every
+ * other triangle has its first two vertices swapped, so all triangles
+ * keep the orientation of their polygons.
+ *
+ * Strips are made greedily for any mesh (from its polygons split into
+ * fans), or directly for a regular grid of quads, one strip per row.
+ *
+ * To draw them with a single call, they are joined either by a restart
+ * index (NV_primitive_restart) or by repeating vertices, which makes
+ * degenerate triangles that are not drawn.
+ */
+
+import java.util.Arrays;
+
+public class MeshStrips
+{
+    // Strips: vertices, and the polygon of each triangle
+    int numStrips;
+    int[] start;
+    int[] verts;
+    int[] polygon;
+
+    // Number of (non-joining) triangles in the strips
+    int numTriangles;
+
+    // Index that restarts a strip
+    static final int RESTART = 0xffffffff;
+
+    // Constructor (the arrays are used directly)
+    private MeshStrips(int n, int[] startArray, int[] vertArray,
+                       int[] polygonArray)
+    {
+        numStrips = n;
+        start = startArray;
+        verts = vertArray;
+        polygon = polygonArray;
+        numTriangles = start[n] - 2 * n;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Strips for the rows of a uSize x vSize grid of vertices (vertex
+    // (i,j) is number i*vSize+j), where quad (i,j) is polygon
+    // i*(vSize-1)+j and goes (i,j), (i+1,j), (i+1,j+1), (i,j+1)
+    public static MeshStrips grid(int uSize, int vSize)
+    {
+        int rows = uSize - 1, length = 2 * vSize;
+        int[] start = new int[rows + 1];
+        int[] verts = new int[rows * length];
+        int[] polygon = new int[rows * length];
+
+        int n = 0;
+        for (int i = 0; i < rows; i++) {
+            start[i] = n;
+            for (int j = 0; j < vSize; j++) {
+                // Each quad is split along (i+1,j)-(i,j+1)
+                polygon[n] = (j == 0) ? -1 : i * (vSize-1) + j-1;
+                verts[n++] = i * vSize + j;
+                polygon[n] = (j == 0) ? -1 : i * (vSize-1) + j-1;
+                verts[n++] = (i+1) * vSize + j;
+            }
+        }
+        start[rows] = n;
+
+        return new MeshStrips(rows, start, verts, polygon);
+    }
+
+    // Strips for any mesh: the polygons are split into fans, and each
+    // strip is started from the next triangle not yet used (in mesh
+    // order, which is vertex cache order for loaded meshes), in the
+    // direction that makes it the longest
+    public static MeshStrips stripify(CompactMesh m)
+    {
+        // The triangles, and their polygons
+        int nt = 0;
+        for (int p = 0; p < m.numPolygons; p++) {
+            nt += Math.max(0, m.offset[p+1] - m.offset[p] - 2);
+        }
+        int[] offset = new int[nt + 1];
+        int[] index = new int[3 * nt];
+        int[] triPolygon = new int[nt];
+        int t = 0;
+        for (int p = 0; p < m.numPolygons; p++) {
+            int first = m.offset[p];
+            for (int i = first + 2; i < m.offset[p+1]; i++) {
+                index[3*t] = m.index[first];
+                index[3*t+1] = m.index[i-1];
+                index[3*t+2] = m.index[i];
+                triPolygon[t] = p;
+                t++;
+                offset[t] = 3 * t;
+            }
+        }
+        CompactMesh tris = new CompactMesh(m.numVertices, m.points,
+                                           nt, offset, index);
+        MeshEdges edges = new MeshEdges(tris);
+
+        // Triangles taken by a strip (-1), or by the strip being tried
+        // (its stamp, from 1 up)
+        int[] used = new int[nt];
+        int stamp = 1;
+
+        // Vertices and triangles of the strip being tried
+        int[] sv = new int[nt + 2];
+        int[] st = new int[nt + 2];
+
+        int numStrips = 0, n = 0;
+        int[] start = new int[nt + 1];
+        int[] verts = new int[3 * nt];
+        int[] polygon = new int[3 * nt];
+
+        for (int first = 0; first < nt; first++) {
+            if (used[first] < 0)
+              continue;
+
+            // Try the three rotations of the first triangle
+            int bestLength = 0, bestRot = 0;
+            for (int rot = 0; rot < 3; rot++) {
+                int length = grow(index, edges, used, stamp++, first, rot,
+                                  sv, st);
+                if (length > bestLength) {
+                    bestLength = length;
+                    bestRot = rot;
+                }
+            }
+
+            // Keep the longest, taking its triangles
+            int length = grow(index, edges, used, -1, first, bestRot, sv, st);
+            start[numStrips++] = n;
+            for (int i = 0; i < length; i++) {
+                verts[n] = sv[i];
+                polygon[n] = (i < 2) ? -1 : triPolygon[st[i]];
+                n++;
+            }
+        }
+        start[numStrips] = n;
+
+        return new MeshStrips(numStrips, Arrays.copyOf(start, numStrips + 1),
+                              Arrays.copyOf(verts, n),
+                              Arrays.copyOf(polygon, n));
+    }
+
+    // Grow a strip from triangle t (of the triangles in index), starting
+    // at its vertex rot, as far as the triangles across its last edge
+    // are not used (or marked) and have a matching orientation; the
+    // triangles are marked in used.  The vertices of the strip go to
+    // sv, and the triangle ending at each vertex to st.  Returns the
+    // length of the strip.
+    private static int grow(int[] index, MeshEdges edges, int[] used,
+                            int mark, int t, int rot, int[] sv, int[] st)
+    {
+        sv[0] = index[3*t + rot];
+        sv[1] = index[3*t + (rot+1) % 3];
+        sv[2] = index[3*t + (rot+2) % 3];
+        st[2] = t;
+        used[t] = mark;
+        int length = 3;
+
+        while (true) {
+            int x = sv[length-2], y = sv[length-1];
+
+            // The edge x-y of the last triangle, and the one across it
+            int e = -1;
+            for (int k = 0; k < 3; k++) {
+                int a = index[3*t + k], b = index[3*t + (k+1) % 3];
+                if ((a == x && b == y) || (a == y && b == x)) {
+                    e = edges.cornerEdge[3*t + k];
+                    break;
+                }
+            }
+            if (e < 0 || edges.faceCount[e] != 2)
+              break;
+            int next = (edges.f0[e] == t) ? edges.f1[e] : edges.f0[e];
+            if (used[next] == -1 || used[next] == mark)
+              break;
+
+            // The next triangle is (x,y,w) at an even position, and
+            // (y,x,w) at an odd one: it must have that orientation
+            boolean even = (length % 2) == 0;
+            int a = even ? x : y, b = even ? y : x;
+            int j = 0;
+            while (j < 3 && index[3*next + j] != a) {
+                j++;
+            }
+            if (j == 3 || index[3*next + (j+1) % 3] != b)
+              break;
+
+            sv[length] = index[3*next + (j+2) % 3];
+            st[length] = next;
+            used[next] = mark;
+            length++;
+            t = next;
+        }
+        return length;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Positions (into verts[]) to draw all strips as one: separated by
+    // RESTART if restart is true, or otherwise joined by repeating the
+    // last vertex of a strip and the first of the next (and one more
+    // vertex when needed to keep the orientation)
+    public int[] joined(boolean restart)
+    {
+        int size = start[numStrips];
+        for (int s = 1; s < numStrips; s++) {
+            size += restart ? 1 : 3;
+        }
+        int[] res = new int[size];
+
+        int n = 0;
+        for (int s = 0; s < numStrips; s++) {
+            if (s > 0) {
+                if (restart) {
+                    res[n++] = RESTART;
+                } else {
+                    // The next strip must start at an even position
+                    int last = res[n-1];
+                    res[n++] = last;
+                    if (n % 2 == 0)
+                      res[n++] = last;
+                    res[n++] = start[s];
+                }
+            }
+            for (int i = start[s]; i < start[s+1]; i++) {
+                res[n++] = i;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    // Vertices transferred per triangle when drawing the joined strips
+    public double verticesPerTriangle(boolean restart)
+    {
+        return (numTriangles == 0) ? 0 :
+            (double)joined(restart).length / numTriangles;
+    }
+}
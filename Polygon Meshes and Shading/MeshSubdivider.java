@@ -0,0 +1,348 @@
+/* class MeshSubdivider
+ * Subdivision surfaces: one level of refinement of a CompactMesh
+ *
+ * Meshes made only of triangles are refined with Loop's scheme (each
+ * triangle becomes 4); all others with Catmull-Clark (each polygon of
+ * n sides becomes n quads, so after one level the mesh is all quads).
+ * Boundary edges (and non-manifold ones) are kept sharp: their new
+ * points are midpoints, and the vertices along them follow the cubic
+ * B-spline rule of the boundary curve; vertices where the boundary
+ * isn't a simple curve, or of only one polygon, stay where they are.
+ *
+ * The new mesh is laid out in flat arrays with positions known in
+ * advance (old vertices first, then face points, then edge points; a
+ * corner of the old mesh gives polygons at a fixed place), so each
+ * pass is a parallel loop that writes disjoint parts of the arrays,
+ * and the result doesn't depend on the number of threads.  The edges
+ * come from MeshEdges, and the polygons around each vertex from
+ * MeshAdjacency.
+ */
+
+public class MeshSubdivider
+{
+    // Indices per parallel block
+    private static final int GRAIN = 4096;
+
+    // True if the mesh is made only of triangles
+    public static boolean isTriangular(CompactMesh m)
+    {
+        return m.offset[m.numPolygons] == 3 * m.numPolygons;
+    }
+
+    // Name of the scheme used for m
+    public static String scheme(CompactMesh m)
+    {
+        return isTriangular(m) ? "Loop" : "Catmull-Clark";
+    }
+
+    // Number of polygons after one level of subdivision of m
+    public static long subdividedPolygons(CompactMesh m)
+    {
+        return isTriangular(m) ? 4L * m.numPolygons :
+            m.offset[m.numPolygons];
+    }
+
+    // One level of subdivision of m (with normals computed)
+    public static CompactMesh subdivide(CompactMesh m)
+    {
+        MeshEdges e = new MeshEdges(m);
+        CompactMesh res = isTriangular(m) ? loop(m, e) : catmullClark(m, e);
+        res.computeNormals();
+        return res;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Catmull-Clark: vertices are the old vertices, then a face point per
+    // polygon, then an edge point per edge; corner i of polygon p gives
+    // the quad (vertex, edge point of the edge after it, face point,
+    // edge point of the edge before it)
+    static CompactMesh catmullClark(final CompactMesh m, final MeshEdges e)
+    {
+        final int nv = m.numVertices, np = m.numPolygons;
+        final int corners = m.offset[np];
+        final double[] pts = new double[3 * (nv + np + e.numEdges)];
+        final int[] offset = new int[corners + 1];
+        final int[] index = new int[4 * corners];
+
+        // Face points: the centroids of the polygons
+        Parallel.forRange(np, GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int p = start; p < end; p++) {
+                        int f = 3 * (nv + p);
+                        int size = m.offset[p+1] - m.offset[p];
+                        for (int i = m.offset[p]; i < m.offset[p+1]; i++) {
+                            int v = 3 * m.index[i];
+                            pts[f] += m.points[v];
+                            pts[f+1] += m.points[v+1];
+                            pts[f+2] += m.points[v+2];
+                        }
+                        pts[f] /= size;
+                        pts[f+1] /= size;
+                        pts[f+2] /= size;
+                    }
+                }
+            });
+
+        // Edge points: the average of the ends and the two face points
+        // (the midpoint, on sharp edges)
+        Parallel.forRange(e.numEdges, GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int k = start; k < end; k++) {
+                        int a = 3 * e.v0[k], b = 3 * e.v1[k];
+                        int q = 3 * (nv + np + k);
+                        if (e.faceCount[k] == 2) {
+                            int f0 = 3 * (nv + e.f0[k]);
+                            int f1 = 3 * (nv + e.f1[k]);
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = 0.25 * (m.points[a+c] +
+                                                   m.points[b+c] +
+                                                   pts[f0+c] + pts[f1+c]);
+                            }
+                        } else {
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = 0.5 * (m.points[a+c] +
+                                                  m.points[b+c]);
+                            }
+                        }
+                    }
+                }
+            });
+
+        // Vertex points: (F + 2R + (n-3) P) / n, with F the average of
+        // the face points around the vertex and R of the midpoints of
+        // its edges (each edge is met from both of its polygons)
+        final MeshAdjacency adj = m.getAdjacency();
+        Parallel.forRange(nv, GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    double[] f = new double[3], r = new double[3];
+                    double[] sharp = new double[3];
+                    for (int v = start; v < end; v++) {
+                        f[0] = f[1] = f[2] = 0;
+                        r[0] = r[1] = r[2] = 0;
+                        sharp[0] = sharp[1] = sharp[2] = 0;
+                        int n = 0, numSharp = 0;
+
+                        for (int j = 0; j < adj.degree(v); j++) {
+                            int p = adj.polygon(v, j);
+                            if (j > 0 && p == adj.polygon(v, j-1))
+                              continue;
+                            int first = m.offset[p], last = m.offset[p+1] - 1;
+                            for (int i = first; i <= last; i++) {
+                                if (m.index[i] != v)
+                                  continue;
+                                int prev = (i > first) ? i - 1 : last;
+                                n++;
+                                add(f, pts, 3 * (nv + p), 1);
+                                numSharp += edgeSums(m, e, v, e.cornerEdge[i],
+                                                     r, sharp);
+                                numSharp += edgeSums(m, e, v,
+                                                     e.cornerEdge[prev],
+                                                     r, sharp);
+                            }
+                        }
+
+                        int q = 3 * v;
+                        if (n <= 1 || (numSharp != 0 && numSharp != 2)) {
+                            // Unused, or a corner of the boundary (or of
+                            // a lone polygon)
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = m.points[q+c];
+                            }
+                        } else if (numSharp == 2) {
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = 0.75 * m.points[q+c] +
+                                    0.125 * sharp[c];
+                            }
+                        } else {
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = (f[c] / n + r[c] / n +
+                                            (n - 3) * m.points[q+c]) / n;
+                            }
+                        }
+                    }
+                }
+            });
+
+        // Quads, one per corner
+        Parallel.forRange(np, GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int p = start; p < end; p++) {
+                        int first = m.offset[p], last = m.offset[p+1] - 1;
+                        for (int i = first; i <= last; i++) {
+                            int prev = (i > first) ? i - 1 : last;
+                            offset[i+1] = 4 * (i+1);
+                            index[4*i] = m.index[i];
+                            index[4*i+1] = nv + np + e.cornerEdge[i];
+                            index[4*i+2] = nv + p;
+                            index[4*i+3] = nv + np + e.cornerEdge[prev];
+                        }
+                    }
+                }
+            });
+
+        return new CompactMesh(nv + np + e.numEdges, pts,
+                               corners, offset, index);
+    }
+
+    // Add edge k (which ends at vertex v) to the sums around v: its
+    // midpoint to r, and if it is sharp, its other end to sharp; returns
+    // 1 if it is sharp
+    private static int edgeSums(CompactMesh m, MeshEdges e, int v, int k,
+                                double[] r, double[] sharp)
+    {
+        add(r, m.points, 3 * e.v0[k], 0.5);
+        add(r, m.points, 3 * e.v1[k], 0.5);
+        if (e.faceCount[k] == 2)
+          return 0;
+        add(sharp, m.points, 3 * ((e.v0[k] == v) ? e.v1[k] : e.v0[k]), 1);
+        return 1;
+    }
+
+    // s += w * (a[i], a[i+1], a[i+2])
+    private static void add(double[] s, double[] a, int i, double w)
+    {
+        s[0] += w * a[i];
+        s[1] += w * a[i+1];
+        s[2] += w * a[i+2];
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Loop: vertices are the old vertices, then an edge point per edge;
+    // triangle p gives the triangles 4p ... 4p+3 (one at each corner,
+    // and the middle one)
+    static CompactMesh loop(final CompactMesh m, final MeshEdges e)
+    {
+        final int nv = m.numVertices, np = m.numPolygons;
+        final double[] pts = new double[3 * (nv + e.numEdges)];
+        final int[] offset = new int[4 * np + 1];
+        final int[] index = new int[12 * np];
+
+        // Edge points: 3/8 of each end and 1/8 of each opposite vertex
+        // (the midpoint, on sharp edges)
+        Parallel.forRange(e.numEdges, GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int k = start; k < end; k++) {
+                        int a = 3 * e.v0[k], b = 3 * e.v1[k];
+                        int q = 3 * (nv + k);
+                        if (e.faceCount[k] == 2) {
+                            int c = 3 * opposite(m, e.f0[k], e.v0[k], e.v1[k]);
+                            int d = 3 * opposite(m, e.f1[k], e.v0[k], e.v1[k]);
+                            for (int j = 0; j < 3; j++) {
+                                pts[q+j] = 0.375 * (m.points[a+j] +
+                                                    m.points[b+j]) +
+                                    0.125 * (m.points[c+j] + m.points[d+j]);
+                            }
+                        } else {
+                            for (int j = 0; j < 3; j++) {
+                                pts[q+j] = 0.5 * (m.points[a+j] +
+                                                  m.points[b+j]);
+                            }
+                        }
+                    }
+                }
+            });
+
+        // Vertex points: (1 - n beta) P + beta * (sum of the n
+        // neighbors), with Loop's beta (each neighbor is met from both
+        // triangles of the edge to it)
+        final MeshAdjacency adj = m.getAdjacency();
+        Parallel.forRange(nv, GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    double[] r = new double[3], sharp = new double[3];
+                    for (int v = start; v < end; v++) {
+                        r[0] = r[1] = r[2] = 0;
+                        sharp[0] = sharp[1] = sharp[2] = 0;
+                        int n = 0, numSharp = 0;
+
+                        for (int j = 0; j < adj.degree(v); j++) {
+                            int p = adj.polygon(v, j);
+                            if (j > 0 && p == adj.polygon(v, j-1))
+                              continue;
+                            int first = m.offset[p];
+                            for (int i = first; i < first + 3; i++) {
+                                if (m.index[i] != v)
+                                  continue;
+                                int prev = (i > first) ? i - 1 : first + 2;
+                                int next = (i < first + 2) ? i + 1 : first;
+                                n++;
+                                add(r, m.points, 3 * m.index[next], 0.5);
+                                add(r, m.points, 3 * m.index[prev], 0.5);
+                                numSharp += sharpEnd(m, e, v,
+                                                     e.cornerEdge[i], sharp);
+                                numSharp += sharpEnd(m, e, v,
+                                                     e.cornerEdge[prev],
+                                                     sharp);
+                            }
+                        }
+
+                        int q = 3 * v;
+                        if (n <= 1 || (numSharp != 0 && numSharp != 2)) {
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = m.points[q+c];
+                            }
+                        } else if (numSharp == 2) {
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = 0.75 * m.points[q+c] +
+                                    0.125 * sharp[c];
+                            }
+                        } else {
+                            double x = 0.375 + 0.25 * Math.cos(2*Math.PI/n);
+                            double beta = (0.625 - x * x) / n;
+                            for (int c = 0; c < 3; c++) {
+                                pts[q+c] = (1 - n * beta) * m.points[q+c] +
+                                    beta * r[c];
+                            }
+                        }
+                    }
+                }
+            });
+
+        // Four triangles per triangle
+        Parallel.forRange(np, GRAIN, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int p = start; p < end; p++) {
+                        int s = m.offset[p];
+                        int v0 = m.index[s], v1 = m.index[s+1];
+                        int v2 = m.index[s+2];
+                        int e0 = nv + e.cornerEdge[s];
+                        int e1 = nv + e.cornerEdge[s+1];
+                        int e2 = nv + e.cornerEdge[s+2];
+                        int t = 12 * p;
+                        index[t] = v0;  index[t+1] = e0;  index[t+2] = e2;
+                        index[t+3] = v1;  index[t+4] = e1;  index[t+5] = e0;
+                        index[t+6] = v2;  index[t+7] = e2;  index[t+8] = e1;
+                        index[t+9] = e0;  index[t+10] = e1; index[t+11] = e2;
+                        for (int k = 1; k <= 4; k++) {
+                            offset[4*p+k] = 3 * (4*p + k);
+                        }
+                    }
+                }
+            });
+
+        return new CompactMesh(nv + e.numEdges, pts, 4 * np, offset, index);
+    }
+
+    // The vertex of triangle p that is neither a nor b
+    private static int opposite(CompactMesh m, int p, int a, int b)
+    {
+        int s = m.offset[p];
+        for (int i = s; i < s + 3; i++) {
+            if (m.index[i] != a && m.index[i] != b)
+              return m.index[i];
+        }
+        return m.index[s];
+    }
+
+    // If edge k (which ends at vertex v) is sharp, add its other end to
+    // sharp and return 1
+    private static int sharpEnd(CompactMesh m, MeshEdges e, int v, int k,
+                                double[] sharp)
+    {
+        if (e.faceCount[k] == 2)
+          return 0;
+        add(sharp, m.points, 3 * ((e.v0[k] == v) ? e.v1[k] : e.v0[k]), 1);
+        return 1;
+    }
+}
@@ -0,0 +1,714 @@
+/* class ObjParser
+ * Reader for Wavefront OBJ files (only vertex and polygon information)
+ *
+ * The file is memory-mapped and split into chunks on line boundaries.
+ * The chunks are parsed in parallel straight into primitive arrays,
+ * and then stitched together in file order.
+ *
+ * The original StreamTokenizer reader is kept as parseTokenized() for
+ * comparison (see MeshBench).
+ *
+ * For files too big to hold as arrays, stream() parses the file in
+ * order, one chunk at a time, handing each vertex and polygon to a Sink
+ * instead of storing it (see MappedMesh).
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class ObjParser
+{
+    // Parsed mesh: vertex coordinates (x,y,z for each vertex) and
+    // polygons as an index buffer; polygon i uses the vertices
+    //   index[offset[i]] ... index[offset[i+1]-1]
+    public static class Result
+    {
+        public int numVertices;
+        public double[] points;
+
+        public int numPolygons;
+        public int[] offset;
+        public int[] index;
+    }
+
+    // Receiver of the records of a file, in file order: vertex
+    // positions, and polygon corners (value is the vertex number as
+    // written, starting at 1; relative if it had a minus sign, counting
+    // back from the last vertex) each followed by the end of the polygon
+    public interface Sink
+    {
+        void vertex(double x, double y, double z) throws IOException;
+        void corner(int value, boolean relative) throws IOException;
+        void endPolygon(int size) throws IOException;
+    }
+
+    // Nominal size of the chunks handed to each thread
+    private static final int CHUNK_SIZE = 8 << 20;
+
+    // ---------------------------------------------------------------------
+
+    // Parse an OBJ file using all processors
+    public static Result parse(String filename)
+        throws IOException
+    {
+        return parse(filename, new LoadProgress());
+    }
+
+    // Same, reporting the fraction of the chunks parsed to progress
+    public static Result parse(String filename, final LoadProgress progress)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+
+        try {
+            final FileChannel channel = file.getChannel();
+            long size = channel.size();
+
+            // Split the file into chunks that start at line beginnings
+            long[] bounds = chunkBounds(channel, size);
+
+            final int numChunks = bounds.length - 1;
+            final AtomicInteger parsed = new AtomicInteger();
+            List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>();
+            for (int c = 0; c < bounds.length - 1; c++) {
+                final int chunk = c;
+                final long start = bounds[c];
+                final long end = bounds[c+1];
+
+                tasks.add(new Callable<Chunk>()
+                    {
+                        public Chunk call() throws IOException
+                        {
+                            MappedByteBuffer buf =
+                                channel.map(FileChannel.MapMode.READ_ONLY,
+                                            start, end - start);
+                            Chunk result = new Chunk();
+                            new ChunkParser(buf, chunk, result).parse();
+                            progress.update((double)parsed.incrementAndGet() /
+                                            numChunks);
+                            return result;
+                        }
+                    });
+            }
+
+            List<Chunk> chunks;
+            try {
+                chunks = Parallel.invokeAll(tasks);
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof ChunkException) {
+                    // Report the position of the error in the whole file
+                    ChunkException ce = (ChunkException)e.getCause();
+                    throw new IOException("line " +
+                                          lineAt(channel, bounds[ce.chunk],
+                                                 ce.line) + ": " +
+                                          ce.getMessage());
+                }
+                if (e.getCause() instanceof IOException)
+                  throw (IOException)e.getCause();
+                throw e;
+            }
+
+            return merge(chunks);
+        } finally {
+            file.close();
+        }
+    }
+
+    // Parse an OBJ file in order (on this thread), passing its records
+    // to sink; only one chunk of the file is mapped at a time
+    public static void stream(String filename, Sink sink)
+        throws IOException
+    {
+        stream(filename, sink, new LoadProgress());
+    }
+
+    // Same, reporting the fraction of the chunks parsed to progress
+    public static void stream(String filename, Sink sink,
+                              LoadProgress progress)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            long[] bounds = chunkBounds(channel, channel.size());
+
+            for (int c = 0; c < bounds.length - 1; c++) {
+                MappedByteBuffer buf =
+                    channel.map(FileChannel.MapMode.READ_ONLY,
+                                bounds[c], bounds[c+1] - bounds[c]);
+                try {
+                    new ChunkParser(buf, c, sink).parse();
+                } catch (ChunkException ce) {
+                    throw new IOException("line " +
+                                          lineAt(channel, bounds[c],
+                                                 ce.line) + ": " +
+                                          ce.getMessage());
+                }
+                progress.update((double)(c + 1) / (bounds.length - 1));
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    // Find chunk boundaries: each boundary (except 0 and size) is just
+    // after a newline
+    private static long[] chunkBounds(FileChannel channel, long size)
+        throws IOException
+    {
+        int nominal = (int)Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        long[] bounds = new long[nominal + 1];
+        int count = 1;
+
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int c = 1; c < nominal; c++) {
+            long pos = Math.max(size * c / nominal, bounds[count-1]);
+
+            // Scan forward to the next line
+            boolean found = false;
+            while (!found && pos < size) {
+                probe.clear();
+                int n = channel.read(probe, pos);
+                if (n <= 0)
+                  break;
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        pos += i + 1;
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found)
+                  pos += n;
+            }
+            if (found && pos < size && pos > bounds[count-1]) {
+                bounds[count++] = pos;
+            }
+        }
+        bounds[count++] = size;
+
+        return Arrays.copyOf(bounds, count);
+    }
+
+    // Line number (starting at 1) of a line inside the chunk at start
+    // (only used for error messages)
+    private static int lineAt(FileChannel channel, long start, int line)
+        throws IOException
+    {
+        ByteBuffer block = ByteBuffer.allocate(1 << 16);
+        long pos = 0;
+        while (pos < start) {
+            block.clear();
+            block.limit((int)Math.min(block.capacity(), start - pos));
+            int n = channel.read(block, pos);
+            if (n <= 0)
+              break;
+            for (int i = 0; i < n; i++) {
+                if (block.get(i) == '\n')
+                  line++;
+            }
+            pos += n;
+        }
+        return line + 1;
+    }
+
+    // Concatenate the results of all chunks (in file order)
+    private static Result merge(List<Chunk> chunks)
+        throws IOException
+    {
+        Result r = new Result();
+
+        int numIndices = 0;
+        for (Chunk c : chunks) {
+            r.numVertices += c.numVertices;
+            r.numPolygons += c.sizes.size;
+            numIndices += c.index.size;
+        }
+
+        r.points = new double[3 * r.numVertices];
+        r.offset = new int[r.numPolygons + 1];
+        r.index = new int[numIndices];
+
+        int vbase = 0, pbase = 0, ibase = 0;
+        for (Chunk c : chunks) {
+            System.arraycopy(c.points.data, 0, r.points, 3*vbase,
+                             3*c.numVertices);
+
+            for (int i = 0; i < c.sizes.size; i++) {
+                r.offset[pbase + i + 1] = r.offset[pbase + i] +
+                    c.sizes.data[i];
+            }
+
+            System.arraycopy(c.index.data, 0, r.index, ibase, c.index.size);
+
+            // Relative (negative) indices count from this chunk's vertices
+            for (int i = 0; i < c.relative.size; i++) {
+                r.index[ibase + c.relative.data[i]] += vbase;
+            }
+
+            vbase += c.numVertices;
+            pbase += c.sizes.size;
+            ibase += c.index.size;
+        }
+
+        // Check that all polygons refer to existing vertices
+        for (int i = 0; i < numIndices; i++) {
+            if (r.index[i] < 0 || r.index[i] >= r.numVertices) {
+                throw new IOException("vertex index out of range: " +
+                                      (r.index[i] + 1));
+            }
+        }
+
+        return r;
+    }
+
+    // ---------------------------------------------------------------------
+    // Parsing a single chunk
+
+    // Growable primitive arrays
+    private static class DoubleList
+    {
+        double[] data = new double[1024];
+        int size = 0;
+
+        void add(double d)
+        {
+            if (size == data.length)
+              data = Arrays.copyOf(data, 2 * size);
+            data[size++] = d;
+        }
+    }
+    private static class IntList
+    {
+        int[] data = new int[1024];
+        int size = 0;
+
+        void add(int i)
+        {
+            if (size == data.length)
+              data = Arrays.copyOf(data, 2 * size);
+            data[size++] = i;
+        }
+    }
+
+    // Results from one chunk; relative holds the positions in index
+    // that still need the chunk's first vertex number added
+    private static class Chunk implements Sink
+    {
+        int numVertices;
+        DoubleList points = new DoubleList();
+        IntList sizes = new IntList();
+        IntList index = new IntList();
+        IntList relative = new IntList();
+
+        public void vertex(double x, double y, double z)
+        {
+            points.add(x);
+            points.add(y);
+            points.add(z);
+            numVertices++;
+        }
+
+        public void corner(int value, boolean rel)
+        {
+            if (rel) {
+                // Relative to the vertices read so far
+                relative.add(index.size);
+                index.add(numVertices - value);
+            } else {
+                index.add(value - 1);
+            }
+        }
+
+        public void endPolygon(int size)
+        {
+            sizes.add(size);
+        }
+    }
+
+    // Parse error, with the line number relative to the chunk
+    private static class ChunkException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        int chunk, line;
+
+        ChunkException(String msg, int c, int l)
+        {
+            super(msg);
+            chunk = c;
+            line = l;
+        }
+    }
+
+    // Powers of ten that are exactly representable
+    private static final double[] POW10 = new double[23];
+    static
+    {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i-1] * 10;
+        }
+    }
+
+    private static class ChunkParser
+    {
+        private ByteBuffer buf;
+        private int pos, end, line, number;
+        private Sink sink;
+
+        ChunkParser(ByteBuffer b, int chunkNumber, Sink s)
+        {
+            buf = b;
+            number = chunkNumber;
+            pos = 0;
+            end = b.limit();
+            line = 0;
+            sink = s;
+        }
+
+        void parse()
+            throws IOException
+        {
+            while (pos < end) {
+                skipBlanks();
+
+                if (pos < end) {
+                    byte c = buf.get(pos);
+                    if (c == 'v' && isBlank(pos+1)) {
+                        // Vertex command
+                        pos++;
+                        double x = parseDouble();
+                        double y = parseDouble();
+                        double z = parseDouble();
+                        sink.vertex(x, y, z);
+                    } else if (c == 'f' && isBlank(pos+1)) {
+                        // Face command
+                        pos++;
+                        parsePolygon();
+                    }
+                }
+
+                // Ignore the rest of the line (and other commands)
+                skipLine();
+            }
+        }
+
+        private boolean isBlank(int p)
+        {
+            if (p >= end)
+              return false;
+            byte c = buf.get(p);
+            return c == ' ' || c == '\t';
+        }
+
+        private void skipBlanks()
+        {
+            while (pos < end) {
+                byte c = buf.get(pos);
+                if (c != ' ' && c != '\t' && c != '\r')
+                  break;
+                pos++;
+            }
+        }
+
+        private boolean atEndOfLine()
+        {
+            if (pos >= end)
+              return true;
+            byte c = buf.get(pos);
+            return c == '\n' || c == '#' || c == '$';
+        }
+
+        private void skipLine()
+        {
+            while (pos < end && buf.get(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+            line++;
+        }
+
+        private IOException error(String msg)
+        {
+            return new ChunkException(msg, number, line);
+        }
+
+        // Read a single floating point value
+        private double parseDouble()
+            throws IOException
+        {
+            skipBlanks();
+            if (atEndOfLine())
+              throw error("missing coordinate");
+
+            int start = pos;
+            boolean neg = false;
+            byte c = buf.get(pos);
+            if (c == '-' || c == '+') {
+                neg = (c == '-');
+                pos++;
+            }
+
+            // Accumulate digits (as long as they fit exactly)
+            long mant = 0;
+            int digits = 0, decexp = 0;
+            boolean seenDot = false, seenDigit = false, exact = true;
+            while (pos < end) {
+                c = buf.get(pos);
+                if (c >= '0' && c <= '9') {
+                    seenDigit = true;
+                    if (digits < 15) {
+                        mant = mant * 10 + (c - '0');
+                        if (mant != 0)
+                          digits++;
+                        if (seenDot)
+                          decexp++;
+                    } else {
+                        exact = false;
+                    }
+                } else if (c == '.' && !seenDot) {
+                    seenDot = true;
+                } else {
+                    break;
+                }
+                pos++;
+            }
+
+            // Anything else (exponents, long mantissas): use the library
+            if (!exact || (pos < end && (c == 'e' || c == 'E')) ||
+                decexp >= POW10.length) {
+                while (pos < end && !isBlank(pos) && !atEndOfLine() &&
+                       buf.get(pos) != '\r') {
+                    pos++;
+                }
+                byte[] text = new byte[pos - start];
+                for (int i = 0; i < text.length; i++) {
+                    text[i] = buf.get(start + i);
+                }
+                try {
+                    return Double.parseDouble(new String(text, "US-ASCII"));
+                } catch (NumberFormatException nfe) {
+                    throw error("can not convert " +
+                                new String(text, "US-ASCII"));
+                }
+            }
+
+            if (!seenDigit ||
+                (!isBlank(pos) && !atEndOfLine() && buf.get(pos) != '\r')) {
+                throw error("can not convert coordinate");
+            }
+
+            double d = (double)mant;
+            if (decexp > 0)
+              d /= POW10[decexp];
+            return neg ? -d : d;
+        }
+
+        // Read a polygon specification -- a list of vertex/texture/normal
+        // references of which only the vertex is kept
+        private void parsePolygon()
+            throws IOException
+        {
+            int count = 0;
+
+            while (true) {
+                skipBlanks();
+                if (atEndOfLine())
+                  break;
+
+                boolean neg = false;
+                if (buf.get(pos) == '-') {
+                    neg = true;
+                    pos++;
+                }
+
+                // (references past the int range are rejected, rather
+                // than wrapping around to some valid vertex)
+                long value = 0;
+                int digits = 0;
+                while (pos < end) {
+                    byte c = buf.get(pos);
+                    if (c < '0' || c > '9')
+                      break;
+                    value = value * 10 + (c - '0');
+                    if (value > Integer.MAX_VALUE)
+                      throw error("bad vertex reference");
+                    digits++;
+                    pos++;
+                }
+                if (digits == 0 || value == 0)
+                  throw error("bad vertex reference");
+
+                sink.corner((int)value, neg);
+                count++;
+
+                // Skip texture/normal references
+                while (pos < end && !isBlank(pos) && !atEndOfLine() &&
+                       buf.get(pos) != '\r') {
+                    byte c = buf.get(pos);
+                    if (c != '/' && c != '-' && (c < '0' || c > '9'))
+                      throw error("bad vertex reference");
+                    pos++;
+                }
+            }
+
+            sink.endPolygon(count);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Original reader, using a StreamTokenizer
+
+    public static Result parseTokenized(String filename)
+        throws IOException
+    {
+        FileReader input;
+        StreamTokenizer tokenizer = null;
+        Vector<double[]> vlist = new Vector<double[]>();
+        Vector<Vector> plist = new Vector<Vector>();
+
+        input = new FileReader(filename);
+        try {
+            tokenizer = new StreamTokenizer(input);
+            tokenizer.commentChar('#');
+            tokenizer.commentChar('$');
+            tokenizer.slashSlashComments(false);
+            tokenizer.slashStarComments(false);
+            tokenizer.eolIsSignificant(true);
+            tokenizer.ordinaryChar('/');
+
+            while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
+                switch (tokenizer.ttype) {
+                  case StreamTokenizer.TT_WORD:
+                    // Next command
+                    parseLine(tokenizer, vlist, plist);
+                    break;
+                  case StreamTokenizer.TT_EOL:
+                    break;
+                  default:
+                    skipLine(tokenizer);
+                }
+            }
+        } catch (IOException e) {
+            throw new IOException("line " + tokenizer.lineno());
+        } finally {
+            input.close();
+        }
+
+        // Create vertices
+        Result r = new Result();
+        r.numVertices = vlist.size();
+        r.points = new double[3 * r.numVertices];
+        for (int i = 0; i < vlist.size(); i++) {
+            System.arraycopy(vlist.elementAt(i), 0, r.points, 3*i, 3);
+        }
+
+        // Create polygons
+        r.numPolygons = plist.size();
+        r.offset = new int[r.numPolygons + 1];
+        for (int i = 0; i < plist.size(); i++) {
+            r.offset[i+1] = r.offset[i] + plist.elementAt(i).size();
+        }
+        r.index = new int[r.offset[r.numPolygons]];
+        for (int i = 0; i < plist.size(); i++) {
+            Vector pi = (Vector)(plist.elementAt(i));
+
+            for (int j = 0; j < pi.size(); j++) {
+                r.index[r.offset[i] + j] =
+                    ((Integer)(pi.elementAt(j))).intValue();
+            }
+        }
+
+        return r;
+    }
+
+    // Process next command; accumulate results in v/plist
+    private static void parseLine(StreamTokenizer tokenizer,
+                                  Vector<double[]> vlist, Vector<Vector> plist)
+        throws IOException
+    {
+        if (tokenizer.sval.equals("v")) {
+            // Vertex command
+            double[] v = { parseDouble(tokenizer),
+                           parseDouble(tokenizer), parseDouble(tokenizer) };
+
+            skipLine(tokenizer);
+
+            vlist.add(v);
+        } else if (tokenizer.sval.equals("f")) {
+            // Face command
+            plist.add(parsePolygon(tokenizer));
+        } else {
+            // Ignore other commands
+            skipLine(tokenizer);
+        }
+    }
+
+    // Read a single floating point value
+    private static double parseDouble(StreamTokenizer tokenizer)
+        throws IOException
+    {
+        if (tokenizer.nextToken() == StreamTokenizer.TT_EOL ||
+            tokenizer.ttype != StreamTokenizer.TT_NUMBER) {
+            try {
+                double d = Double.valueOf(tokenizer.sval).doubleValue();
+                tokenizer.nval = d;
+                return d;
+             } catch (NumberFormatException nfe) {
+                 System.out.print("Can not convert " + tokenizer.sval);
+                throw new IOException();
+             }
+        }
+
+        return tokenizer.nval;
+    }
+
+    // Read a polygon specification -- a list of integers
+    private static Vector parsePolygon(StreamTokenizer tokenizer)
+        throws IOException
+    {
+        Vector<Integer> list = new Vector<Integer>();
+        int slashes = 0;
+
+        while (tokenizer.nextToken() != StreamTokenizer.TT_EOL) {
+            switch(tokenizer.ttype) {
+              case StreamTokenizer.TT_NUMBER:
+                switch (slashes) {
+                  case 0:
+                    list.add(new Integer((int)Math.round(tokenizer.nval)-1));
+                    break;
+
+                  case 2:
+                    slashes = 0;
+                    break;
+                }
+                break;
+
+              case '/':
+                slashes++;
+                break;
+
+              default:
+                throw new IOException();
+            }
+        }
+        if (slashes != 0)
+          throw new IOException();
+
+        return list;
+    }
+
+    // Skip the rest of a line
+    private static void skipLine(StreamTokenizer tokenizer)
+        throws IOException
+    {
+        while (tokenizer.nextToken() != StreamTokenizer.TT_EOL &&
+               tokenizer.ttype != StreamTokenizer.TT_EOF);
+    }
+}
@@ -0,0 +1,162 @@
+/* class Parallel
+ * Helper for running loops over an index range on all processors
+ *
+ * The range [0,n) is split into contiguous blocks whose number only
+ * depends on n and the grain size (at most MAX_BLOCKS), not on the
+ * number of threads or on timing; with one thread the blocks are run in
+ * order on the calling thread.  So loops which write disjoint parts of
+ * an array, or combine per-block results in block order, give the same
+ * result no matter how many threads are used.
+ *
+ * The number of worker threads can be set with -Dmesh.threads=N
+ * (N=1 runs everything on the calling thread)
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Parallel
+{
+    // Loop body: process the indices in [start,end)
+    public interface Body
+    {
+        public abstract void run(int start, int end);
+    }
+
+    // Most blocks a range is split into (enough to balance the load on
+    // the processors of a workstation)
+    private static final int MAX_BLOCKS = 64;
+
+    // Shared pool of worker threads (created on first use)
+    private static ExecutorService pool = null;
+    private static int numThreads = 0;
+
+    // True on the worker threads of the pool
+    private static final ThreadLocal<Boolean> inWorker =
+        new ThreadLocal<Boolean>();
+
+    // Number of threads used for parallel loops
+    public static synchronized int threads()
+    {
+        if (numThreads == 0) {
+            numThreads = Runtime.getRuntime().availableProcessors();
+            try {
+                String prop = System.getProperty("mesh.threads");
+                if (prop != null) {
+                    numThreads = Math.max(1, Integer.parseInt(prop));
+                }
+            } catch (NumberFormatException e) {
+                // Keep the processor count
+            }
+        }
+        return numThreads;
+    }
+
+    // Set the number of threads (for benchmarking); shuts down old pool
+    public static synchronized void setThreads(int n)
+    {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        numThreads = Math.max(1, n);
+    }
+
+    private static synchronized ExecutorService getPool()
+    {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads(), new ThreadFactory()
+                {
+                    public Thread newThread(final Runnable r)
+                    {
+                        Runnable worker = new Runnable()
+                            {
+                                public void run()
+                                {
+                                    inWorker.set(Boolean.TRUE);
+                                    r.run();
+                                }
+                            };
+                        // Don't keep the program alive for idle workers
+                        Thread t = new Thread(worker, "mesh-worker");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return pool;
+    }
+
+    // Run body over [0,n) in blocks of at least grain indices
+    public static void forRange(int n, int grain, final Body body)
+    {
+        if (n <= 0)
+          return;
+
+        // Number of blocks (independent of the number of threads)
+        grain = Math.max(1, grain);
+        int blocks = (int)Math.min(MAX_BLOCKS, ((long)n + grain - 1) / grain);
+
+        if (blocks <= 1) {
+            body.run(0, n);
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int b = 0; b < blocks; b++) {
+            final int start = (int)((long)n * b / blocks);
+            final int end = (int)((long)n * (b+1) / blocks);
+
+            tasks.add(new Callable<Object>()
+                {
+                    public Object call()
+                    {
+                        body.run(start, end);
+                        return null;
+                    }
+                });
+        }
+        invokeAll(tasks);
+    }
+
+    // Run a list of tasks and collect their results (in order); an
+    // exception in any task is rethrown on the calling thread
+    public static <T> List<T> invokeAll(List<Callable<T>> tasks)
+    {
+        List<T> results = new ArrayList<T>(tasks.size());
+
+        // Avoid the pool when it wouldn't help (or when called from a
+        // worker thread, which could deadlock the pool)
+        if (tasks.size() <= 1 || threads() == 1 ||
+            inWorker.get() != null) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return results;
+        }
+
+        try {
+            List<Future<T>> futures = getPool().invokeAll(tasks);
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+              throw (RuntimeException)cause;
+            if (cause instanceof Error)
+              throw (Error)cause;
+            throw new RuntimeException(cause);
+        }
+        return results;
+    }
+}
@@ -4,25 +4,456 @@
  * Doug DeCarlo
  */
 
+import javax.media.opengl.GL;
 import javax.vecmath.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class PolyMesh extends Shape
 {
+    // Storage of the mesh: compact, single-precision, quantized or out
+    // of core (null when the mesh is stored as VertexPM/PolygonPM
+    // objects)
+    private MeshStorage storage;
+
+    // Numbers in the file of the vertices and polygons, when stored as
+    // objects and renumbered after loading (see MeshStorage; a storage
+    // keeps its own)
+    private int[] fileVertex, filePolygon;
+
+    // Subdivision level drawn (0 for the polygons as loaded), and the
+    // renderers of the levels made so far (level k at k-1), for the
+    // geometry version subdividedVersion (levels past subdividedMax are
+    // too big to make)
+    private DoubleParameter subdivision;
+    private MeshRenderer[] subdivided;
+    private int subdividedVersion, subdividedMax;
+
+    // Levels of detail: simplified meshes (finest first) with renderers,
+    // made in the background for the geometry version lodVersion; and
+    // the bounding sphere of the shape, for choosing a level.  They are
+    // set on lodBuilder and read when drawing, under lodLock (as is
+    // whether a build is queued).  The slider and option only exist when
+    // the levels are made.
+    private DoubleParameter lodBudget;
+    private BooleanParameter useLOD;
+    private MeshRenderer[] lods;
+    private int[] lodTriangles;
+    private int lodVersion;
+    private double[] lodCenter;
+    private double lodRadius;
+    private boolean lodQueued;
+    private boolean lodNoMemory;
+    private final Object lodLock = new Object();
+
+    // Thread that makes the levels of detail of all meshes
+    private static final ExecutorService lodBuilder =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "lod-build");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+
+    // Fractions of the triangles kept in the levels of detail
+    private static final double[] LOD_FRACTIONS = { 0.5, 0.25, 0.1, 0.02 };
+
+    // Screen area (in pixels) per triangle that is worth drawing
+    private static final double LOD_PIXELS = 2;
+
+    // Free heap needed per polygon to make the levels (a copy of the
+    // mesh in double, the quadrics and the edge table of the decimator
+    // take about 800 bytes)
+    private static final long LOD_BYTES_PER_POLYGON = 1000;
+
+    // Highest subdivision level, and the most polygons a level may have
+    static final int MAX_SUBDIVISION = 4;
+    static final long SUBDIVISION_MAX_POLYGONS = 8000000;
+
+    // Whether to load meshes out of core (in memory-mapped files);
+    // files bigger than half the heap are always loaded that way
+    public static boolean outOfCore = false;
+
+    // Whether to keep positions and normals as floats (for half the
+    // memory) instead of doubles, once loaded
+    public static boolean singlePrecision = false;
+
+    // Whether to keep positions quantized to 16 bits and normals
+    // oct-encoded (QuantizedMesh) instead, once loaded
+    public static boolean quantize = false;
+
+    // Whether to read/write the binary cache next to the OBJ file
+    public static boolean useCache = true;
+
+    // Vertices closer than this (in the units of the OBJ file) are
+    // welded into one when loading (0 to keep them all)
+    public static double weldEpsilon = 0;
+
+    // Whether to put the polygons and vertices in vertex cache order
+    // when loading (the mesh keeps their numbers in the file)
+    public static boolean reorder = false;
+
+    // Whether to make levels of detail, for meshes with at least
+    // LOD_MIN polygons (this takes several times the memory of a packed
+    // mesh while they are made, so it is asked for with -lod)
+    public static boolean useLevelsOfDetail = false;
+    static final int LOD_MIN = 50000;
+
     // Constructor
     public PolyMesh(String filename)
+    {
+        this(filename, false);
+    }
+
+    // Constructor: if compact is true, the mesh is kept in flat arrays
+    // (CompactMesh) instead of one object per vertex and polygon
+    public PolyMesh(String filename, boolean compact)
+    {
+        this(filename, compact, new LoadProgress());
+    }
+
+    // Constructor, reporting the steps of loading to progress (for
+    // loading in the background)
+    public PolyMesh(String filename, boolean compact, LoadProgress progress)
     {
 	super(filename);
 
-        // Read polygon mesh in from file
-        read(filename);
+        // Read polygon mesh in from file (or its cache), which also
+        // computes area-weighted polygon and vertex normal vectors
+        read(filename, compact, progress);
+
+        // Simplified versions, for drawing large meshes (that fit in
+        // memory); the triangle budget is in thousands (0 chooses the
+        // level from the size of the shape on the screen)
+        if (useLevelsOfDetail && getMappedMesh() == null &&
+            numPolygons() >= LOD_MIN) {
+            lodBudget = addParameter(new DoubleParameter("Triangles (k)",
+                                                         0, 0, 2000, 1));
+            useLOD = addOption(new BooleanParameter("Level of detail",
+                                                    true, 1));
+            buildLevelsOfDetail();
+        }
+
+        // Smoother versions (not for meshes out of core)
+        if (getMappedMesh() == null) {
+            subdivision = addParameter(new DoubleParameter(
+                "Subdivision", 0, 0, MAX_SUBDIVISION, 1, "0"));
+        }
+    }
+
+    // Make the levels of detail of the current geometry in the
+    // background (they are used once done, if the geometry hasn't
+    // changed; a build that sees it change makes them again)
+    public void buildLevelsOfDetail()
+    {
+        synchronized (lodLock) {
+            if (lodQueued)
+              return;
+            lodQueued = true;
+        }
+        lodBuilder.execute(new Runnable() {
+                public void run() {
+                    while (true) {
+                        int version = getGeometryVersion();
+                        boolean made = makeLevels(version);
+                        synchronized (lodLock) {
+                            if (!made || version == getGeometryVersion()) {
+                                lodQueued = false;
+                                return;
+                            }
+                        }
+                    }
+                }
+            });
+    }
 
-        // Compute area-weighted polygon and vertex normal vectors
-        computeAllNormals();
+    // The geometry has changed: the levels of detail no longer match it,
+    // so they are dropped and made again
+    public void geometryChanged()
+    {
+        super.geometryChanged();
+        if (useLOD != null) {
+            synchronized (lodLock) {
+                lods = null;
+            }
+            buildLevelsOfDetail();
+        }
     }
 
+    // Make the levels of detail of geometry version version, unless
+    // there isn't the memory for it (false if they weren't made; this is
+    // only reported once)
+    private boolean makeLevels(int version)
+    {
+        long needed = LOD_BYTES_PER_POLYGON * numPolygons();
+        if (freeMemory() < needed) {
+            // (counting what the collector hasn't freed yet)
+            System.gc();
+            long free = freeMemory();
+            if (free < needed) {
+                if (!lodNoMemory) {
+                    System.out.println("No levels of detail for " + name +
+                                       ": not enough memory (" +
+                                       free / 1048576 + " MB free, " +
+                                       needed / 1048576 + " MB needed)");
+                }
+                lodNoMemory = true;
+                return false;
+            }
+        }
+
+        try {
+            CompactMesh m = getGeometry();
+            long start = System.currentTimeMillis();
+            CompactMesh[] levels = MeshDecimator.levels(m, LOD_FRACTIONS);
+
+            // Bounding sphere (around the bounding box center)
+            double[] lo = { Double.POSITIVE_INFINITY,
+                            Double.POSITIVE_INFINITY,
+                            Double.POSITIVE_INFINITY };
+            double[] hi = { Double.NEGATIVE_INFINITY,
+                            Double.NEGATIVE_INFINITY,
+                            Double.NEGATIVE_INFINITY };
+            for (int i = 0; i < 3 * m.numVertices; i++) {
+                lo[i%3] = Math.min(lo[i%3], m.points[i]);
+                hi[i%3] = Math.max(hi[i%3], m.points[i]);
+            }
+            double[] center = new double[3];
+            for (int k = 0; k < 3; k++) {
+                center[k] = 0.5 * (lo[k] + hi[k]);
+            }
+            double r2 = 0;
+            for (int i = 0; i < m.numVertices; i++) {
+                double dx = m.points[3*i] - center[0];
+                double dy = m.points[3*i+1] - center[1];
+                double dz = m.points[3*i+2] - center[2];
+                r2 = Math.max(r2, dx*dx + dy*dy + dz*dz);
+            }
+
+            // (kept in single precision or quantized if the shape is)
+            boolean floats = getFloatMesh() != null;
+            boolean quantized = getQuantizedMesh() != null;
+            MeshRenderer[] r = new MeshRenderer[levels.length];
+            int[] tris = new int[levels.length + 1];
+            tris[0] = MeshDecimator.countTriangles(m);
+            for (int i = 0; i < levels.length; i++) {
+                if (quantized) {
+                    r[i] = new MeshRenderer(new QuantizedMesh(levels[i]));
+                } else if (floats) {
+                    r[i] = new MeshRenderer(new FloatMesh(levels[i]));
+                } else {
+                    r[i] = new MeshRenderer(levels[i]);
+                }
+                tris[i+1] = levels[i].numPolygons;
+            }
+
+            synchronized (lodLock) {
+                lodTriangles = tris;
+                lodVersion = version;
+                lodCenter = center;
+                lodRadius = Math.sqrt(r2);
+                lods = r;
+            }
+            System.out.println("Levels of detail for " + name + ": " +
+                               Arrays.toString(tris) + " triangles (" +
+                               (System.currentTimeMillis() - start) +
+                               " ms)");
+        } catch (OutOfMemoryError e) {
+            if (!lodNoMemory) {
+                System.out.println("No levels of detail for " + name +
+                                   ": out of memory");
+            }
+            lodNoMemory = true;
+            return false;
+        }
+        return true;
+    }
+
+    // Heap that can still be allocated
+    private static long freeMemory()
+    {
+        Runtime rt = Runtime.getRuntime();
+        return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    // Renderer for the level of detail to draw (the modelview matrix
+    // must include the transformation of the shape): the level with the
+    // most triangles within the budget, or, without a budget, the
+    // coarsest level that still has about one triangle per LOD_PIXELS
+    // of the area the shape covers on the screen.  The polygons,
+    // wireframe and silhouettes are drawn at this level; picking and
+    // normals stay on the full mesh.
+    protected MeshRenderer levelRenderer(GL gl)
+    {
+        MeshRenderer[] lods;
+        int[] lodTriangles;
+        double[] lodCenter;
+        double lodRadius;
+        synchronized (lodLock) {
+            if (useLOD == null || !useLOD.value || this.lods == null ||
+                lodVersion != getGeometryVersion())
+              return getRenderer();
+            lods = this.lods;
+            lodTriangles = this.lodTriangles;
+            lodCenter = this.lodCenter;
+            lodRadius = this.lodRadius;
+        }
+
+        int level;
+        if (lodBudget.value > 0) {
+            double budget = 1000 * lodBudget.value;
+            level = lodTriangles.length - 1;
+            while (level > 0 && lodTriangles[level-1] <= budget) {
+                level--;
+            }
+        } else {
+            double[] mv = new double[16], proj = new double[16];
+            int[] viewport = new int[4];
+            gl.glGetDoublev(GL.GL_MODELVIEW_MATRIX, mv, 0);
+            gl.glGetDoublev(GL.GL_PROJECTION_MATRIX, proj, 0);
+            gl.glGetIntegerv(GL.GL_VIEWPORT, viewport, 0);
+
+            // Distance to the bounding sphere, and its radius on screen
+            double z = mv[2]*lodCenter[0] + mv[6]*lodCenter[1] +
+                mv[10]*lodCenter[2] + mv[14];
+            double scale = Math.sqrt(mv[0]*mv[0] + mv[1]*mv[1] +
+                                     mv[2]*mv[2]);
+            double r = lodRadius * scale;
+            if (-z <= r) {
+                level = 0;
+            } else {
+                double pixels = r * proj[5] * viewport[3] / 2 / -z;
+                double needed = Math.PI * pixels * pixels / LOD_PIXELS;
+                level = lodTriangles.length - 1;
+                while (level > 0 && lodTriangles[level] < needed) {
+                    level--;
+                }
+            }
+        }
+        return (level == 0) ? getRenderer() : lods[level-1];
+    }
+
+    // Renderer of the subdivision surface at the chosen level (null at
+    // level 0); the levels are made when first shown, each from the one
+    // before, and kept until the geometry changes, so going back to a
+    // level costs nothing
+    protected synchronized MeshRenderer surfaceRenderer()
+    {
+        if (subdivision == null)
+          return null;
+        if (subdivided == null || subdividedVersion != getGeometryVersion()) {
+            subdivided = new MeshRenderer[MAX_SUBDIVISION];
+            subdividedVersion = getGeometryVersion();
+            subdividedMax = MAX_SUBDIVISION;
+        }
+
+        int level = Math.min((int)Math.round(subdivision.value),
+                             subdividedMax);
+        if (level == 0)
+          return null;
+
+        for (int k = 1; k <= level; k++) {
+            if (subdivided[k-1] != null)
+              continue;
+
+            CompactMesh m = (k == 1) ? getGeometry() :
+                subdivided[k-2].getMesh();
+            long size = MeshSubdivider.subdividedPolygons(m);
+            if (size > SUBDIVISION_MAX_POLYGONS) {
+                // Too big: draw the finest level there is
+                System.out.println("Subdivision level " + k + " of " +
+                                   name + " would have " + size +
+                                   " polygons; drawing level " + (k-1));
+                subdividedMax = k - 1;
+                return (k == 1) ? null : subdivided[k-2];
+            }
+
+            long start = System.nanoTime();
+            CompactMesh sm = MeshSubdivider.subdivide(m);
+            double t = (System.nanoTime() - start) / 1e9;
+            subdivided[k-1] = new MeshRenderer(sm);
+            System.out.printf("Subdivided %s to level %d (%s): %d " +
+                              "polygons in %.0f ms (%.2f M polygons/s, " +
+                              "%d threads)%n", name, k,
+                              MeshSubdivider.scheme(m), sm.numPolygons,
+                              1000 * t, sm.numPolygons / t / 1e6,
+                              Parallel.threads());
+        }
+        return subdivided[level-1];
+    }
+
+    // Accessors for the mesh: views of the storage, if used
+    public int numVertices()
+    {
+        return (storage != null) ? storage.numVertices : super.numVertices();
+    }
+    public Vertex getVertex(int i)
+    {
+        return (storage != null) ? storage.getVertex(i) : super.getVertex(i);
+    }
+    public int numPolygons()
+    {
+        return (storage != null) ? storage.numPolygons : super.numPolygons();
+    }
+    public Polygon getPolygon(int i)
+    {
+        return (storage != null) ? storage.getPolygon(i) :
+            super.getPolygon(i);
+    }
+
+    // The storage, if used
+    public MeshStorage getStorage()
+    {
+        return storage;
+    }
+
+    // Numbers in the file of vertex v and polygon p
+    public int fileVertex(int v)
+    {
+        if (storage == null && fileVertex != null)
+          return fileVertex[v];
+        return super.fileVertex(v);
+    }
+    public int filePolygon(int p)
+    {
+        if (storage == null && filePolygon != null)
+          return filePolygon[p];
+        return super.filePolygon(p);
+    }
+
+    // The compact storage, if used
+    public CompactMesh getCompactMesh()
+    {
+        return (storage instanceof CompactMesh) ? (CompactMesh)storage : null;
+    }
+
+    // The single-precision storage, if used
+    public FloatMesh getFloatMesh()
+    {
+        return (storage instanceof FloatMesh) ? (FloatMesh)storage : null;
+    }
+
+    // The quantized storage, if used
+    public QuantizedMesh getQuantizedMesh()
+    {
+        return (storage instanceof QuantizedMesh) ?
+            (QuantizedMesh)storage : null;
+    }
+
+    // The out-of-core storage, if used
+    public MappedMesh getMappedMesh()
+    {
+        return (storage instanceof MappedMesh) ? (MappedMesh)storage : null;
+    }
+
+    // Vertex -> polygon adjacency (for computing vertex normals in
+    // parallel, when stored as objects; built when first needed)
+    private MeshAdjacency adjacency;
+
     // Vertex specification in a polygon mesh
     private class VertexPM implements Vertex
     {
@@ -30,12 +461,15 @@ public class PolyMesh extends Shape
         private Point3d point;
         // Normal vector at vertex (averaged from nearby polygons)
         private Vector3d normal;
+        // Position of vertex in vertices[]
+        private int index;
         
         // Constructor
-        public VertexPM()
+        public VertexPM(int i)
         {
             point  = new Point3d();
             normal = new Vector3d();
+            index = i;
         }
 
         //---------------------------------------------------------------------
@@ -73,6 +507,12 @@ public class PolyMesh extends Shape
         // Compute unnormalized normal from vertices of polygon
         // using Newell's method
         public void computeNormal()
+        {
+            computeNormal(normal);
+        }
+
+        // Same, storing the result in normal
+        private void computeNormal(Vector3d normal)
         {
             // Zero polygon normal
             normal.set(0,0,0);
@@ -93,8 +533,27 @@ public class PolyMesh extends Shape
     }
 
     // Compute all polygon and vertex normal vectors
-    private void computeAllNormals()
+    // (call again whenever vertices have moved)
+    public void computeAllNormals()
+    {
+        computeAllNormals(Parallel.threads() > 1 &&
+                          numPolygons() >= CompactMesh.PARALLEL_MIN);
+    }
+
+    // Compute all normals sequentially or in parallel (the results are
+    // the same either way)
+    public void computeAllNormals(boolean parallel)
     {
+        geometryChanged();
+        if (storage != null) {
+            storage.computeNormals(parallel);
+            return;
+        }
+        if (parallel) {
+            computeAllNormalsParallel();
+            return;
+        }
+
         // ....
     	for(int iCounterPoly = 0; iCounterPoly < polygons.length; iCounterPoly++)
     	{
@@ -134,204 +593,320 @@ public class PolyMesh extends Shape
     	}
     	
     }
-    
+
+    // Parallel version of computeAllNormals: the vertex normals gather
+    // polygon normals over the adjacency (in the same order as the
+    // sequential version adds them), instead of scattering them
+    private void computeAllNormalsParallel()
+    {
+        if (adjacency == null) {
+            adjacency = buildAdjacency();
+        }
+        final MeshAdjacency adj = adjacency;
+
+        Parallel.forRange(polygons.length, 4096, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int p = start; p < end; p++) {
+                        polygons[p].computeNormal();
+                    }
+                }
+            });
+
+        Parallel.forRange(vertices.length, 4096, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int v = start; v < end; v++) {
+                        Vector3d vertexNorm = vertices[v].getNormal();
+                        vertexNorm.set(0, 0, 0);
+                        for (int i = 0; i < adj.degree(v); i++) {
+                            vertexNorm.add(polygons[adj.polygon(v, i)]
+                                           .getNormal());
+                        }
+                        vertexNorm.normalize();
+                    }
+                }
+            });
+
+        Parallel.forRange(polygons.length, 4096, new Parallel.Body() {
+                public void run(int start, int end) {
+                    for (int p = start; p < end; p++) {
+                        polygons[p].getNormal().normalize();
+                    }
+                }
+            });
+    }
+
     // --------------------------------------------------------------------
 
-    // Rescale object so it fits in viewpoint
-    private void rescale()
+    // Move vertex i to p (call updateNormals() afterwards)
+    public void setVertexPoint(int i, Point3d p)
     {
-        if (vertices.length == 0)
-          return;
+        if (storage != null) {
+            storage.setPoint(i, p);
+        } else {
+            vertices[i].getPoint().set(p);
+        }
+    }
 
-        // Find the 3D bounding box
-        Point3d bbmin = new Point3d(vertices[0].getPoint());
-        Point3d bbmax = new Point3d(vertices[0].getPoint());
-        for (int i = 1; i < vertices.length; i++) {
-            Point3d point = vertices[i].getPoint();
+    // Update the normals after the vertices listed in dirty have moved;
+    // only the polygons using those vertices and the normals of the
+    // vertices in their one-ring are recomputed, so the cost depends on
+    // the size of the edit, not of the mesh (the results are the same
+    // as from computeAllNormals(); meshes in single precision, quantized
+    // or out of core recompute them all)
+    public void updateNormals(int[] dirty)
+    {
+        geometryChanged();
+        if (storage != null) {
+            storage.updateNormals(dirty);
+            return;
+        }
 
-            bbmin.x = Math.min(bbmin.x, point.x);
-            bbmin.y = Math.min(bbmin.y, point.y);
-            bbmin.z = Math.min(bbmin.z, point.z);
+        // Large edits are faster to do all at once
+        if (dirty.length > vertices.length / 16) {
+            computeAllNormals();
+            return;
+        }
+        if (adjacency == null) {
+            adjacency = buildAdjacency();
+        }
 
-            bbmax.x = Math.max(bbmax.x, point.x);
-            bbmax.y = Math.max(bbmax.y, point.y);
-            bbmax.z = Math.max(bbmax.z, point.z);
+        // Polygons that changed shape (unnormalized normals, for now)
+        int[] changed = CompactMesh.polygonsOf(
+            adjacency, CompactMesh.unique(dirty, dirty.length));
+        for (int p : changed) {
+            polygons[p].computeNormal();
         }
 
-        // Center of the bounding box
-        Point3d center = new Point3d();
-        center.interpolate(bbmin, bbmax, 0.5);
+        // Vertices of those polygons
+        int n = 0;
+        int[] ring = new int[4 * changed.length];
+        for (int p : changed) {
+            for (int i = 0; i < polygons[p].size(); i++) {
+                if (n == ring.length)
+                  ring = Arrays.copyOf(ring, 2 * n);
+                ring[n++] = ((VertexPM)polygons[p].getVertex(i)).index;
+            }
+        }
+        ring = CompactMesh.unique(ring, n);
+
+        // Add up the unnormalized normals of their polygons (the
+        // unchanged ones have only been stored normalized, so recompute
+        // those)
+        Vector3d raw = new Vector3d();
+        for (int v : ring) {
+            Vector3d vertexNorm = vertices[v].getNormal();
+            vertexNorm.set(0, 0, 0);
+            for (int i = 0; i < adjacency.degree(v); i++) {
+                int p = adjacency.polygon(v, i);
+                if (Arrays.binarySearch(changed, p) >= 0) {
+                    vertexNorm.add(polygons[p].getNormal());
+                } else {
+                    ((PolygonPM)polygons[p]).computeNormal(raw);
+                    vertexNorm.add(raw);
+                }
+            }
+            vertexNorm.normalize();
+        }
 
-        // Diagonal of the bounding box
-        Vector3d diag = new Vector3d();
-        diag.sub(bbmax, bbmin);
-        
-        // Maximum dimension of bounding box
-        double maxBBox = Math.max(Math.max(diag.x, diag.y), diag.z);
+        for (int p : changed) {
+            polygons[p].getNormal().normalize();
+        }
+    }
 
-        // Transform resulting vertices
-        for (int i = 0; i < vertices.length; i++) {
-            // Translate center of box to origin
-            vertices[i].getPoint().sub(center);
+    // Build the vertex -> polygon adjacency of the polygon objects
+    private MeshAdjacency buildAdjacency()
+    {
+        int[] offset = new int[polygons.length + 1];
+        for (int p = 0; p < polygons.length; p++) {
+            offset[p+1] = offset[p] + polygons[p].size();
+        }
 
-            // Scale to fit bounding box in viewpoint, with slack
-            vertices[i].getPoint().scale(3.2/maxBBox);
+        int[] index = new int[offset[polygons.length]];
+        for (int p = 0; p < polygons.length; p++) {
+            for (int i = 0; i < polygons[p].size(); i++) {
+                VertexPM v = (VertexPM)polygons[p].getVertex(i);
+                index[offset[p] + i] = v.index;
+            }
         }
+
+        return new MeshAdjacency(vertices.length, polygons.length,
+                                 offset, index);
     }
+    
+    // --------------------------------------------------------------------
 
     // Read Wavefront OBJ file (only vertex and polygon information)
-    private void read(String filename)
+    // or its cache; the mesh is rescaled and has its normals computed
+    private void read(String filename, boolean compact,
+                      LoadProgress progress)
     {
-        FileReader input;
-        StreamTokenizer tokenizer = null;
-        Vector<Vertex> vlist = new Vector<Vertex>();
-        Vector<Vector> plist = new Vector<Vector>();
+        long heap = Runtime.getRuntime().maxMemory();
+        if (outOfCore || new File(filename).length() > heap / 2) {
+            readMapped(filename, progress);
+            return;
+        }
 
-        try {
-            input = new FileReader(filename);
-            tokenizer = new StreamTokenizer(input);
-            tokenizer.commentChar('#');
-            tokenizer.commentChar('$');
-            tokenizer.slashSlashComments(false);
-            tokenizer.slashStarComments(false);
-            tokenizer.eolIsSignificant(true);
-            tokenizer.ordinaryChar('/');
-
-            while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
-                switch (tokenizer.ttype) {
-                  case StreamTokenizer.TT_WORD:
-                    // Next command
-                    parseLine(tokenizer, vlist, plist);
-                    break;
-                  case StreamTokenizer.TT_EOL:
-                    break;
-                  default:
-                    skipLine(tokenizer);
-                }
+        int options = ((weldEpsilon > 0) ? MeshCache.WELDED : 0) |
+            (reorder ? MeshCache.REORDERED : 0);
+        progress.begin("Reading cache");
+        CompactMesh m = useCache ?
+            MeshCache.load(filename, options, weldEpsilon) : null;
+
+        if (m == null) {
+            progress.begin("Parsing");
+            m = new CompactMesh(parse(filename, progress));
+
+            // Merge duplicated vertices (such as along UV seams), so
+            // that normals are averaged across them
+            if (weldEpsilon > 0) {
+                progress.begin("Welding");
+                int nv = m.numVertices, np = m.numPolygons;
+                long start = System.currentTimeMillis();
+                int removed = m.weld(weldEpsilon);
+                System.out.println("Welded " + filename + ": removed " +
+                                   removed + " of " + nv + " vertices, " +
+                                   (np - m.numPolygons) +
+                                   " degenerate polygons (" +
+                                   (System.currentTimeMillis() - start) +
+                                   " ms)");
             }
 
-            input.close();
-
-            // Create vertices
-            vertices = new Vertex[vlist.size()];
-            for (int i = 0; i < vlist.size(); i++) {
-                vertices[i] = (Vertex)(vlist.elementAt(i));
+            // Draw order that reuses transformed vertices, and vertex
+            // numbers that follow it (for locality in loops over them)
+            if (reorder) {
+                progress.begin("Reordering");
+                long start = System.currentTimeMillis();
+                double before = MeshReorder.acmr(m, MeshReorder.CACHE_SIZE);
+                MeshReorder.reorder(m);
+                double after = MeshReorder.acmr(m, MeshReorder.CACHE_SIZE);
+                System.out.printf("Reordered %s: ACMR %.3f -> %.3f " +
+                                  "(%d ms)%n", filename, before, after,
+                                  System.currentTimeMillis() - start);
             }
 
-            // Create polygons
-            polygons = new Polygon[plist.size()];
-            for (int i = 0; i < plist.size(); i++) {
-                Vector pi = (Vector)(plist.elementAt(i));
+            // Rescale object so it fits in viewpoint
+            progress.begin("Computing normals");
+            m.rescale();
 
-                polygons[i] = new PolygonPM(pi.size());
+            // Compute area-weighted polygon and vertex normal vectors
+            m.computeNormals();
 
-                for (int j = 0; j < pi.size(); j++) {
-                    int pij = ((Integer)(pi.elementAt(j))).intValue();
+            if (useCache)
+              MeshCache.save(filename, options, weldEpsilon, m);
+        }
 
-                    polygons[i].setVertex(j, vertices[pij]);
-                }
-            }
-        } catch (FileNotFoundException E) {
-            System.err.println("File not found: " + filename);
-            System.exit(1);
-        } catch (SecurityException E) {
-            System.err.println("Cannot access file: " + filename);
-            System.exit(1);
-        } catch (IOException E) {
-            if (tokenizer != null) {
-                System.err.println("Error reading file: " + filename +
-                                   " [line " + tokenizer.lineno() + "]");
-            } else {
-                System.err.println("Error reading file: " + filename);
-            }
-            System.exit(1);
+        if (quantize) {
+            // Keep the arrays, encoded
+            QuantizedMesh quantized = new QuantizedMesh(m);
+            storage = quantized;
+            vertices = null;
+            polygons = null;
+            System.out.printf("Stored %s quantized: %.1f MB of positions " +
+                              "and normals instead of %.1f MB (positions " +
+                              "within %.1e)%n",
+                              filename, quantized.encodedBytes() / 1048576.0,
+                              quantized.doubleBytes() / 1048576.0,
+                              quantized.maxError());
+            return;
         }
 
-        rescale();
-    }
+        if (singlePrecision) {
+            // Keep the arrays, in floats
+            FloatMesh floats = new FloatMesh(m);
+            storage = floats;
+            vertices = null;
+            polygons = null;
+            System.out.printf("Stored %s in single precision: %.1f MB of " +
+                              "positions and normals instead of %.1f MB%n",
+                              filename, floats.floatBytes() / 1048576.0,
+                              floats.doubleBytes() / 1048576.0);
+            return;
+        }
 
-    // Process next command; accumulate results in v/plist
-    private void parseLine(StreamTokenizer tokenizer,
-                          Vector<Vertex> vlist, Vector<Vector> plist)
-        throws IOException
-    {
-        if (tokenizer.sval.equals("v")) {
-            // Vertex command
-            VertexPM v = new VertexPM();
+        if (compact) {
+            // Keep the arrays
+            storage = m;
+            vertices = null;
+            polygons = null;
+            return;
+        }
 
-            v.setPoint(new Point3d(parseDouble(tokenizer),
-                    parseDouble(tokenizer), parseDouble(tokenizer)));
+        // Create vertices
+        progress.begin("Making vertices and polygons");
+        vertices = new Vertex[m.numVertices];
+        for (int i = 0; i < m.numVertices; i++) {
+            VertexPM v = new VertexPM(i);
+
+            v.setPoint(new Point3d(m.points[3*i], m.points[3*i+1],
+                                   m.points[3*i+2]));
+            v.setNormal(new Vector3d(m.normals[3*i], m.normals[3*i+1],
+                                     m.normals[3*i+2]));
+            vertices[i] = v;
+        }
 
-            skipLine(tokenizer);
+        // Create polygons
+        polygons = new Polygon[m.numPolygons];
+        for (int i = 0; i < m.numPolygons; i++) {
+            int start = m.offset[i];
+            int size = m.offset[i+1] - start;
 
-            vlist.add(v);
-        } else if (tokenizer.sval.equals("f")) {
-            // Face command
-            plist.add(parsePolygon(tokenizer));
-        } else {
-            // Ignore other commands
-            skipLine(tokenizer);
+            PolygonPM p = new PolygonPM(size);
+
+            for (int j = 0; j < size; j++) {
+                p.setVertex(j, vertices[m.index[start + j]]);
+            }
+            p.normal.set(m.polyNormals[3*i], m.polyNormals[3*i+1],
+                         m.polyNormals[3*i+2]);
+            polygons[i] = p;
         }
+        fileVertex = m.fileVertex;
+        filePolygon = m.filePolygon;
     }
 
-    // Read a single floating point value
-    private double parseDouble(StreamTokenizer tokenizer)
-        throws IOException
+    // Read the OBJ file into memory-mapped files (exits on errors)
+    private void readMapped(String filename, LoadProgress progress)
     {
-        if (tokenizer.nextToken() == StreamTokenizer.TT_EOL ||
-            tokenizer.ttype != StreamTokenizer.TT_NUMBER) {
-            try {
-                double d = Double.valueOf(tokenizer.sval).doubleValue();
-                tokenizer.nval = d;
-                return d;
-             } catch (NumberFormatException nfe) {
-                 System.out.print("Can not convert " + tokenizer.sval);
-                throw new IOException();
-             }
-        }
-
-        return tokenizer.nval;
+        long start = System.currentTimeMillis();
+        MappedMesh mapped = null;
+        try {
+            mapped = MappedMesh.load(filename, progress);
+        } catch (FileNotFoundException E) {
+            System.err.println("File not found: " + filename);
+            System.exit(1);
+        } catch (IOException E) {
+            System.err.println("Error reading file: " + filename +
+                               " [" + E.getMessage() + "]");
+            System.exit(1);
+        }
+        storage = mapped;
+        vertices = null;
+        polygons = null;
+
+        System.out.println("Loaded " + filename + " out of core: " +
+                           mapped.numVertices + " vertices, " +
+                           mapped.numPolygons + " polygons (" +
+                           (System.currentTimeMillis() - start) + " ms)");
     }
 
-    // Read a polygon specification -- a list of integers
-    private Vector parsePolygon(StreamTokenizer tokenizer)
-        throws IOException
+    // Parse the OBJ file (exits on errors)
+    private ObjParser.Result parse(String filename, LoadProgress progress)
     {
-        Vector<Integer> list = new Vector<Integer>();
-        int slashes = 0;
-
-        while (tokenizer.nextToken() != StreamTokenizer.TT_EOL) {
-            switch(tokenizer.ttype) {
-              case StreamTokenizer.TT_NUMBER: 
-                switch (slashes) {
-                  case 0:
-                    list.add(new Integer((int)Math.round(tokenizer.nval)-1));
-                    break;
-
-                  case 2:
-                    slashes = 0;
-                    break;
-                }
-                break;
+        ObjParser.Result obj = null;
 
-              case '/':
-                slashes++;
-                break;
-
-              default:
-                throw new IOException();
-            }
+        try {
+            obj = ObjParser.parse(filename, progress);
+        } catch (FileNotFoundException E) {
+            System.err.println("File not found: " + filename);
+            System.exit(1);
+        } catch (SecurityException E) {
+            System.err.println("Cannot access file: " + filename);
+            System.exit(1);
+        } catch (IOException E) {
+            System.err.println("Error reading file: " + filename +
+                               " [" + E.getMessage() + "]");
+            System.exit(1);
         }
-        if (slashes != 0)
-          throw new IOException();
 
-        return list;
-    }
-
-    // Skip the rest of a line
-    private void skipLine(StreamTokenizer tokenizer)
-        throws IOException
-    {
-        while (tokenizer.nextToken() != StreamTokenizer.TT_EOL);
+        return obj;
     }
 }
@@ -3,7 +3,8 @@
  * Abstract representation of a mesh polygon -- a set of vertices and
  * a surface normal for the polygon
  *
- * Instantiations of this interface are in UVShape and PolyMesh
+ * Instantiations of this interface are in UVShape and PolyMesh (and
+ * views of a MeshStorage)
  *
  * Doug DeCarlo
  */
@@ -0,0 +1,284 @@
+/* class QuantizedMesh
+ * Compressed storage for a polygon mesh, for display
+ *
+ * Positions are quantized to 16 bits per axis within the bounding box
+ * of the mesh, and unit normals (of vertices and polygons) are stored
+ * in octahedral encoding, as two 16-bit values.  A vertex takes 10
+ * bytes instead of 48 (two double 3-vectors), and a polygon normal 4
+ * bytes instead of 24; the polygons themselves are stored like in
+ * CompactMesh.
+ *
+ * Octahedral encoding projects a unit vector onto the octahedron
+ * |x|+|y|+|z| = 1, and folds the lower half (z < 0) over the upper one,
+ * which gives a point of the square [-1,1]^2 (see Cigolle et al., "A
+ * Survey of Efficient Representations for Independent Unit Vectors").
+ *
+ * Positions are decoded in batches to draw (toFloat()), and in double
+ * for arithmetic (the normals of MeshStorage), which is still done in
+ * double.
+ */
+
+import javax.vecmath.*;
+
+public class QuantizedMesh extends MeshStorage
+{
+    // Vertices: quantized positions (x,y,z) and encoded normals (u,v)
+    short[] points;
+    short[] normals;
+
+    // Polygons: index buffer, offsets into it, and encoded normals
+    int[] offset;
+    int[] index;
+    short[] polyNormals;
+
+    // Position of the box corner, and the size of a quantization step
+    // on each axis (0 if the box is flat on that axis)
+    private double[] origin, step;
+
+    // Largest quantized value (of positions, and of the encoded normal
+    // coordinates, which are signed)
+    private static final int POSITION_MAX = 0xffff;
+    private static final int NORMAL_MAX = 0x7fff;
+
+    // Room added past a vertex moved out of the box, when growing it
+    // (as a fraction of the new size), so that dragging it further does
+    // not grow the box on each move
+    private static final double GROW_MARGIN = 0.125;
+
+    // Constructor: encoding of the geometry of m (the polygon arrays are
+    // shared)
+    public QuantizedMesh(CompactMesh m)
+    {
+        numVertices = m.numVertices;
+        numPolygons = m.numPolygons;
+        offset = m.offset;
+        index = m.index;
+        fileVertex = m.fileVertex;
+        filePolygon = m.filePolygon;
+
+        // Bounding box
+        double[] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                        Double.POSITIVE_INFINITY };
+        double[] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                        Double.NEGATIVE_INFINITY };
+        for (int i = 0; i < 3 * numVertices; i++) {
+            lo[i%3] = Math.min(lo[i%3], m.points[i]);
+            hi[i%3] = Math.max(hi[i%3], m.points[i]);
+        }
+        origin = new double[3];
+        step = new double[3];
+        for (int k = 0; k < 3; k++) {
+            origin[k] = (numVertices > 0) ? lo[k] : 0;
+            step[k] = (hi[k] > lo[k]) ? (hi[k] - lo[k]) / POSITION_MAX : 0;
+        }
+
+        points = new short[3 * numVertices];
+        normals = new short[2 * numVertices];
+        polyNormals = new short[2 * numPolygons];
+        for (int v = 0; v < numVertices; v++) {
+            setPoint(v, m.points[3*v], m.points[3*v+1], m.points[3*v+2]);
+            encode(m.normals, 3*v, normals, 2*v);
+        }
+        for (int p = 0; p < numPolygons; p++) {
+            encode(m.polyNormals, 3*p, polyNormals, 2*p);
+        }
+    }
+
+    // Bytes taken by the positions and normals, encoded and as doubles
+    // (in a CompactMesh)
+    public long encodedBytes()
+    {
+        return 10L * numVertices + 4L * numPolygons;
+    }
+    public long doubleBytes()
+    {
+        return 48L * numVertices + 24L * numPolygons;
+    }
+
+    // Largest error of a quantized position (half a step, on the
+    // longest side of the box)
+    public double maxError()
+    {
+        return 0.5 * Math.max(Math.max(step[0], step[1]), step[2]);
+    }
+
+    // ---------------------------------------------------------------------
+    // Encoding and decoding
+
+    // Coordinate k of vertex v
+    double coord(int v, int k)
+    {
+        return origin[k] + step[k] * (points[3*v+k] & 0xffff);
+    }
+
+    // Quantize (x,y,z) into the position of vertex v (which must be in
+    // the box; only rounding is clamped)
+    private void setPoint(int v, double x, double y, double z)
+    {
+        points[3*v] = quantize(x, 0);
+        points[3*v+1] = quantize(y, 1);
+        points[3*v+2] = quantize(z, 2);
+    }
+    private short quantize(double x, int k)
+    {
+        if (step[k] == 0)
+          return 0;
+        long q = Math.round((x - origin[k]) / step[k]);
+        return (short)Math.max(0, Math.min(POSITION_MAX, q));
+    }
+
+    // Octahedral encoding of the unit vector at position i of n, stored
+    // at position j of e
+    static void encode(double[] n, int i, short[] e, int j)
+    {
+        double x = n[i], y = n[i+1], z = n[i+2];
+        double l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (l1 == 0) {
+            e[j] = e[j+1] = 0;
+            return;
+        }
+        double u = x / l1, v = y / l1;
+        if (z < 0) {
+            // Fold the lower half over the diagonals
+            double fu = (1 - Math.abs(v)) * ((u >= 0) ? 1 : -1);
+            double fv = (1 - Math.abs(u)) * ((v >= 0) ? 1 : -1);
+            u = fu;
+            v = fv;
+        }
+        e[j] = (short)Math.round(u * NORMAL_MAX);
+        e[j+1] = (short)Math.round(v * NORMAL_MAX);
+    }
+
+    // Decode the unit vector at position j of e into position i of n
+    static void decode(short[] e, int j, double[] n, int i)
+    {
+        double u = (double)e[j] / NORMAL_MAX, v = (double)e[j+1] / NORMAL_MAX;
+        double z = 1 - Math.abs(u) - Math.abs(v);
+        if (z < 0) {
+            double fu = (1 - Math.abs(v)) * ((u >= 0) ? 1 : -1);
+            double fv = (1 - Math.abs(u)) * ((v >= 0) ? 1 : -1);
+            u = fu;
+            v = fv;
+        }
+        n[i] = u;
+        n[i+1] = v;
+        n[i+2] = z;
+        CompactMesh.normalize(n, i);
+    }
+
+    // Decoded copies of the mesh, in single or double precision (the
+    // polygon arrays are shared)
+    public FloatMesh toFloat()
+    {
+        FloatMesh f = new FloatMesh(numVertices, numPolygons, offset, index);
+        double[] n = new double[3];
+        for (int v = 0; v < numVertices; v++) {
+            for (int k = 0; k < 3; k++) {
+                f.points[3*v+k] = (float)coord(v, k);
+            }
+            decode(normals, 2*v, n, 0);
+            for (int k = 0; k < 3; k++) {
+                f.normals[3*v+k] = (float)n[k];
+            }
+        }
+        for (int p = 0; p < numPolygons; p++) {
+            decode(polyNormals, 2*p, n, 0);
+            for (int k = 0; k < 3; k++) {
+                f.polyNormals[3*p+k] = (float)n[k];
+            }
+        }
+        return f;
+    }
+    public CompactMesh toCompact()
+    {
+        double[] pts = new double[3 * numVertices];
+        for (int v = 0; v < numVertices; v++) {
+            for (int k = 0; k < 3; k++) {
+                pts[3*v+k] = coord(v, k);
+            }
+        }
+        CompactMesh m = new CompactMesh(numVertices, pts,
+                                        numPolygons, offset, index);
+        for (int v = 0; v < numVertices; v++) {
+            decode(normals, 2*v, m.normals, 3*v);
+        }
+        for (int p = 0; p < numPolygons; p++) {
+            decode(polyNormals, 2*p, m.polyNormals, 3*p);
+        }
+        m.fileVertex = fileVertex;
+        m.filePolygon = filePolygon;
+        return m;
+    }
+
+    // ---------------------------------------------------------------------
+    // Access to the encoded arrays (for the views and normals in
+    // MeshStorage)
+
+    void vertexNormal(int v, double[] n, int off)
+    {
+        decode(normals, 2*v, n, off);
+    }
+    void setVertexNormal(int v, double[] n, int off)
+    {
+        encode(n, off, normals, 2*v);
+    }
+    void polygonNormal(int p, double[] n, int off)
+    {
+        decode(polyNormals, 2*p, n, off);
+    }
+    void setPolygonNormal(int p, double[] n, int off)
+    {
+        encode(n, off, polyNormals, 2*p);
+    }
+    public int polygonSize(int p)
+    {
+        return offset[p+1] - offset[p];
+    }
+    public int corner(int p, int i)
+    {
+        return index[offset[p] + i];
+    }
+    void setCorner(int p, int i, int v)
+    {
+        index[offset[p] + i] = v;
+    }
+
+    // Move vertex v to p (call computeNormals() afterwards); a point
+    // outside the box grows it, which quantizes all the positions again
+    // (with larger steps)
+    public void setPoint(int v, Point3d p)
+    {
+        double[] x = { p.x, p.y, p.z };
+        for (int k = 0; k < 3; k++) {
+            if (x[k] < origin[k] || x[k] > origin[k] + step[k] * POSITION_MAX) {
+                growBox(x);
+                break;
+            }
+        }
+        setPoint(v, p.x, p.y, p.z);
+    }
+
+    // Grow the box to hold x (with GROW_MARGIN to spare on the sides
+    // that grew), and quantize the positions again within it
+    private void growBox(double[] x)
+    {
+        double[] oldOrigin = origin.clone(), oldStep = step.clone();
+        for (int k = 0; k < 3; k++) {
+            double lo = origin[k], hi = origin[k] + step[k] * POSITION_MAX;
+            double newLo = Math.min(lo, x[k]), newHi = Math.max(hi, x[k]);
+            double margin = GROW_MARGIN * (newHi - newLo);
+            if (x[k] < lo)
+              newLo -= margin;
+            if (x[k] > hi)
+              newHi += margin;
+            origin[k] = newLo;
+            step[k] = (newHi - newLo) / POSITION_MAX;
+        }
+
+        for (int i = 0; i < 3 * numVertices; i++) {
+            int k = i % 3;
+            points[i] = quantize(oldOrigin[k] +
+                                 oldStep[k] * (points[i] & 0xffff), k);
+        }
+    }
+}
@@ -10,6 +10,7 @@
 
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.media.opengl.GL;
 import javax.vecmath.*;
@@ -36,11 +37,42 @@ public abstract class Shape
     // Parameters for display options
     private Vector<BooleanParameter> options;
     private BooleanParameter drawPoly, drawWireframe, drawSmooth, drawSil;
-    private BooleanParameter drawNormals;
+    private BooleanParameter drawNormals, drawBuffers, hoverPick;
+    private BooleanParameter drawStrips;
+
+    // Picked polygon (-1 if none)
+    private int picked;
+
+    // Retained-mode drawing of the polygons (vertex buffers), and the
+    // version of the geometry, bumped whenever it changes
+    private MeshRenderer renderer;
+    private volatile int geometryVersion;
+
+    // Spatial index of the polygons, and the geometry version it was
+    // built for.  It is only built on bvhBuilder, once asked for (see
+    // buildBVHInBackground()) and again after each change of the
+    // geometry, so picking while drawing never waits for it.  These,
+    // and whether a build is wanted or queued, are guarded by bvhLock,
+    // which is only held to read or set them.
+    private MeshBVH bvh;
+    private int bvhVersion;
+    private boolean bvhWanted, bvhQueued;
+    private final Object bvhLock = new Object();
+
+    // Thread that builds the BVHs of all shapes in the background
+    private static final ExecutorService bvhBuilder =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "bvh-build");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
 
     // Variable for telling GLSL to enable/disable the fragment shader
     // (so that you can draw wireframe, etc... with a passthru)
-    int bindFragShade;
+    SlangProgram.Uniform bindFragShade;
 
     // For adding polygons one by one
     private int lastPolygon;
@@ -86,9 +118,20 @@ public abstract class Shape
                                                        false, 1));
         drawSil = addOption(new BooleanParameter("Draw silhouettes", 
                                                     false, 1));
+        drawBuffers = addOption(new BooleanParameter("Vertex buffers",
+                                                     true, 1));
+        drawStrips = addOption(new BooleanParameter("Triangle strips",
+                                                    true, 1));
+        hoverPick = addOption(new BooleanParameter("Pick on hover",
+                                                   false, 1));
+        picked = -1;
+
+        renderer = new MeshRenderer(this);
+        geometryVersion = 0;
 
         // Create Slang program
         slProgram = new IllumProgram("Illumination", this);
+        bindFragShade = slProgram.addUniform("useFragShader");
     }
 
     // For binding vertex/fragment shader's uniform variables
@@ -107,6 +150,12 @@ public abstract class Shape
         return p;
     }
 
+    // Retained-mode renderer of the polygons
+    public MeshRenderer getRenderer()
+    {
+        return renderer;
+    }
+
     // Accessors for parameters/options
     public Vector<DoubleParameter> getParams()
     {
@@ -132,6 +181,24 @@ public abstract class Shape
         return matDiff;
     }
 
+    // Take the values of the parameters and options of another shape
+    // that have the same names (such as the pose set on a MeshPreview)
+    public void copyParameters(Shape from)
+    {
+        for (DoubleParameter p : params) {
+            for (DoubleParameter q : from.params) {
+                if (q.name.equals(p.name))
+                  p.value = q.value;
+            }
+        }
+        for (BooleanParameter p : options) {
+            for (BooleanParameter q : from.options) {
+                if (q.name.equals(p.name))
+                  p.value = q.value;
+            }
+        }
+    }
+
     // Reset all shape parameters to default values
     public void reset()
     {
@@ -156,6 +223,251 @@ public abstract class Shape
         polygons[lastPolygon++] = p;
     }
 
+    // Called when a parameter that changes the geometry of the shape
+    // (dirty level 2) has been changed
+    public void recompute()
+    {
+        geometryChanged();
+    }
+
+    // Call whenever vertex positions or normals have changed, so that
+    // vertex buffers made from them are rebuilt
+    public void geometryChanged()
+    {
+        geometryVersion++;
+        synchronized (bvhLock) {
+            queueBVH();
+        }
+    }
+    public int getGeometryVersion()
+    {
+        return geometryVersion;
+    }
+
+    // Version of the vertex data sent to GL: the geometry version, unless
+    // a vertex shader makes the positions (see cpuGeometry())
+    public int getVertexDataVersion()
+    {
+        return geometryVersion;
+    }
+
+    // True if the vertices sent to GL are the actual geometry (and not
+    // parameters that a vertex shader turns into positions)
+    public boolean cpuGeometry()
+    {
+        return true;
+    }
+
+    // The mesh as flat arrays, for shapes that store it that way (and
+    // null otherwise); it must match what getVertex/getPolygon return
+    public CompactMesh getCompactMesh()
+    {
+        return null;
+    }
+
+    // The mesh in single precision, for shapes that store it that way
+    // (and null otherwise); they are drawn from it, and getGeometry()
+    // makes a copy in double precision
+    public FloatMesh getFloatMesh()
+    {
+        return null;
+    }
+
+    // The mesh quantized, for shapes that store it that way (and null
+    // otherwise); like getFloatMesh()
+    public QuantizedMesh getQuantizedMesh()
+    {
+        return null;
+    }
+
+    // True if the geometry is stored packed (in single precision or
+    // quantized), so that getGeometry() makes a new copy on each call
+    public boolean packedGeometry()
+    {
+        return getFloatMesh() != null || getQuantizedMesh() != null;
+    }
+
+    // The numbered storage that getVertex/getPolygon are views of, for
+    // shapes that keep one (and null otherwise)
+    public MeshStorage getStorage()
+    {
+        return null;
+    }
+
+    // Number of the vertex at corner i of polygon p (from the storage,
+    // or else from getGeometry())
+    public int polygonVertex(int p, int i)
+    {
+        MeshStorage s = getStorage();
+        return (s != null) ? s.corner(p, i) : getGeometry().corner(p, i);
+    }
+
+    // Numbers in the file of vertex v and polygon p (from 0): the same
+    // as v and p, unless the shape was renumbered when it was loaded
+    public int fileVertex(int v)
+    {
+        MeshStorage s = getStorage();
+        return (s != null) ? s.fileVertex(v) : v;
+    }
+    public int filePolygon(int p)
+    {
+        MeshStorage s = getStorage();
+        return (s != null) ? s.filePolygon(p) : p;
+    }
+
+    // The mesh in memory-mapped files, for shapes too big to keep in
+    // memory (and null otherwise); such shapes are drawn from it, and
+    // getGeometry() (and all that uses it) is not available
+    public MappedMesh getMappedMesh()
+    {
+        return null;
+    }
+
+    // The geometry of the shape as flat arrays (a copy, for shapes that
+    // don't store it that way), in the coordinates of the shape
+    public CompactMesh getGeometry()
+    {
+        return renderer.getMesh();
+    }
+
+    // Triangle strips over the polygons, for shapes with a layout that
+    // gives them directly (null to have them made from the polygons)
+    public MeshStrips getStrips()
+    {
+        return null;
+    }
+
+    // Picked polygon, highlighted when drawn (-1 for none)
+    public void setPicked(int p)
+    {
+        picked = p;
+    }
+    public int getPicked()
+    {
+        return picked;
+    }
+
+    // True if polygons can be picked (which needs getGeometry())
+    public boolean pickable()
+    {
+        return getMappedMesh() == null;
+    }
+
+    // True if picking should follow the mouse (not only clicks)
+    public boolean pickOnHover()
+    {
+        return hoverPick.value;
+    }
+
+    // Renderer for the polygons in the current view: a smoother
+    // surface, if there is one, or else the level of detail
+    private MeshRenderer polygonRenderer(GL gl)
+    {
+        MeshRenderer surface = surfaceRenderer();
+        return (surface != null) ? surface : levelRenderer(gl);
+    }
+
+    // Renderer for the level of detail to draw the polygons, wireframe
+    // and silhouettes at, in the current view (the modelview matrix must
+    // include the transformation of the shape); by default, the shape
+    // itself
+    protected MeshRenderer levelRenderer(GL gl)
+    {
+        return renderer;
+    }
+
+    // Renderer of a smoother surface to draw in place of the polygons
+    // of the shape (such as a subdivision surface over them), or null to
+    // draw the polygons; the wireframe, picking and normals stay on the
+    // polygons of the shape
+    protected MeshRenderer surfaceRenderer()
+    {
+        return null;
+    }
+
+    // Bounding volume hierarchy over the polygons of getGeometry(), if
+    // built for the current geometry (and null while it is being built;
+    // this never waits for a build)
+    public MeshBVH readyBVH()
+    {
+        synchronized (bvhLock) {
+            if (bvh != null && bvhVersion == geometryVersion)
+              return bvh;
+            queueBVH();
+            return null;
+        }
+    }
+
+    // Build the BVH in the background from now on: now, and again after
+    // each change of the geometry
+    public void buildBVHInBackground()
+    {
+        synchronized (bvhLock) {
+            bvhWanted = true;
+            queueBVH();
+        }
+    }
+
+    // Queue a build of the BVH, if wanted and not current or already
+    // queued (bvhLock must be held)
+    private void queueBVH()
+    {
+        if (!bvhWanted || bvhQueued ||
+            (bvh != null && bvhVersion == geometryVersion))
+          return;
+        bvhQueued = true;
+        bvhBuilder.execute(new Runnable() {
+                public void run() {
+                    buildBVH();
+                }
+            });
+    }
+
+    // Build the BVH on bvhBuilder, again while the geometry changed
+    // during the build
+    private void buildBVH()
+    {
+        while (true) {
+            int version = geometryVersion;
+            MeshBVH b = null;
+            try {
+                b = new MeshBVH(getGeometry());
+            } catch (OutOfMemoryError e) {
+                System.err.println("No memory for the BVH of " + name +
+                                   ": picking is off");
+            }
+            synchronized (bvhLock) {
+                if (b != null) {
+                    bvh = b;
+                    bvhVersion = version;
+                }
+                if (b == null || version == geometryVersion) {
+                    bvhQueued = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    // Accessors for the mesh -- shapes that don't keep an array of
+    // Vertex/Polygon objects override these to hand out views
+    public int numVertices()
+    {
+        return vertices.length;
+    }
+    public Vertex getVertex(int i)
+    {
+        return vertices[i];
+    }
+    public int numPolygons()
+    {
+        return polygons.length;
+    }
+    public Polygon getPolygon(int i)
+    {
+        return polygons[i];
+    }
+
     // --------------------------------------------------------------------
     // GLSL enable/disable methods
     
@@ -172,30 +484,33 @@ public abstract class Shape
     {
         if (useGLSL() && !slProgram.Ready()) {
             slProgram.init(gl);
-
-	    if (slProgram.Ready()) {
-		// bind only when the shading program is ready
-		bindFragShade = gl.glGetUniformLocationARB(slProgram.program, 
-							   "useFragShader");
-      	    }
         }
         if ((slProgram.Ready() && useGLSL()) || !useGLSL()) {
             slProgram.enable(gl, useGLSL());
         }
     }
 
+    // Compile and link the shaders ahead of time (such as at startup),
+    // so that turning GLSL on doesn't stall a frame
+    public void prepareGLSL(GL gl)
+    {
+        if (!slProgram.Ready()) {
+            slProgram.init(gl);
+        }
+    }
+
     // Call these to enable/disable the fragment shader (using the
     // useFragShader variable in illum.fp)
     public void enableFragShader(GL gl)
     {
         if (useGLSL() && slProgram.Ready()) {
-            gl.glUniform1iARB(bindFragShade, 1);
+            slProgram.setUniform(gl, bindFragShade, 1);
         }
     }
     public void disableFragShader(GL gl)
     {
         if (useGLSL() && slProgram.Ready()) {
-            gl.glUniform1iARB(bindFragShade, 0);
+            slProgram.setUniform(gl, bindFragShade, 0);
         }
     }
 
@@ -251,12 +566,7 @@ public abstract class Shape
         // Set up light and materials
         setupScene(gl);
 
-        // Apply M = T Rx Ry Rz S (most intuitive for Z-axis aligned objects)
-        gl.glTranslated(tx.value, ty.value, tz.value);
-        gl.glRotated(rx.value, 1, 0, 0);
-        gl.glRotated(ry.value, 0, 1, 0);
-        gl.glRotated(rz.value, 0, 0, 1);
-        gl.glScaled(scale.value, scale.value, scale.value);
+        applyTransform(gl);
 
         // Draw polygons, wireframe, silhouette
         // ... 
@@ -279,7 +589,20 @@ public abstract class Shape
         	gl.glColor3d(1.0, 0.5, 0.3);
         	drawNormals(gl);
         }
-        
+        if (picked >= 0 && picked < numPolygons()) {
+            gl.glColor3d(1.0, 0.0, 0.0);
+            drawPicked(gl);
+        }
+    }
+
+    // Apply M = T Rx Ry Rz S (most intuitive for Z-axis aligned objects)
+    public void applyTransform(GL gl)
+    {
+        gl.glTranslated(tx.value, ty.value, tz.value);
+        gl.glRotated(rx.value, 1, 0, 0);
+        gl.glRotated(ry.value, 0, 1, 0);
+        gl.glRotated(rz.value, 0, 0, 1);
+        gl.glScaled(scale.value, scale.value, scale.value);
     }
 
     // Draw polygons in mesh (smooth shaded if drawSmooth option is true)
@@ -292,14 +615,22 @@ public abstract class Shape
     	gl.glEnable(GL.GL_POLYGON_OFFSET_FILL);
     	gl.glPolygonOffset(1.0f, 1.0f);    	  	
     	
-        if (drawSmooth.value) {
+        if (getMappedMesh() != null) {
+            // Out of core: from the mapped files
+            getMappedMesh().draw(gl, drawSmooth.value);
+        } else if (drawBuffers.value) {
+            // Retained mode: triangulated once into vertex buffers (at
+            // the level of detail for the current view)
+            polygonRenderer(gl).draw(gl, drawSmooth.value,
+                                     drawStrips.value);
+        } else if (drawSmooth.value) {
 	    // Smooth shading
-        	int numPoly = polygons.length;
+        	int numPoly = numPolygons();
         	for(int countPoly = 0; countPoly<numPoly; countPoly++){
-        		Polygon currentPoly = polygons[countPoly];
+        		Polygon currentPoly = getPolygon(countPoly);
         		//Vector3d polyNorm = currentPoly.getNormal();
         		
-        		int numVertices = polygons[countPoly].size();
+        		int numVertices = currentPoly.size();
         		gl.glBegin(GL.GL_POLYGON);
         		//gl.glNormal3d(polygons[countPoly].getNormal().x, polygons[countPoly].getNormal().y, polygons[countPoly].getNormal().z);
         		for(int countVertices = 0; countVertices<numVertices; countVertices++){
@@ -323,15 +654,16 @@ public abstract class Shape
 	    // Flat shading
 
             // ...
-		int numPoly = polygons.length;
+		int numPoly = numPolygons();
     	for(int countPoly = 0; countPoly<numPoly; countPoly++){
-    		int numVertices = polygons[countPoly].size();
+    		Polygon currentPoly = getPolygon(countPoly);
+    		Vector3d polyNorm = currentPoly.getNormal();
+    		int numVertices = currentPoly.size();
     		gl.glBegin(GL.GL_POLYGON);
-    		gl.glNormal3d(polygons[countPoly].getNormal().x, polygons[countPoly].getNormal().y, polygons[countPoly].getNormal().z);
+    		gl.glNormal3d(polyNorm.x, polyNorm.y, polyNorm.z);
     		for(int countVertices = 0; countVertices<numVertices; countVertices++){
-    			Point3d vertex = polygons[countPoly].getVertex(countVertices).getPoint();
+    			Point3d vertex = currentPoly.getVertex(countVertices).getPoint();
     				gl.glVertex3d(vertex.x, vertex.y, vertex.z);
-    				gl.glNormal3d(polygons[countPoly].getNormal().x, polygons[countPoly].getNormal().y, polygons[countPoly].getNormal().z);
     		}
     		
     		gl.glEnd();   		
@@ -342,24 +674,15 @@ public abstract class Shape
         disableFragShader(gl);
     }
     
-    // Draw wireframe of mesh
+    // Draw wireframe of mesh: each edge once, as lines (the polygons
+    // are drawn with a polygon offset, so the lines are in front)
     private void drawWireframe(GL gl)
     {
-        // ...
-    	int numPoly = polygons.length;
-    	gl.glPolygonMode(GL.GL_FRONT_AND_BACK, GL.GL_LINE);
-    	
-		
-    	for(int countPoly = 0; countPoly<numPoly; countPoly++){
-    		gl.glBegin(GL.GL_POLYGON);
-    		int numVertices = polygons[countPoly].size();
-    		for(int countVertices = 0; countVertices<numVertices; countVertices++){
-    			Point3d vertex = polygons[countPoly].getVertex(countVertices).getPoint();
-    			gl.glVertex3d(vertex.x, vertex.y, vertex.z);
-    		}
-    		gl.glEnd();
-    	}
-    	gl.glDisable(GL.GL_POLYGON_OFFSET_LINE);
+        if (getMappedMesh() != null) {
+            getMappedMesh().drawWireframe(gl);
+        } else {
+            levelRenderer(gl).drawWireframe(gl);
+        }
     }
     
     private void drawSilhouettes(GL gl)
@@ -371,32 +694,57 @@ public abstract class Shape
         	gl.glColorMask(true, true, true, true);
     	}    	
     	
-    	int numPoly = polygons.length;
-    	
-    	gl.glPolygonMode(GL.GL_BACK, GL.GL_LINE);
-    	gl.glCullFace(GL.GL_FRONT);
-    	gl.glEnable(GL.GL_CULL_FACE);
-    	
     	gl.glLineWidth(2.0f);
-    	for(int countPoly = 0; countPoly<numPoly; countPoly++){
-    		gl.glBegin(GL.GL_POLYGON);
-    		int numVertices = polygons[countPoly].size();
-    		for(int countVertices = 0; countVertices<numVertices; countVertices++){
-    			Point3d vertex = polygons[countPoly].getVertex(countVertices).getPoint();
-    			gl.glVertex3d(vertex.x, vertex.y, vertex.z);
-    		}
-    		gl.glEnd();
-    	}
+        if (cpuGeometry() && getMappedMesh() == null) {
+            // Only the edges between front and back facing polygons
+            // (found on the CPU, on the surface drawn)
+            polygonRenderer(gl).drawSilhouettes(gl);
+        } else {
+            // The vertex shader places the vertices (or the mesh is out
+            // of core): draw the outlines of the back faces instead
+            int numPoly = numPolygons();
+
+            gl.glPolygonMode(GL.GL_BACK, GL.GL_LINE);
+            gl.glCullFace(GL.GL_FRONT);
+            gl.glEnable(GL.GL_CULL_FACE);
+
+            for(int countPoly = 0; countPoly<numPoly; countPoly++){
+                gl.glBegin(GL.GL_POLYGON);
+                Polygon currentPoly = getPolygon(countPoly);
+                int numVertices = currentPoly.size();
+                for(int countVertices = 0; countVertices<numVertices; countVertices++){
+                    Point3d vertex = currentPoly.getVertex(countVertices).getPoint();
+                    gl.glVertex3d(vertex.x, vertex.y, vertex.z);
+                }
+                gl.glEnd();
+            }
+            gl.glDisable(GL.GL_CULL_FACE);
+        }
     	gl.glLineWidth(1.0f);
-    	gl.glDisable(GL.GL_CULL_FACE);
     }
     
+    // Outline the picked polygon
+    private void drawPicked(GL gl)
+    {
+        Polygon poly = getPolygon(picked);
+
+        gl.glLineWidth(3.0f);
+        gl.glBegin(GL.GL_LINE_LOOP);
+        for (int i = 0; i < poly.size(); i++) {
+            Point3d p = poly.getVertex(i).getPoint();
+            gl.glVertex3d(p.x, p.y, p.z);
+        }
+        gl.glEnd();
+        gl.glLineWidth(1.0f);
+    }
+
     private void drawNormals(GL gl)
     {
-    	for(int iCountVertex = 0; iCountVertex<vertices.length; iCountVertex++)
+    	for(int iCountVertex = 0; iCountVertex<numVertices(); iCountVertex++)
     	{
-    		Point3d startPt = vertices[iCountVertex].getPoint();
-    		Vector3d norm = vertices[iCountVertex].getNormal();
+    		Vertex currentVertex = getVertex(iCountVertex);
+    		Point3d startPt = currentVertex.getPoint();
+    		Vector3d norm = currentVertex.getNormal();
     		double endPtX = startPt.x + (norm.x * 0.15);
     		double endPtY = startPt.y + (norm.y * 0.15);
     		double endPtZ = startPt.z + (norm.z * 0.15);
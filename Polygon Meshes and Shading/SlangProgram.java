@@ -1,10 +1,21 @@
 /* abstract class SlangProgram
  * The framework for a GLSL program
  * 
+ * Programs are linked once for each set of shader sources: programs
+ * with the same sources (such as the illumination program of each shape)
+ * share the linked program, and its uniform variables.
+ *
+ * Program ids belong to a GL context: when a context is (re)created,
+ * contextCreated() forgets the linked programs, and each program is
+ * built again in the new context when next used.
  */
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GLException;
@@ -12,6 +23,24 @@ import javax.media.opengl.GLException;
 public abstract class SlangProgram
 {
     private static int programCount;
+
+    // Program in use (0 for the fixed pipeline), so that switching to it
+    // again is skipped
+    private static int currentProgram = 0;
+
+    // Programs linked so far, by a hash of their sources and the driver
+    // (see programKey())
+    private static HashMap<String, Linked> linked =
+        new HashMap<String, Linked>();
+
+    // Number of the current GL context (counted by contextCreated()),
+    // which the linked programs and the program in use belong to
+    private static int context = 0;
+
+    // Context whose driver and extensions were checked (and reported),
+    // and whether it supports GLSL
+    private static int checkedContext = -1;
+    private static boolean glslSupported;
     
     static
     {
@@ -24,6 +53,9 @@ public abstract class SlangProgram
     protected int number;
     /** Path to vertex shader file */
     protected String vShaderFile;
+    /** Path to a file of GLSL compiled ahead of the vertex shader (or null),
+     *  such as the surface of a UVShape */
+    protected String vShaderSnippet;
     /** Path to fragment shader file */
     protected String fShaderFile;
     /** OpenGL program object */
@@ -31,10 +63,15 @@ public abstract class SlangProgram
     /** The shape in this program */
     protected Shape shape;
 
+    /** Uniform variables of this program */
+    private ArrayList<Uniform> uniforms = new ArrayList<Uniform>();
+
     /** The shading program is ready to use */
     protected boolean ready;
     /** The shading program could never be ready since something goes wrong */
     protected boolean never_ready;
+    /** The GL context the program was built in (see contextCreated()) */
+    private int programContext = context;
     
     /**
      * @param name
@@ -58,6 +95,98 @@ public abstract class SlangProgram
         this.shape = shape;
     }
 
+    /**
+     * A uniform variable of this program (its state is in the linked
+     * program, which may be shared).
+     */
+    public static class Uniform
+    {
+        final String name;
+        UniformState state;
+
+        Uniform(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A uniform variable of a linked program: its location, looked up
+     * once, and the last value sent to it (uniforms keep their values in
+     * the program, so the same value isn't sent again).
+     */
+    private static class UniformState
+    {
+        int location;
+        float value;
+        boolean sent;
+    }
+
+    /**
+     * A linked program (0 if it failed to build), and its uniform
+     * variables.
+     */
+    private static class Linked
+    {
+        int program;
+        HashMap<String, UniformState> uniforms =
+            new HashMap<String, UniformState>();
+
+        UniformState uniform(GL gl, String name)
+        {
+            UniformState u = uniforms.get(name);
+            if (u == null) {
+                u = new UniformState();
+                u.location = gl.glGetUniformLocationARB(program, name);
+                uniforms.put(name, u);
+            }
+            return u;
+        }
+    }
+
+    /**
+     * Adds a uniform variable of this program (its location is looked up
+     * when the program is linked).
+     * @param name
+     *        the name of the variable in the shaders
+     */
+    public Uniform addUniform(String name)
+    {
+        Uniform u = new Uniform(name);
+        uniforms.add(u);
+        return u;
+    }
+
+    /**
+     * Sets a uniform variable of this program (which must be in use),
+     * if its value has changed.
+     * @param gl
+     * @param u
+     * @param value
+     */
+    public void setUniform(GL gl, Uniform u, float value)
+    {
+        UniformState s = u.state;
+        if (!s.sent || s.value != value) {
+            gl.glUniform1fARB(s.location, value);
+            s.value = value;
+            s.sent = true;
+        }
+    }
+    public void setUniform(GL gl, Uniform u, int value)
+    {
+        UniformState s = u.state;
+        if (!s.sent || s.value != value) {
+            gl.glUniform1iARB(s.location, value);
+            s.value = value;
+            s.sent = true;
+        }
+    }
+    public void setUniform(GL gl, Uniform u, boolean value)
+    {
+        setUniform(gl, u, value ? 1 : 0);
+    }
+
     // Keep track of list of all shape parameters/drawing options
     public DoubleParameter addParameter(DoubleParameter p)
     {
@@ -71,32 +200,73 @@ public abstract class SlangProgram
     }
 
     /**
+     * Checks that the GL context supports GLSL (throws a GLException if
+     * not).  The driver and the extensions are reported once for each
+     * context.
      * @param gl
      */
     public static void checkSystemExt(GL gl)
     {
-        // Print the graphics card information
-        System.out.println("Renderer:" + gl.glGetString(GL.GL_RENDERER));
-        System.out.println("Vendor:" + gl.glGetString(GL.GL_VENDOR));
-        System.out.println("Version:" + gl.glGetString(GL.GL_VERSION));
-
-        // Check support for ARB extension
-        if (!gl.isExtensionAvailable("GL_ARB_vertex_shader") && 
-            !gl.isExtensionAvailable("GL_ARB_fragment_shader") ) {
-            System.out.println("ARB_vertex_shader is not supported.");
-            System.out.println("ARB_fragment_shader is not supported.");
-            throw new GLException("GLSL not suppoted");
-        } else if (gl.isExtensionAvailable("GL_ARB_vertex_shader") &&
-                   gl.isExtensionAvailable("GL_ARB_fragment_shader") ) {
-            System.out.println("ARB_vertex_shader extension supported!");
-            System.out.println("ARB_fragment_shader extension supported!");
+        if (checkedContext != context) {
+            checkedContext = context;
+
+            // Print the graphics card information
+            System.out.println("Renderer:" + gl.glGetString(GL.GL_RENDERER));
+            System.out.println("Vendor:" + gl.glGetString(GL.GL_VENDOR));
+            System.out.println("Version:" + gl.glGetString(GL.GL_VERSION));
+
+            // Check support for ARB extension
+            glslSupported = true;
+            if (!gl.isExtensionAvailable("GL_ARB_vertex_shader") && 
+                !gl.isExtensionAvailable("GL_ARB_fragment_shader") ) {
+                System.out.println("ARB_vertex_shader is not supported.");
+                System.out.println("ARB_fragment_shader is not supported.");
+                glslSupported = false;
+            } else if (gl.isExtensionAvailable("GL_ARB_vertex_shader") &&
+                       gl.isExtensionAvailable("GL_ARB_fragment_shader") ) {
+                System.out.println("ARB_vertex_shader extension supported!");
+                System.out.println("ARB_fragment_shader extension " +
+                                   "supported!");
+            }
         }
+        if (!glslSupported)
+          throw new GLException("GLSL not suppoted");
     }
 
     public boolean Ready()
     {
+        checkContext();
         return ready;
     }
+
+    /**
+     * Forgets the programs linked in the previous GL context, and the
+     * program in use: call when a context is (re)created, before using
+     * programs in it.
+     */
+    public static void contextCreated()
+    {
+        context++;
+        linked.clear();
+        currentProgram = 0;
+    }
+
+    /**
+     * Drops the program if it was built in an earlier GL context (or
+     * failed there), so that it's built again in this one.
+     */
+    private void checkContext()
+    {
+        if (programContext != context) {
+            programContext = context;
+            program = 0;
+            ready = false;
+            never_ready = false;
+            for (Uniform u : uniforms) {
+                u.state = null;
+            }
+        }
+    }
     
     
     /**
@@ -107,15 +277,44 @@ public abstract class SlangProgram
     public int buildShader(GL gl, String shaderFile, int shaderType)
         throws GLException
     {
-        int shader = gl.glCreateShaderObjectARB(shaderType);
+        return buildShader(gl, shaderFile, shaderSource(null, shaderFile),
+                           shaderType);
+    }
 
-        // Read shader files.
-        String shaderSource = null;
+    /**
+     * Reads the source of a shader.
+     * @param snippetFile
+     *        file put ahead of the shader source (or null)
+     * @param shaderFile
+     */
+    private String shaderSource(String snippetFile, String shaderFile)
+        throws GLException
+    {
+        String file = shaderFile;
         try {
-            shaderSource = loadTextFile(shaderFile);
+            String shaderSource = loadTextFile(shaderFile);
+            if (snippetFile != null) {
+                file = snippetFile;
+                shaderSource = loadTextFile(snippetFile) + shaderSource;
+            }
+            return shaderSource;
         } catch(IOException e) {
-            throw new GLException("Couldn't load " + shaderFile);
+            throw new GLException("Couldn't load " + file);
         }
+    }
+
+    /**
+     * @param gl
+     * @param label
+     *        the file(s) the source came from
+     * @param shaderSource
+     * @param shaderType
+     */
+    private int buildShader(GL gl, String label, String shaderSource,
+                            int shaderType)
+        throws GLException
+    {
+        int shader = gl.glCreateShaderObjectARB(shaderType);
 
         // Read shaders.
         gl.glShaderSourceARB(shader, 1, new String[] {shaderSource},
@@ -128,20 +327,43 @@ public abstract class SlangProgram
         // Error check.
         gl.glGetObjectParameterivARB(shader, GL.GL_OBJECT_COMPILE_STATUS_ARB, 
                                      status, 0);
-        System.out.println("Compile: " + shaderFile + "...");
+        System.out.println("Compile: " + label + "...");
         System.out.println(getObjectLog(gl, shader));
         if (status[0] == GL.GL_FALSE) {
-            throw new GLException("Failed to compile " + shaderFile);
+            throw new GLException("Failed to compile " + label);
         }
 
         return shader;
     }
 
+    /**
+     * Key of a program in the linked programs: a hash of its sources
+     * and of the driver that compiled them.
+     * @param gl
+     * @param vSource
+     * @param fSource
+     */
+    private static String programKey(GL gl, String vSource, String fSource)
+        throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        String[] parts = {
+            gl.glGetString(GL.GL_RENDERER), gl.glGetString(GL.GL_VERSION),
+            vSource, fSource
+        };
+        for (String part : parts) {
+            md.update(String.valueOf(part).getBytes("UTF-8"));
+            md.update((byte)0);
+        }
+        return new BigInteger(1, md.digest()).toString(16);
+    }
+
     /**
      * @param gl
      */
     public final void init(GL gl)
     {
+        checkContext();
 	if (never_ready) {
 	    // Dont bother
 	    return;
@@ -150,35 +372,33 @@ public abstract class SlangProgram
 	try {
             checkSystemExt(gl);
 
-            int vShader, fShader;
-
-            // Create program and attach shader objects.
-            program = gl.glCreateProgramObjectARB();
-
+            String vSource = null, fSource = null;
             if (vShaderFile != null) {
-                vShader = buildShader(gl, vShaderFile, GL.GL_VERTEX_SHADER);
-                gl.glAttachObjectARB(program, vShader);
+                vSource = shaderSource(vShaderSnippet, vShaderFile);
             }
             if (fShaderFile != null) {
-                fShader = buildShader(gl, fShaderFile, GL.GL_FRAGMENT_SHADER);
-                gl.glAttachObjectARB(program, fShader);
+                fSource = shaderSource(null, fShaderFile);
             }
 
-            // Link.
+            // Use the program linked before from the same sources, if any
+            // (remembering a failure too, so it isn't tried again)
+            String key = programKey(gl, vSource, fSource);
+            Linked l = linked.get(key);
+            if (l == null) {
+                l = new Linked();
+                linked.put(key, l);
+                l.program = link(gl, vSource, fSource);
+            } else if (l.program == 0) {
+                throw new GLException("Failed to build " + name);
+            } else {
+                System.out.println("Link: " + name + " (already linked)");
+            }
+            program = l.program;
 
-            int[] status = new int[1];
-    
-            gl.glLinkProgramARB(program);
-            gl.glGetObjectParameterivARB(program, 
-                                         GL.GL_OBJECT_LINK_STATUS_ARB, 
-                                         status, 0);
-            System.out.println("Link: " + name + "...");
-            System.out.println(getObjectLog(gl, program));
-            if (status[0] == GL.GL_FALSE) {
-                throw new GLException("Failed to link " + name);
+            // The uniform variables of the linked program
+            for (Uniform u : uniforms) {
+                u.state = l.uniform(gl, u.name);
             }
-    
-            gl.glValidateProgramARB(program);
         } catch (Exception e) {
             System.out.println(e.getMessage() + 
                                ", program runs with fixed pipeline only");
@@ -190,6 +410,53 @@ public abstract class SlangProgram
         ready = true;
     }
 
+    /**
+     * Compiles the shaders and links them into a new program.
+     * @param gl
+     * @param vSource
+     *        vertex shader source (or null)
+     * @param fSource
+     *        fragment shader source (or null)
+     * @return the program
+     */
+    private int link(GL gl, String vSource, String fSource)
+        throws GLException
+    {
+        int vShader, fShader;
+
+        // Create program and attach shader objects.
+        int prog = gl.glCreateProgramObjectARB();
+
+        if (vSource != null) {
+            String label = (vShaderSnippet != null) ?
+                vShaderSnippet + " + " + vShaderFile : vShaderFile;
+            vShader = buildShader(gl, label, vSource, GL.GL_VERTEX_SHADER);
+            gl.glAttachObjectARB(prog, vShader);
+        }
+        if (fSource != null) {
+            fShader = buildShader(gl, fShaderFile, fSource,
+                                  GL.GL_FRAGMENT_SHADER);
+            gl.glAttachObjectARB(prog, fShader);
+        }
+
+        // Link.
+
+        int[] status = new int[1];
+
+        gl.glLinkProgramARB(prog);
+        gl.glGetObjectParameterivARB(prog, 
+                                     GL.GL_OBJECT_LINK_STATUS_ARB, 
+                                     status, 0);
+        System.out.println("Link: " + name + "...");
+        System.out.println(getObjectLog(gl, prog));
+        if (status[0] == GL.GL_FALSE) {
+            throw new GLException("Failed to link " + name);
+        }
+
+        gl.glValidateProgramARB(prog);
+        return prog;
+    }
+
     /**
      * Binds the uniform variables used by this program.
      * @param gl
@@ -210,6 +477,7 @@ public abstract class SlangProgram
      */
     public final void enable(GL gl, boolean enable)
     {
+        checkContext();
 	if (never_ready) {
 	    // on a machine that does not have shading program support
 	    // just return
@@ -220,15 +488,24 @@ public abstract class SlangProgram
 	    if (!Ready())
 		init(gl);
 	    if (Ready()) {
-		gl.glUseProgramObjectARB(program);
+		useProgram(gl, program);
 		bindUniform(gl);
 	    }
     	} else {
 	    if (Ready())
-		gl.glUseProgramObjectARB(0);
+		useProgram(gl, 0);
     	}
     }
 
+    // Switch to program p, unless it is already in use
+    private static void useProgram(GL gl, int p)
+    {
+        if (p != currentProgram) {
+            gl.glUseProgramObjectARB(p);
+            currentProgram = p;
+        }
+    }
+
     /**
      * This helper method reads the specified text file into a
      * <code>String</code>, where the lines in the file are separated by "\n"
@@ -4,7 +4,6 @@
  * Doug DeCarlo
  */
 
-import javax.media.opengl.GL;
 import javax.vecmath.*;
 
 public class Torus extends UVShape
@@ -18,47 +17,54 @@ public class Torus extends UVShape
               0, 2*Math.PI, 0, 2*Math.PI);
 	
         // Torus parameters: inner/outer radii
-        inRad = addParameter(new DoubleParameter("Inner Radius", 
-                                                 0.5, 0.05, 3, 2));
-        outRad = addParameter(new DoubleParameter("Outer Radius",
-                                                  1, 0.05, 3, 2));
+        inRad = addUniform(new DoubleParameter("Inner Radius", 
+                                               0.5, 0.05, 3, 2), "inRad");
+        outRad = addUniform(new DoubleParameter("Outer Radius",
+                                                1, 0.05, 3, 2), "outRad");
 
-        // Use my own vertex program
-        slProgram.vShaderFile = "torus.vp";
+        // Surface for the vertex program
+        setSurfaceShader("torus.glsl");
     }
-    
-    // Let the graphics processor know the halfSum and halfDif
-    protected void bindUniform(GL gl)
+
+    // Compute geometry of vertices in torus using inRad and outRad
+    public void evalPosition(double u, double v, Point3d p)
     {
-        float outRad = (float)this.outRad.value;
-        float inRad = (float)this.inRad.value;
+        evalTrigPosition(Math.cos(u), Math.sin(u), Math.cos(v), Math.sin(v),
+                         p);
+    }
 
-        int v = gl.glGetUniformLocationARB(slProgram.program, "outRad");
-        gl.glUniform1fARB(v, (float)outRad);
+    // Compute normal vector
+    public void evalNormal(double u, double v, Vector3d n)
+    {
+        evalTrigNormal(Math.cos(u), Math.sin(u), Math.cos(v), Math.sin(v), n);
+    }
 
-        v = gl.glGetUniformLocationARB(slProgram.program, "inRad");
-        gl.glUniform1fARB(v, (float)inRad);
+    // The torus only depends on sin/cos of u and v, so the grid can be
+    // evaluated from tables
+    protected boolean hasTrigEval()
+    {
+        return true;
     }
 
-    // Compute geometry of vertices in torus using inRad and outRad
-    public void evalPosition(double u, double v, Point3d p)
+    protected void evalTrigPosition(double cosu, double sinu,
+                                    double cosv, double sinv, Point3d p)
     {
         // ...   (placeholder)
     	double a = (outRad.value - inRad.value) / 2.0;
     	double c = (outRad.value + inRad.value) / 2.0;
-    	double xCoord = (c  + a * Math.cos(v)) * Math.cos(u);
-    	double yCoord = (c  + a * Math.cos(v)) * Math.sin(u);
-    	double zCoord = a * Math.sin(v);
+    	double xCoord = (c  + a * cosv) * cosu;
+    	double yCoord = (c  + a * cosv) * sinu;
+    	double zCoord = a * sinv;
         p.set(xCoord, yCoord, zCoord);
     }
 
-    // Compute normal vector
-    public void evalNormal(double u, double v, Vector3d n)
+    protected void evalTrigNormal(double cosu, double sinu,
+                                  double cosv, double sinv, Vector3d n)
     {
         // ...   (placeholder)
-    	double xCoord = Math.cos(u) * Math.cos(v);
-    	double yCoord = Math.sin(u) * Math.cos(v);
-    	double zCoord = Math.sin(v);
+    	double xCoord = cosu * cosv;
+    	double yCoord = sinu * cosv;
+    	double zCoord = sinv;
         n.set(xCoord, yCoord, zCoord);
     }
 }
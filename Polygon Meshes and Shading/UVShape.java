@@ -1,11 +1,27 @@
 import javax.vecmath.Point3d;
+import javax.vecmath.Tuple3d;
 import javax.vecmath.Vector3d;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.media.opengl.GL;
+
 /* class UVShape
  * Abstract class which is extended to build parameterized shapes such
  * as ellipsoid or torus
  *
- * A regular UV grid is created for all shapes
+ * A regular UV grid is created for all shapes, or with an adaptive
+ * tolerance (adaptiveTolerance > 0), an adaptive tessellation of it
+ * (UVTessellation): the grid vertices are only used where the surface
+ * strays from a coarser polygon by more than the tolerance (in the
+ * units of the shape).  It is redone when the shape parameters change.
+ *
+ * With GLSL, the grid is sent as (u,v) coordinates, and the vertex
+ * shader uvsurface.vp evaluates the surface from a snippet of GLSL
+ * given by the shape (setSurfaceShader()), with the parameters added
+ * by addUniform() as its uniforms; the (u,v) vertex buffers are then
+ * unchanged by the parameters.
  *
  * Doug DeCarlo
  */
@@ -22,6 +38,45 @@ public abstract class UVShape extends Shape
     // (like for a sphere) -- triangles will be produced in that case
     boolean uClosed;
 
+    // Surface geometry evaluated on the grid: vertex positions/normals
+    // and polygon normals, in flat arrays (indexed like vertices[] and
+    // polygons[]); evaluated when first needed after recompute().  It is
+    // kept in double (surface) or single precision (floatSurface), and
+    // the other one is null.
+    CompactMesh surface;
+    FloatMesh floatSurface;
+    private volatile boolean evaluated;
+
+    // Sines and cosines of the grid's u values (per row) and v values
+    // (per column), and of the uv-centers of the quads
+    private double[] cosU, sinU, cosV, sinV;
+    private double[] cosCu, sinCu, cosCv, sinCv;
+
+    // Use the tables for primitives that support it (see hasTrigEval())
+    public static boolean useTrigTables = true;
+
+    // Keep the surface in single precision (for half the memory)
+    public static boolean singlePrecision = false;
+
+    // Tolerance for adaptive tessellation (0 for the regular grid)
+    public static double adaptiveTolerance = 0;
+
+    // Adaptive tessellation of the grid and its tolerance (null for the
+    // regular grid), and whether it is up to date with the parameters
+    private UVTessellation tessellation;
+    private DoubleParameter tolerance;
+    private volatile boolean tessellated;
+
+    // Counts changes to the (u,v) vertices and polygons (by adaptive
+    // tessellation)
+    private int uvVersion;
+
+    // Parameters sent to the vertex shader, and their uniform variables
+    private ArrayList<DoubleParameter> uniformParams =
+        new ArrayList<DoubleParameter>();
+    private ArrayList<SlangProgram.Uniform> uniforms =
+        new ArrayList<SlangProgram.Uniform>();
+
     // Constructor: allocate space for vertex/polygons
     public UVShape(String name, int uSizeVal, int vSizeVal, boolean uClosedVal,
                    double uMinVal, double uMaxVal,
@@ -40,6 +95,21 @@ public abstract class UVShape extends Shape
         vMin = vMinVal;
         vMax = vMaxVal;
 
+        if (adaptiveTolerance > 0) {
+            // Tessellated when first needed (the shape parameters
+            // don't exist yet)
+            tolerance = addParameter(new DoubleParameter(
+                "Tolerance", adaptiveTolerance, 0.0001, 0.05, 2, "0.0000"));
+            tessellation = new UVTessellation(uSize, vSize, uClosed);
+            tessellated = false;
+            vertices = new Vertex[0];
+            polygons = new Polygon[0];
+            surface = buildSurface();
+            evaluated = false;
+            buildTrigTables();
+            return;
+        }
+
         // -- Allocate a UV grid
         // Create a uSize X vSize grid of vertices
     	vertices = new Vertex[uSize * vSize];
@@ -55,19 +125,40 @@ public abstract class UVShape extends Shape
                 polygons[i].computeNormal();
             }
         }
+
+        // Allocate flat arrays for the surface (evaluated later, since
+        // the shape parameters don't exist yet)
+        surface = buildSurface();
+        evaluated = false;
+        if (singlePrecision) {
+            floatSurface = new FloatMesh(surface);
+            surface = null;
+            System.out.printf("Stored %s in single precision: %.1f MB of " +
+                              "positions and normals instead of %.1f MB%n",
+                              name, floatSurface.floatBytes() / 1048576.0,
+                              floatSurface.doubleBytes() / 1048576.0);
+        }
+
+        buildTrigTables();
     }
 
     // Vertex specification in a uv-parameterized shape
     private class VertexUV implements Vertex
     {
-        // u,v coordinates of vertex: geometry is computed on the fly
+        // u,v coordinates of vertex: geometry is looked up in surface
         private double u, v;
+        // Position of vertex in vertices[], and in the grid
+        private int index;
+        private int row, col;
 
-        // Constructor for (u,v) vertex
-        private VertexUV(double uVal, double vVal)
+        // Constructor for (u,v) vertex at grid position (r,c)
+        private VertexUV(double uVal, double vVal, int i, int r, int c)
         {
             u = uVal;
             v = vVal;
+            index = i;
+            row = r;
+            col = c;
         }
 
         // Accessors for uv coordinates
@@ -77,7 +168,7 @@ public abstract class UVShape extends Shape
         // --------------------------------------------------------------------
 
         // Accessor for vertex location
-        //  - normally, computes equation on the fly from uv
+        //  - normally, looks up the equation evaluated at uv
         //  - for GLSL, just returns (u,v,0)
         public Point3d getPoint()
         {
@@ -87,15 +178,13 @@ public abstract class UVShape extends Shape
                 // using this)
                 return new Point3d(u, v, 0);
             } else {
-                // Compute surface location on the fly
-                Point3d p = new Point3d();
-                evalPosition(u, v, p);
-                return p;
+                // Surface location
+                return surfacePoint(index);
             }
         }
 
         // Accessor for vertex normal
-        //  - normally, computes equation on the fly from uv
+        //  - normally, looks up the equation evaluated at uv
         //  - for GLSL, just returns (u,v,0)
         public Vector3d getNormal()
         {
@@ -105,10 +194,8 @@ public abstract class UVShape extends Shape
                 // using this)
                 return new Vector3d(u, v, 0);
             } else {
-                // Compute normal on the fly
-                Vector3d n = new Vector3d();
-                evalNormal(u, v, n);
-                return n;
+                // Surface normal
+                return surfaceNormal(index);
             }
         }
     }
@@ -118,18 +205,21 @@ public abstract class UVShape extends Shape
     {
         // uv coordinates of center of polygon (for polygon normal)
         private double normalu, normalv;
+        // Position of polygon in polygons[]
+        private int index;
 
         // Constructor when specifying polygon given a list of vertices
-        private PolygonUV(Vertex[] polyVert)
+        private PolygonUV(Vertex[] polyVert, int i)
         {
             super(polyVert);
             normalu = normalv = 0;
+            index = i;
         }
 
         // --------------------------------------------------------------------
 
         // Accessor for polygon normal
-        //  - normally, computes equation on the fly from uv
+        //  - normally, looks up the equation evaluated at uv
         //  - for GLSL, just returns (u,v,0) of the uv-center of polygon
         public Vector3d getNormal()
         { 
@@ -139,10 +229,8 @@ public abstract class UVShape extends Shape
                 // the normal using this)
                 return new Vector3d(normalu, normalv, 0);
             } else {
-                // Compute normal on the fly
-                Vector3d n = new Vector3d();
-                evalNormal(normalu, normalv, n);
-                return n;
+                // Surface normal at uv-center
+                return surfacePolygonNormal(index);
             }
         }
 
@@ -168,9 +256,476 @@ public abstract class UVShape extends Shape
     public abstract void evalPosition(double u, double v, Point3d point);
     public abstract void evalNormal(double u, double v, Vector3d normal);
 
+    // Table-driven evaluation, for primitives whose geometry only depends
+    // on the sines and cosines of u and v: override these and return true
+    // from hasTrigEval(), and the grid is evaluated with O(uSize+vSize)
+    // calls to sin/cos instead of O(uSize*vSize)
+    protected boolean hasTrigEval()
+    {
+        return false;
+    }
+    protected void evalTrigPosition(double cosu, double sinu,
+                                    double cosv, double sinv, Point3d point)
+    {
+    }
+    protected void evalTrigNormal(double cosu, double sinu,
+                                  double cosv, double sinv, Vector3d normal)
+    {
+    }
+
+    // ---------------------------------------------------------------
+    // GLSL surface
+
+    // Evaluate the surface with GLSL from snippetFile, which defines
+    // surfacePosition(u,v) and surfaceNormal(u,v) for uvsurface.vp
+    protected void setSurfaceShader(String snippetFile)
+    {
+        slProgram.vShaderFile = "uvsurface.vp";
+        slProgram.vShaderSnippet = snippetFile;
+    }
+
+    // Add a shape parameter that is also a uniform of the surface
+    // shader (with the given name)
+    protected DoubleParameter addUniform(DoubleParameter p, String uniform)
+    {
+        uniformParams.add(p);
+        uniforms.add(slProgram.addUniform(uniform));
+        return addParameter(p);
+    }
+
+    // Let the graphics processor know the parameters (that changed)
+    protected void bindUniform(GL gl)
+    {
+        for (int i = 0; i < uniformParams.size(); i++) {
+            slProgram.setUniform(gl, uniforms.get(i),
+                                 (float)uniformParams.get(i).value);
+        }
+    }
+
+    // With GLSL, the vertices are (u,v) coordinates, which only change
+    // with the tessellation
+    public int getVertexDataVersion()
+    {
+        if (cpuGeometry())
+          return super.getVertexDataVersion();
+        ensureTessellated();
+        return uvVersion;
+    }
+
+    // ---------------------------------------------------------------
+    // Evaluated surface
+
+    // The shape parameters have changed: evaluate again when next needed
+    // (and tessellate again, when adaptive)
+    public void recompute()
+    {
+        tessellated = false;
+        evaluated = false;
+        super.recompute();
+    }
+
+    // Accessors for the mesh (tessellating it first if needed)
+    public int numVertices()
+    {
+        ensureTessellated();
+        return super.numVertices();
+    }
+    public Vertex getVertex(int i)
+    {
+        ensureTessellated();
+        return super.getVertex(i);
+    }
+    public int numPolygons()
+    {
+        ensureTessellated();
+        return super.numPolygons();
+    }
+    public Polygon getPolygon(int i)
+    {
+        ensureTessellated();
+        return super.getPolygon(i);
+    }
+
+    // The evaluated surface (even when GLSL draws it)
+    public CompactMesh getGeometry()
+    {
+        return evaluate();
+    }
+
+    // With GLSL, the vertex shader evaluates the surface
+    public boolean cpuGeometry()
+    {
+        return !useGLSL();
+    }
+
+    // The evaluated surface (with GLSL, the vertices are sent as u,v
+    // coordinates instead, so there is no such mesh)
+    public CompactMesh getCompactMesh()
+    {
+        return (useGLSL() || floatSurface != null) ? null : evaluate();
+    }
+    public FloatMesh getFloatMesh()
+    {
+        if (useGLSL() || floatSurface == null)
+          return null;
+        ensureEvaluated();
+        return floatSurface;
+    }
+
+    // The evaluated surface (its vertices and polygons are those of the
+    // grid)
+    public MeshStorage getStorage()
+    {
+        ensureEvaluated();
+        return (floatSurface != null) ? floatSurface : surface;
+    }
+
+    // One strip per row of quads (at the poles, the first triangle of
+    // each strip is degenerate, and the second stands for the pole
+    // triangle: the vertices at a pole are all in the same place); an
+    // adaptive tessellation has its strips made from the polygons
+    public MeshStrips getStrips()
+    {
+        if (tessellation != null)
+          return null;
+        return MeshStrips.grid(uSize, vSize);
+    }
+
+    // Surface geometry, evaluating it first if needed (a copy, when it
+    // is kept in single precision)
+    public CompactMesh evaluate()
+    {
+        ensureEvaluated();
+        return (floatSurface != null) ? floatSurface.toCompact() : surface;
+    }
+
+    // Evaluate the surface, if not done since the last recompute()
+    private void ensureEvaluated()
+    {
+        ensureTessellated();
+        if (!evaluated) {
+            synchronized (this) {
+                if (!evaluated) {
+                    evaluateSurface();
+                    evaluated = true;
+                }
+            }
+        }
+    }
+
+    // Position and normal of vertex i, and normal of polygon i, of the
+    // evaluated surface (read straight from its arrays)
+    private Point3d surfacePoint(int i)
+    {
+        ensureEvaluated();
+        Point3d p = new Point3d();
+        if (floatSurface != null) {
+            get(floatSurface.points, i, p);
+        } else {
+            get(surface.points, i, p);
+        }
+        return p;
+    }
+    private Vector3d surfaceNormal(int i)
+    {
+        ensureEvaluated();
+        Vector3d n = new Vector3d();
+        if (floatSurface != null) {
+            get(floatSurface.normals, i, n);
+        } else {
+            get(surface.normals, i, n);
+        }
+        return n;
+    }
+    private Vector3d surfacePolygonNormal(int i)
+    {
+        ensureEvaluated();
+        Vector3d n = new Vector3d();
+        if (floatSurface != null) {
+            get(floatSurface.polyNormals, i, n);
+        } else {
+            get(surface.polyNormals, i, n);
+        }
+        return n;
+    }
+
+    // Evaluate positions/normals at all vertices, and normals at the
+    // uv-centers of all polygons
+    private void evaluateSurface()
+    {
+        Point3d p = new Point3d();
+        Vector3d n = new Vector3d();
+        boolean tables = useTrigTables && hasTrigEval();
+
+        for (int i = 0; i < vertices.length; i++) {
+            VertexUV vert = (VertexUV)vertices[i];
+
+            if (tables) {
+                // Grid position (row, column)
+                int r = vert.row, c = vert.col;
+                evalTrigPosition(cosU[r], sinU[r], cosV[c], sinV[c], p);
+                evalTrigNormal(cosU[r], sinU[r], cosV[c], sinV[c], n);
+            } else {
+                evalPosition(vert.u, vert.v, p);
+                evalNormal(vert.u, vert.v, n);
+            }
+
+            if (floatSurface != null) {
+                put(floatSurface.points, i, p);
+                put(floatSurface.normals, i, n);
+            } else {
+                put(surface.points, i, p);
+                put(surface.normals, i, n);
+            }
+        }
+
+        for (int i = 0; i < polygons.length; i++) {
+            PolygonUV poly = (PolygonUV)polygons[i];
+
+            if (tables && tessellation == null && poly.size() == 4) {
+                // Quads have uv-centers on a grid too
+                int r = i / (vSize-1), c = i % (vSize-1);
+                evalTrigNormal(cosCu[r], sinCu[r], cosCv[c], sinCv[c], n);
+            } else {
+                // (triangles at the poles have their own uv-centers)
+                evalNormal(poly.normalu, poly.normalv, n);
+            }
+
+            if (floatSurface != null) {
+                put(floatSurface.polyNormals, i, n);
+            } else {
+                put(surface.polyNormals, i, n);
+            }
+        }
+    }
+
+    // Store t as the i-th 3-vector of a
+    private static void put(double[] a, int i, Tuple3d t)
+    {
+        a[3*i] = t.x;
+        a[3*i+1] = t.y;
+        a[3*i+2] = t.z;
+    }
+    private static void put(float[] a, int i, Tuple3d t)
+    {
+        a[3*i] = (float)t.x;
+        a[3*i+1] = (float)t.y;
+        a[3*i+2] = (float)t.z;
+    }
+
+    // Read the i-th 3-vector of a into t
+    private static void get(double[] a, int i, Tuple3d t)
+    {
+        t.set(a[3*i], a[3*i+1], a[3*i+2]);
+    }
+    private static void get(float[] a, int i, Tuple3d t)
+    {
+        t.set(a[3*i], a[3*i+1], a[3*i+2]);
+    }
+
+    // Sines and cosines for the grid: u per row and v per column, and
+    // the same for the uv-centers of the quads (the mean of the four
+    // uv's of quad (i,j) only depends on i for u, and on j for v)
+    private void buildTrigTables()
+    {
+        cosU = new double[uSize];
+        sinU = new double[uSize];
+        for (int i = 0; i < uSize; i++) {
+            double u = gridU(i);
+            cosU[i] = Math.cos(u);
+            sinU[i] = Math.sin(u);
+        }
+
+        cosV = new double[vSize];
+        sinV = new double[vSize];
+        for (int j = 0; j < vSize; j++) {
+            double v = gridV(j);
+            cosV[j] = Math.cos(v);
+            sinV[j] = Math.sin(v);
+        }
+
+        // (adaptive polygons aren't on a grid)
+        if (tessellation != null)
+          return;
+
+        // A column of quads to take the u-centers from
+        int quadColumn = (uClosed && vSize > 3) ? 1 : 0;
+
+        cosCu = new double[uSize-1];
+        sinCu = new double[uSize-1];
+        for (int i = 0; i < uSize-1; i++) {
+            PolygonUV quad = (PolygonUV)polygons[i * (vSize-1) + quadColumn];
+            double u = quad.normalu;
+            cosCu[i] = Math.cos(u);
+            sinCu[i] = Math.sin(u);
+        }
+
+        cosCv = new double[vSize-1];
+        sinCv = new double[vSize-1];
+        for (int j = 0; j < vSize-1; j++) {
+            double v = ((PolygonUV)polygons[j]).normalv;
+            cosCv[j] = Math.cos(v);
+            sinCv[j] = Math.sin(v);
+        }
+    }
+
+    // Flat arrays for the surface, with polygons indexing vertices[]
+    private CompactMesh buildSurface()
+    {
+        int[] offset = new int[polygons.length + 1];
+        for (int i = 0; i < polygons.length; i++) {
+            offset[i+1] = offset[i] + polygons[i].size();
+        }
+
+        int[] index = new int[offset[polygons.length]];
+        for (int i = 0; i < polygons.length; i++) {
+            for (int j = 0; j < polygons[i].size(); j++) {
+                index[offset[i] + j] =
+                    ((VertexUV)polygons[i].getVertex(j)).index;
+            }
+        }
+
+        return new CompactMesh(vertices.length,
+                               new double[3 * vertices.length],
+                               polygons.length, offset, index);
+    }
+
+    // ---------------------------------------------------------------
+    // Adaptive tessellation
+
+    // Tessellate again, if not done since the last recompute()
+    private void ensureTessellated()
+    {
+        if (tessellation != null && !tessellated) {
+            synchronized (this) {
+                if (!tessellated) {
+                    tessellate();
+                    tessellated = true;
+                }
+            }
+        }
+    }
+
+    // Bring the tessellation to the tolerance for the current parameters;
+    // the vertices and polygons are only made again if it has changed
+    // (which keeps the edges and strips made from them)
+    private void tessellate()
+    {
+        long start = System.nanoTime();
+        Point3d a = new Point3d(), b = new Point3d();
+
+        // Seams: sides of the grid that are the same points as the
+        // opposite side
+        boolean uWraps = true, vWraps = true;
+        for (int k = 1; k < 4; k++) {
+            gridPoint(0, k * (vSize-1) / 4, a);
+            gridPoint(uSize-1, k * (vSize-1) / 4, b);
+            uWraps &= a.distance(b) < 1e-9;
+            gridPoint(k * (uSize-1) / 4, 0, a);
+            gridPoint(k * (uSize-1) / 4, vSize-1, b);
+            vWraps &= a.distance(b) < 1e-9;
+        }
+        tessellation.setWraps(uWraps, vWraps && !uClosed);
+
+        if (!tessellation.update(tolerance.value, new ChordError()))
+          return;
+
+        // Vertices and polygons of the new tessellation
+        UVTessellation t = tessellation;
+        Vertex[] verts = new Vertex[t.numVertices];
+        for (int k = 0; k < t.numVertices; k++) {
+            int i = t.gridVertex[k] / vSize, j = t.gridVertex[k] % vSize;
+            verts[k] = new VertexUV(gridU(i), gridV(j), k, i, j);
+        }
+        Polygon[] polys = new Polygon[t.numPolygons];
+        for (int p = 0; p < t.numPolygons; p++) {
+            Vertex[] pv = new Vertex[t.offset[p+1] - t.offset[p]];
+            for (int k = 0; k < pv.length; k++) {
+                pv[k] = verts[t.index[t.offset[p] + k]];
+            }
+            polys[p] = new PolygonUV(pv, p);
+            polys[p].computeNormal();
+        }
+        vertices = verts;
+        polygons = polys;
+        uvVersion++;
+
+        surface = buildSurface();
+        floatSurface = null;
+        if (singlePrecision) {
+            floatSurface = new FloatMesh(surface);
+            surface = null;
+        }
+
+        System.out.printf("Tessellated %s to %.4f: %d polygons (%.1f%% " +
+                          "of the %dx%d grid), leaves by depth %s " +
+                          "(%.0f ms)%n", name, tolerance.value,
+                          t.numPolygons,
+                          100.0 * t.numPolygons / ((uSize-1) * (vSize-1)),
+                          uSize, vSize,
+                          Arrays.toString(t.leavesByDepth()),
+                          (System.nanoTime() - start) / 1e6);
+    }
+
+    // Error of a cell: the largest distance from the surface to the
+    // bilinear patch through the cell corners, at the middle of the
+    // cell and of its sides
+    private class ChordError implements UVTessellation.ErrorMeasure
+    {
+        private Point3d[] c = { new Point3d(), new Point3d(),
+                                new Point3d(), new Point3d() };
+        private Point3d p = new Point3d(), q = new Point3d();
+
+        public double error(int i0, int j0, int i1, int j1)
+        {
+            gridPoint(i0, j0, c[0]);
+            gridPoint(i1, j0, c[1]);
+            gridPoint(i1, j1, c[2]);
+            gridPoint(i0, j1, c[3]);
+
+            int im = (i0 + i1) / 2, jm = (j0 + j1) / 2;
+            int[] is = { im, im, i0, i1, im };
+            int[] js = { j0, j1, jm, jm, jm };
+            double worst = 0;
+            for (int k = 0; k < 5; k++) {
+                double s = (double)(is[k] - i0) / (i1 - i0);
+                double t = (double)(js[k] - j0) / (j1 - j0);
+                q.x = (1-s)*(1-t)*c[0].x + s*(1-t)*c[1].x +
+                    s*t*c[2].x + (1-s)*t*c[3].x;
+                q.y = (1-s)*(1-t)*c[0].y + s*(1-t)*c[1].y +
+                    s*t*c[2].y + (1-s)*t*c[3].y;
+                q.z = (1-s)*(1-t)*c[0].z + s*(1-t)*c[1].z +
+                    s*t*c[2].z + (1-s)*t*c[3].z;
+                gridPoint(is[k], js[k], p);
+                worst = Math.max(worst, p.distance(q));
+            }
+            return worst;
+        }
+    }
+
+    // Surface position at grid vertex (i,j)
+    private void gridPoint(int i, int j, Point3d p)
+    {
+        if (useTrigTables && hasTrigEval()) {
+            evalTrigPosition(cosU[i], sinU[i], cosV[j], sinV[j], p);
+        } else {
+            evalPosition(gridU(i), gridV(j), p);
+        }
+    }
+
     // ---------------------------------------------------------------
     // Methods for building the uv grid
 
+    // u and v of grid row i and column j
+    double gridU(int i)
+    {
+        return uMin + (uMax - uMin) * i / (uSize - 1);
+    }
+    double gridV(int j)
+    {
+        return vMin + (vMax - vMin) * j / (vSize - 1);
+    }
+
     // Methods for addressing individual vertices in the uv-grid by
     // indexed coordinate; this assumes the mesh was allocated as above
     // in the constructor
@@ -202,11 +757,12 @@ public abstract class UVShape extends Shape
     	// Build vertices
     	for (int i = 0; i < uSize; i++) {
     	    for (int j = 0; j < vSize; j++) {
-                double u = uMin + (uMax - uMin) * i / (uSize - 1);
-                double v = vMin + (vMax - vMin) * j / (vSize - 1);
+                double u = gridU(i);
+                double v = gridV(j);
 
                 // Add new vertex
-                setUVGridVertex(i, j, new VertexUV(u, v));
+                setUVGridVertex(i, j, new VertexUV(u, v, i * vSize + j,
+                                                   i, j));
     	    }
     	}
 
@@ -226,7 +782,7 @@ public abstract class UVShape extends Shape
                   verts[v++] = getUVGridVertex(i+1,j+1);
     		verts[v++] = getUVGridVertex(i,j+1);
     
-    		addPolygon(new PolygonUV(verts));
+    		addPolygon(new PolygonUV(verts, i * (vSize-1) + j));
     	    }
     	}
     }
@@ -0,0 +1,423 @@
+/* class UVTessellation
+ * Adaptive tessellation of a UV grid, as a restricted quadtree
+ *
+ * The cells of the quadtree are ranges of grid vertices [i0,i1]x[j0,j1]
+ * of a uSize x vSize grid (like UVShape's), split in half along each
+ * side longer than one grid step.  A cell is split while the surface
+ * strays from it by more than a tolerance (given by an ErrorMeasure),
+ * and neighboring leaves are kept within one level of each other (at
+ * most one extra vertex on each side of a leaf).
+ *
+ * The polygons are the leaves, each with the vertices of its finer
+ * neighbors along its sides, so there are no T-junctions (no cracks
+ * between levels).  Only the grid vertices used are numbered, in the
+ * order the polygons use them.  With uClosed, the rows j=0 and
+ * j=vSize-1 are poles (each collapses to a point), and runs of pole
+ * vertices in a polygon are kept only once.  Seams where the grid wraps
+ * around (the first and last rows or columns are the same points) get
+ * the vertices of both sides.
+ *
+ * The tree is kept between updates: an update merges the leaves that
+ * are now within the tolerance and splits those that aren't, starting
+ * from the current leaves, so a small change in the surface only
+ * changes the tree where it crosses the tolerance.
+ */
+
+import java.util.*;
+
+public class UVTessellation
+{
+    // Error of the surface over the cell [i0,i1]x[j0,j1] of the grid
+    public interface ErrorMeasure
+    {
+        public abstract double error(int i0, int j0, int i1, int j1);
+    }
+
+    // Grid size, and its poles and seams
+    private int uSize, vSize;
+    private boolean poles;
+    private boolean uWraps, vWraps;
+
+    // Quadtree nodes: cell, depth, parent, and children (first, count;
+    // 0 children for a leaf); the children of a node are consecutive,
+    // and blocks of children that were merged away are listed by size
+    // (2 or 4), to be used again
+    private int[] ci0, cj0, ci1, cj1, depth, parent, first, count;
+    private int numNodes;
+    private int[][] free;
+    private int[] numFree;
+
+    // Grid vertices that are corners of leaves
+    private boolean[] corner;
+
+    // Result of the last update: grid vertex (i*vSize+j) of each vertex
+    // used, and the polygons
+    int numVertices;
+    int[] gridVertex;
+    int numPolygons;
+    int[] offset;
+    int[] index;
+
+    // Cells are always split this many times (so that features between
+    // the samples of a large cell aren't missed)
+    static final int MIN_DEPTH = 3;
+
+    // Constructor: a single cell over the whole grid
+    public UVTessellation(int uSizeVal, int vSizeVal, boolean uClosed)
+    {
+        uSize = uSizeVal;
+        vSize = vSizeVal;
+        poles = uClosed;
+
+        int n = 64;
+        ci0 = new int[n];
+        cj0 = new int[n];
+        ci1 = new int[n];
+        cj1 = new int[n];
+        depth = new int[n];
+        parent = new int[n];
+        first = new int[n];
+        count = new int[n];
+        free = new int[5][16];
+        numFree = new int[5];
+        numNodes = 0;
+
+        setNode(allocate(1), 0, 0, uSize-1, vSize-1, 0, -1);
+        corner = new boolean[uSize * vSize];
+    }
+
+    // Set which sides of the grid are the same points as the opposite
+    // side
+    public void setWraps(boolean u, boolean v)
+    {
+        uWraps = u;
+        vWraps = v;
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Allocate a block of size consecutive nodes; returns the first
+    private int allocate(int size)
+    {
+        if (numFree[size] > 0)
+          return free[size][--numFree[size]];
+
+        if (numNodes + size > ci0.length) {
+            int n = 2 * (numNodes + size);
+            ci0 = Arrays.copyOf(ci0, n);
+            cj0 = Arrays.copyOf(cj0, n);
+            ci1 = Arrays.copyOf(ci1, n);
+            cj1 = Arrays.copyOf(cj1, n);
+            depth = Arrays.copyOf(depth, n);
+            parent = Arrays.copyOf(parent, n);
+            first = Arrays.copyOf(first, n);
+            count = Arrays.copyOf(count, n);
+        }
+        numNodes += size;
+        return numNodes - size;
+    }
+
+    // Set node n to a leaf for a cell
+    private void setNode(int n, int i0, int j0, int i1, int j1,
+                         int d, int p)
+    {
+        ci0[n] = i0;
+        cj0[n] = j0;
+        ci1[n] = i1;
+        cj1[n] = j1;
+        depth[n] = d;
+        parent[n] = p;
+        first[n] = -1;
+        count[n] = 0;
+    }
+
+    // Can node n be split (is it more than one grid step on a side)?
+    private boolean canSplit(int n)
+    {
+        return ci1[n] - ci0[n] > 1 || cj1[n] - cj0[n] > 1;
+    }
+
+    // Split leaf n in half along each side longer than one step (the
+    // children are allocated together)
+    private void split(int n)
+    {
+        int i0 = ci0[n], j0 = cj0[n], i1 = ci1[n], j1 = cj1[n];
+        int[] us = (i1 - i0 > 1) ? new int[] { i0, (i0+i1)/2, i1 } :
+            new int[] { i0, i1 };
+        int[] vs = (j1 - j0 > 1) ? new int[] { j0, (j0+j1)/2, j1 } :
+            new int[] { j0, j1 };
+
+        int size = (us.length - 1) * (vs.length - 1);
+        int c = allocate(size);
+        int k = c;
+        for (int a = 0; a + 1 < us.length; a++) {
+            for (int b = 0; b + 1 < vs.length; b++) {
+                setNode(k++, us[a], vs[b], us[a+1], vs[b+1],
+                        depth[n] + 1, n);
+            }
+        }
+        first[n] = c;
+        count[n] = size;
+    }
+
+    // Make node n a leaf again (freeing its children, which must be
+    // leaves)
+    private void merge(int n)
+    {
+        int size = count[n];
+        if (numFree[size] == free[size].length)
+          free[size] = Arrays.copyOf(free[size], 2 * numFree[size]);
+        free[size][numFree[size]++] = first[n];
+        first[n] = -1;
+        count[n] = 0;
+    }
+
+    private boolean isLeaf(int n)
+    {
+        return count[n] == 0;
+    }
+
+    // Does node n only have leaves as children?
+    private boolean hasLeafChildren(int n)
+    {
+        if (isLeaf(n))
+          return false;
+        for (int k = first[n]; k < first[n] + count[n]; k++) {
+            if (!isLeaf(k))
+              return false;
+        }
+        return true;
+    }
+
+    // Leaves (or parents of leaves only) in depth-first order
+    private int[] collect(boolean parents)
+    {
+        int[] res = new int[64];
+        int n = 0;
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int k = stack[--top];
+            if (parents ? hasLeafChildren(k) : isLeaf(k)) {
+                if (n == res.length)
+                  res = Arrays.copyOf(res, 2 * n);
+                res[n++] = k;
+            }
+            // Children in reverse, so they come out in order
+            for (int c = first[k] + count[k] - 1; c >= first[k]; c--) {
+                if (top == stack.length)
+                  stack = Arrays.copyOf(stack, 2 * top);
+                stack[top++] = c;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    // ---------------------------------------------------------------------
+
+    // Bring the tree to the tolerance tol for the surface measured by
+    // err, and make the polygons; returns false if they are the same as
+    // before (the arrays are then kept)
+    public boolean update(double tol, ErrorMeasure err)
+    {
+        // Merge the leaves of parents that are now within tolerance,
+        // working upwards
+        int[] stack = collect(true);
+        int top = stack.length;
+        while (top > 0) {
+            int n = stack[--top];
+            if (depth[n] < MIN_DEPTH || !hasLeafChildren(n) ||
+                err.error(ci0[n], cj0[n], ci1[n], cj1[n]) > tol)
+              continue;
+            merge(n);
+            if (parent[n] >= 0 && hasLeafChildren(parent[n])) {
+                if (top == stack.length)
+                  stack = Arrays.copyOf(stack, 2 * top);
+                stack[top++] = parent[n];
+            }
+        }
+
+        // Split the leaves that aren't, working downwards
+        stack = collect(false);
+        top = stack.length;
+        while (top > 0) {
+            int n = stack[--top];
+            if (!canSplit(n) || (depth[n] >= MIN_DEPTH &&
+                                 err.error(ci0[n], cj0[n],
+                                           ci1[n], cj1[n]) <= tol))
+              continue;
+            split(n);
+            for (int c = first[n]; c < first[n] + count[n]; c++) {
+                if (top == stack.length)
+                  stack = Arrays.copyOf(stack, 2 * top);
+                stack[top++] = c;
+            }
+        }
+
+        balance();
+        return build();
+    }
+
+    // Split leaves until no side of a leaf has more than one corner of
+    // its neighbors on it
+    private void balance()
+    {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] leaves = collect(false);
+            markCorners(leaves);
+            for (int n : leaves) {
+                if (canSplit(n) && maxOnSide(n) > 1) {
+                    split(n);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // Mark the corners of the leaves
+    private void markCorners(int[] leaves)
+    {
+        Arrays.fill(corner, false);
+        for (int n : leaves) {
+            corner[ci0[n] * vSize + cj0[n]] = true;
+            corner[ci1[n] * vSize + cj0[n]] = true;
+            corner[ci1[n] * vSize + cj1[n]] = true;
+            corner[ci0[n] * vSize + cj1[n]] = true;
+        }
+    }
+
+    // Most corners strictly inside a side of leaf n
+    private int maxOnSide(int n)
+    {
+        int i0 = ci0[n], j0 = cj0[n], i1 = ci1[n], j1 = cj1[n];
+        int bottom = 0, top = 0, left = 0, right = 0;
+        for (int i = i0 + 1; i < i1; i++) {
+            if (corner[i * vSize + j0]) bottom++;
+            if (corner[i * vSize + j1]) top++;
+        }
+        for (int j = j0 + 1; j < j1; j++) {
+            if (corner[i0 * vSize + j]) left++;
+            if (corner[i1 * vSize + j]) right++;
+        }
+        return Math.max(Math.max(bottom, top), Math.max(left, right));
+    }
+
+    // Is grid vertex (i,j) a corner of a leaf, here or across a seam?
+    private boolean used(int i, int j)
+    {
+        if (corner[i * vSize + j])
+          return true;
+        if (uWraps && (i == 0 || i == uSize-1) &&
+            corner[(uSize-1 - i) * vSize + j])
+          return true;
+        if (vWraps && (j == 0 || j == vSize-1) &&
+            corner[i * vSize + (vSize-1 - j)])
+          return true;
+        return false;
+    }
+
+    // Is grid vertex (i,j) at a pole?
+    private boolean atPole(int j)
+    {
+        return poles && (j == 0 || j == vSize-1);
+    }
+
+    // Make the polygons of the leaves (going around each one like the
+    // quads of the uniform grid: (i0,j0), (i1,j0), (i1,j1), (i0,j1));
+    // returns false if they are the same as the last ones
+    private boolean build()
+    {
+        int[] leaves = collect(false);
+        markCorners(leaves);
+
+        int[] id = new int[uSize * vSize];
+        Arrays.fill(id, -1);
+        int[] verts = new int[uSize * vSize];
+        int nv = 0;
+
+        int[] off = new int[leaves.length + 1];
+        int[] idx = new int[8 * leaves.length];
+        int[] poly = new int[4 * (uSize + vSize)];
+        int np = 0, n = 0;
+
+        for (int leaf : leaves) {
+            int i0 = ci0[leaf], j0 = cj0[leaf];
+            int i1 = ci1[leaf], j1 = cj1[leaf];
+
+            // Grid vertices around the leaf
+            int size = 0;
+            for (int i = i0; i < i1; i++) {
+                if (i == i0 || used(i, j0))
+                  poly[size++] = i * vSize + j0;
+            }
+            for (int j = j0; j < j1; j++) {
+                if (j == j0 || used(i1, j))
+                  poly[size++] = i1 * vSize + j;
+            }
+            for (int i = i1; i > i0; i--) {
+                if (i == i1 || used(i, j1))
+                  poly[size++] = i * vSize + j1;
+            }
+            for (int j = j1; j > j0; j--) {
+                if (j == j1 || used(i0, j))
+                  poly[size++] = i0 * vSize + j;
+            }
+
+            // Keep one vertex of each run at a pole
+            int kept = 0;
+            for (int k = 0; k < size; k++) {
+                int g = poly[k];
+                if (kept > 0 && atPole(g % vSize) &&
+                    poly[kept-1] % vSize == g % vSize)
+                  continue;
+                poly[kept++] = g;
+            }
+            if (kept > 1 && atPole(poly[0] % vSize) &&
+                poly[kept-1] % vSize == poly[0] % vSize)
+              kept--;
+            if (kept < 3)
+              continue;
+
+            if (n + kept > idx.length)
+              idx = Arrays.copyOf(idx, 2 * (n + kept));
+            for (int k = 0; k < kept; k++) {
+                int g = poly[k];
+                if (id[g] < 0) {
+                    id[g] = nv;
+                    verts[nv++] = g;
+                }
+                idx[n++] = id[g];
+            }
+            off[++np] = n;
+        }
+
+        off = Arrays.copyOf(off, np + 1);
+        idx = Arrays.copyOf(idx, n);
+        verts = Arrays.copyOf(verts, nv);
+        if (offset != null && Arrays.equals(off, offset) &&
+            Arrays.equals(idx, index) && Arrays.equals(verts, gridVertex))
+          return false;
+
+        numVertices = nv;
+        gridVertex = verts;
+        numPolygons = np;
+        offset = off;
+        index = idx;
+        return true;
+    }
+
+    // Number of leaves by depth (for reports)
+    public int[] leavesByDepth()
+    {
+        int[] res = new int[1];
+        for (int n : collect(false)) {
+            if (depth[n] >= res.length)
+              res = Arrays.copyOf(res, depth[n] + 1);
+            res[depth[n]]++;
+        }
+        return res;
+    }
+}
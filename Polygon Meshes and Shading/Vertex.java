@@ -3,7 +3,8 @@
  * Abstract representation for a mesh vertex -- a 3D point and normal vector 
  * (averaged from adjacent polygons)
  *
- * Instantiations of this interface are in UVShape and PolyMesh
+ * Instantiations of this interface are in UVShape and PolyMesh (and
+ * views of a MeshStorage)
  *
  * Doug DeCarlo
  */
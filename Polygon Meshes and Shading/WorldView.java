@@ -1,24 +1,87 @@
 /* class WorldView
  * The OpenGL drawing component of the interface
  *
+ * Clicking on the shape picks the polygon under the mouse (or moving
+ * the mouse, with the "Pick on hover" option): the mouse position is
+ * unprojected into a ray in shape coordinates, which is intersected
+ * with the shape using its BVH.  The BVH is built in the background
+ * (again after each change of the geometry); picks while it is being
+ * built are skipped.
+ *
  * Doug DeCarlo
  */
 
 import java.awt.Window;
+import java.awt.event.*;
 
 import javax.media.opengl.GL;
+import javax.media.opengl.glu.GLU;
+import javax.vecmath.Point3d;
 
 public class WorldView extends SimpleGLCanvas
 {
-    Shape s;
+    // Shape drawn (replaced when a mesh loaded in the background is
+    // ready; see setShape())
+    private volatile Shape s;
+
+    // Pending pick at this mouse position (pickX < 0 if none), and
+    // whether to report it
+    private int pickX, pickY;
+    private boolean pickReport;
+
+    private GLU glu;
 
     public WorldView(Window parent, Shape sh, boolean debug)
     {
         super(parent, debug);
 
+        glu = new GLU();
+        pickX = -1;
+
+        addMouseListener(new MouseAdapter() {
+                public void mouseClicked(MouseEvent e) {
+                    requestPick(e.getX(), e.getY(), true);
+                }
+            });
+        addMouseMotionListener(new MouseMotionAdapter() {
+                public void mouseMoved(MouseEvent e) {
+                    if (s.pickOnHover())
+                      requestPick(e.getX(), e.getY(), false);
+                }
+            });
+
+        setShape(sh);
+    }
+
+    // Draw another shape from now on (the swap is a single write, so a
+    // frame draws either shape, never a mix)
+    public void setShape(Shape sh)
+    {
         s = sh;
+        pickX = -1;
+
+        // Build the BVH in the background (and again whenever the
+        // geometry changes), so that picking never builds it while
+        // drawing (there is none for meshes out of core)
+        if (s.pickable())
+          s.buildBVHInBackground();
+    }
+
+    // Pick at a mouse position when next drawn (picking needs the
+    // matrices of the GL context, so it is done while drawing)
+    private void requestPick(int x, int y, boolean report)
+    {
+        if (!s.pickable()) {
+            if (report && s.getMappedMesh() != null)
+              System.out.println("No picking for meshes out of core");
+            return;
+        }
+        pickX = x;
+        pickY = y;
+        pickReport = report;
+        display();
     }
-    
+
     // ------------------------------------------------------------
 
     public void init(GL gl)
@@ -36,6 +99,12 @@ public class WorldView extends SimpleGLCanvas
 
         // Scale normal appropriately when transforming
         gl.glEnable(GL.GL_RESCALE_NORMAL);
+
+        // Build the shading programs now rather than when GLSL is first
+        // turned on (shapes drawn later with the same shaders share them);
+        // those of an earlier context can't be used in this one
+        SlangProgram.contextCreated();
+        s.prepareGLSL(gl);
     }
 
     // Method for handling window resizing
@@ -70,6 +139,8 @@ public class WorldView extends SimpleGLCanvas
     // Method for drawing the contents of the window
     public void draw(GL gl)
     {
+        Shape s = this.s;
+
         // Clear the window and depth buffer
         gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
 
@@ -79,7 +150,64 @@ public class WorldView extends SimpleGLCanvas
         // Apply V: move camera back so that object is visible
         gl.glTranslated(0, 0, -5);
 
+        // Pick (in the coordinates of the shape)
+        if (pickX >= 0) {
+            gl.glPushMatrix();
+            s.applyTransform(gl);
+            pick(gl, s, pickX, pickY, pickReport);
+            gl.glPopMatrix();
+            pickX = -1;
+        }
+
 	// Draw the shape
         s.draw(gl);
     }
+
+    // Pick the polygon under mouse position (x,y)
+    private void pick(GL gl, Shape s, int x, int y, boolean report)
+    {
+        double[] mv = new double[16], proj = new double[16];
+        int[] viewport = new int[4];
+        gl.glGetDoublev(GL.GL_MODELVIEW_MATRIX, mv, 0);
+        gl.glGetDoublev(GL.GL_PROJECTION_MATRIX, proj, 0);
+        gl.glGetIntegerv(GL.GL_VIEWPORT, viewport, 0);
+
+        // Ray from the near to the far plane (window y is flipped)
+        double winY = viewport[3] - 1 - y;
+        double[] near = new double[3], far = new double[3];
+        glu.gluUnProject(x, winY, 0, mv, 0, proj, 0, viewport, 0, near, 0);
+        glu.gluUnProject(x, winY, 1, mv, 0, proj, 0, viewport, 0, far, 0);
+        double[] dir = { far[0] - near[0], far[1] - near[1], far[2] - near[2] };
+
+        // Skip the pick until the BVH of the current geometry is built
+        MeshBVH bvh = s.readyBVH();
+        if (bvh == null) {
+            if (report)
+              System.out.println("BVH building: pick again once done");
+            return;
+        }
+        long start = System.nanoTime();
+        MeshBVH.Hit hit = bvh.intersect(near, dir);
+        long time = System.nanoTime() - start;
+
+        s.setPicked(hit == null ? -1 : hit.polygon);
+
+        // Report the numbers of the polygon and its vertices in the
+        // file (the shape may have been welded or reordered), and read
+        // them through the views (no copy of a packed mesh)
+        if (report && hit != null) {
+            int p = hit.polygon;
+            Polygon poly = s.getPolygon(p);
+            System.out.printf("Picked polygon %d (%.1f us): point " +
+                              "(%.4f, %.4f, %.4f)%n", s.filePolygon(p),
+                              time / 1e3, hit.point[0], hit.point[1],
+                              hit.point[2]);
+            for (int i = 0; i < poly.size(); i++) {
+                Point3d v = poly.getVertex(i).getPoint();
+                System.out.printf("  vertex %d: (%.4f, %.4f, %.4f)%n",
+                                  s.fileVertex(s.polygonVertex(p, i)),
+                                  v.x, v.y, v.z);
+            }
+        }
+    }
 }
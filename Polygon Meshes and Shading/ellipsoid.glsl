@@ -0,0 +1,25 @@
+/*
+ * Ellipsoid surface for the UV surface vertex shader (uvsurface.vp)
+ * Compute vertex and normal from u-v
+ */
+
+// Ellipsoid parameters
+uniform float ax, ay, az;
+
+// Position at (u,v) on an ellipsoid
+vec4 surfacePosition(float u, float v)
+{
+    float xCoord = ax * cos(u) * cos(v);
+    float yCoord = ay * sin(u) * cos(v);
+    float zCoord = az * sin(v);
+    return vec4(xCoord, yCoord, zCoord, 1);
+}
+
+// Normal vector at (u,v) on an ellipsoid
+vec3 surfaceNormal(float u, float v)
+{
+    float normX = ay * az * cos(u) * cos(v);
+    float normY = ax * az * sin(u) * cos(v);
+    float normZ = ax * ay * sin(v);
+    return vec3(normX, normY, normZ);
+}
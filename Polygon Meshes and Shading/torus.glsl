@@ -0,0 +1,27 @@
+/*
+ * Torus surface for the UV surface vertex shader (uvsurface.vp)
+ * Compute vertex and normal from u-v
+ */
+
+// Torus parameters
+uniform float outRad, inRad;
+
+// Position at (u,v) on a torus
+vec4 surfacePosition(float u, float v)
+{
+    float a = (outRad - inRad) / 2.0;
+    float c = (outRad + inRad) / 2.0;
+    float xCoord = (c + a * cos(v)) * cos(u);
+    float yCoord = (c + a * cos(v)) * sin(u);
+    float zCoord = a * sin(v);
+    return vec4(xCoord, yCoord, zCoord, 1);
+}
+
+// Normal vector at (u,v) on a torus
+vec3 surfaceNormal(float u, float v)
+{
+    float normX = cos(u) * cos(v);
+    float normY = sin(u) * cos(v);
+    float normZ = sin(v);
+    return vec3(normX, normY, normZ);
+}